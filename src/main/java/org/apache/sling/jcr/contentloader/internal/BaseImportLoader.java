@@ -18,10 +18,7 @@
  */
 package org.apache.sling.jcr.contentloader.internal;
 
-import java.util.Iterator;
-import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.Map.Entry;
 
 import org.apache.sling.jcr.contentloader.ContentReader;
 import org.apache.sling.jcr.contentloader.ImportOptions;
@@ -46,13 +43,7 @@ public abstract class BaseImportLoader extends JcrXmlImporter {
     }
 
     public Map<String, ContentReader> getContentReaders() {
-        Map<String, ContentReader> readers = new LinkedHashMap<>();
-        readers.put(EXT_JCR_XML, null);
-        for (Entry<String, ContentReader> e :
-                contentReaderWhiteboard.getReadersByExtension().entrySet()) {
-            readers.put('.' + e.getKey(), e.getValue());
-        }
-        return readers;
+        return contentReaderWhiteboard.getContentReaders().getReaders();
     }
 
     protected String toPlainName(String name, String contentReaderExtension) {
@@ -72,15 +63,7 @@ public abstract class BaseImportLoader extends JcrXmlImporter {
      * @return The extension a reader is registered for - or <code>null</code>
      */
     protected String getContentReaderExtension(String name) {
-        String readerExt = null;
-        final Iterator<String> ipIter = getContentReaders().keySet().iterator();
-        while (readerExt == null && ipIter.hasNext()) {
-            final String ext = ipIter.next();
-            if (name.endsWith(ext)) {
-                readerExt = ext;
-            }
-        }
-        return readerExt;
+        return contentReaderWhiteboard.getContentReaders().getExtension(name, null);
     }
 
     /**
@@ -91,24 +74,10 @@ public abstract class BaseImportLoader extends JcrXmlImporter {
      * @return The reader or <code>null</code>
      */
     public ContentReader getContentReader(String name, PathEntry configuration) {
-        final Map<String, ContentReader> contentReaders = getContentReaders();
-        for (Map.Entry<String, ContentReader> readerEntry : contentReaders.entrySet()) {
-            String extension = readerEntry.getKey();
-            if (name.endsWith(extension) && !configuration.isIgnoredImportProvider(extension)) {
-                return readerEntry.getValue();
-            }
-        }
-        return null;
+        return contentReaderWhiteboard.getContentReaders().getReader(name, configuration);
     }
 
     public ContentReader getContentReader(String name, ImportOptions importOptions) {
-        final Map<String, ContentReader> contentReaders = getContentReaders();
-        for (Map.Entry<String, ContentReader> readerEntry : contentReaders.entrySet()) {
-            String extension = readerEntry.getKey();
-            if (name.endsWith(extension) && !importOptions.isIgnoredImportProvider(extension)) {
-                return readerEntry.getValue();
-            }
-        }
-        return null;
+        return contentReaderWhiteboard.getContentReaders().getReader(name, importOptions);
     }
 }
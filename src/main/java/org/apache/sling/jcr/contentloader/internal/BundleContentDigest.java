@@ -0,0 +1,145 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.contentloader.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.sling.jcr.contentloader.PathEntry;
+import org.osgi.framework.Bundle;
+
+/**
+ * The <code>BundleContentDigest</code> computes a fingerprint of the initial
+ * content of a bundle. The digest covers the initial content header, and with
+ * that all path entry directives, as well as the name and content of every
+ * bundle entry below the path entries.
+ */
+final class BundleContentDigest {
+
+    static final String ALGORITHM = "SHA-256";
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private BundleContentDigest() {
+        // hide the public constructor
+    }
+
+    /**
+     * Computes the digest of the initial content of the given bundle.
+     *
+     * @param bundle the bundle
+     * @return the hex encoded digest or <code>null</code> if the bundle has no initial content
+     * @throws IOException if a bundle entry cannot be read
+     */
+    static String compute(final Bundle bundle) throws IOException {
+        final String header = bundle.getHeaders().get(PathEntry.CONTENT_HEADER);
+        final Iterator<PathEntry> pathIter = PathEntry.getContentPaths(bundle);
+        if (header == null || pathIter == null) {
+            return null;
+        }
+        final MessageDigest md = newMessageDigest();
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        update(md, header);
+        while (pathIter.hasNext()) {
+            final String path = pathIter.next().getPath();
+            update(md, path);
+            final Enumeration<String> entries = bundle.getEntryPaths(path);
+            if (entries == null) {
+                final URL url = bundle.getEntry(path);
+                if (url != null) {
+                    updateEntry(md, path, url, buffer);
+                }
+            } else {
+                updateEntries(md, bundle, entries, buffer);
+            }
+        }
+        return HexFormat.of().formatHex(md.digest());
+    }
+
+    /**
+     * Computes the digest of a single bundle entry.
+     *
+     * @param header the initial content header of the bundle, as the directives affect how the entry is loaded
+     * @param url the url of the entry
+     * @return the hex encoded digest
+     * @throws IOException if the entry cannot be read
+     */
+    static String computeEntry(final String header, final URL url) throws IOException {
+        final MessageDigest md = newMessageDigest();
+        updateEntry(md, header, url, new byte[BUFFER_SIZE]);
+        return HexFormat.of().formatHex(md.digest());
+    }
+
+    private static void updateEntries(
+            final MessageDigest md, final Bundle bundle, final Enumeration<String> entries, final byte[] buffer)
+            throws IOException {
+        // sort the entries as the order of the entry paths is not specified
+        final List<String> names = Collections.list(entries);
+        Collections.sort(names);
+        for (final String name : names) {
+            if (name.endsWith("/")) {
+                final Enumeration<String> children = bundle.getEntryPaths(name);
+                update(md, name);
+                if (children != null) {
+                    updateEntries(md, bundle, children, buffer);
+                }
+            } else {
+                final URL url = bundle.getEntry(name);
+                if (url != null) {
+                    updateEntry(md, name, url, buffer);
+                }
+            }
+        }
+    }
+
+    private static void updateEntry(final MessageDigest md, final String name, final URL url, final byte[] buffer)
+            throws IOException {
+        update(md, name);
+        try (InputStream ins = url.openStream()) {
+            int n;
+            while ((n = ins.read(buffer)) != -1) {
+                md.update(buffer, 0, n);
+            }
+        }
+    }
+
+    private static void update(final MessageDigest md, final String value) {
+        md.update(value.getBytes(StandardCharsets.UTF_8));
+        // separator to not mix up subsequent names
+        md.update((byte) 0);
+    }
+
+    private static MessageDigest newMessageDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -35,10 +35,8 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collections;
-import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
@@ -67,17 +65,38 @@ public class BundleContentLoader extends BaseImportLoader {
     private BundleHelper bundleHelper;
 
     // bundles whose registration failed and should be retried
-    private List<Bundle> delayedBundles;
+    private DelayedBundles delayedBundles;
 
     private final Predicate<String> pathFilter;
 
+    // whether to keep the installed content if the content of the bundle did not change
+    private final boolean skipUnchangedContent;
+
+    // time the content has been loaded per bundle symbolic name, read in bulk on startup
+    private volatile Map<String, Long> loadedContentSnapshot;
+
+    // bundles whose content has been installed but not saved yet, null unless batching
+    private Batch batch;
+
+    // number of created nodes after which the content of a bundle is saved, 0 to save it at once
+    private final int saveThreshold;
+
+    // percentage of the maximum heap above which the content of a bundle is saved, 0 to disable
+    private final int saveHeapThreshold;
+
+    // whether to update existing content in place instead of removing and recreating it
+    private final boolean incrementalApply;
+
+    // whether to skip the bundle entries whose content did not change since it has been loaded
+    private final boolean skipUnchangedEntries;
+
     public BundleContentLoader(
             BundleHelper bundleHelper,
             ContentReaderWhiteboard contentReaderWhiteboard,
             BundleContentLoaderConfiguration configuration) {
         super(contentReaderWhiteboard);
         this.bundleHelper = bundleHelper;
-        this.delayedBundles = new LinkedList<>();
+        this.delayedBundles = new DelayedBundles();
 
         List<Pattern> includes = Arrays.stream(Optional.ofNullable(configuration)
                         .map(BundleContentLoaderConfiguration::includedTargets)
@@ -100,6 +119,11 @@ public class BundleContentLoader extends BaseImportLoader {
             }
         };
         log.debug("Using includes: {} and excludes: {}", includes, excludes);
+        this.skipUnchangedContent = configuration != null && configuration.skipUnchangedContent();
+        this.saveThreshold = configuration != null ? configuration.saveThreshold() : 0;
+        this.saveHeapThreshold = configuration != null ? configuration.saveHeapThreshold() : 0;
+        this.incrementalApply = configuration != null && configuration.incrementalApply();
+        this.skipUnchangedEntries = configuration != null && configuration.skipUnchangedEntries();
     }
 
     public void dispose() {
@@ -111,23 +135,172 @@ public class BundleContentLoader extends BaseImportLoader {
     }
 
     /**
-     * Retry loading bundles that have previously been delayed
+     * Set the snapshot of the bundles whose content has already been loaded. As
+     * long as a snapshot is set, a bundle which has not been modified since its
+     * content has been loaded according to the snapshot is skipped without
+     * locking its bundle content info.
+     *
+     * @param loadedContentSnapshot map of bundle symbolic names to the time their
+     *      content has been loaded or <code>null</code> to clear the snapshot
+     */
+    void setLoadedContentSnapshot(final Map<String, Long> loadedContentSnapshot) {
+        this.loadedContentSnapshot = loadedContentSnapshot;
+    }
+
+    /**
+     * Start saving the content of the bundles registered with the given metadata
+     * session in batches: the content of the bundles is installed on a separate
+     * session and saved once about the given number of nodes has been created,
+     * followed by a single save of the metadata of all bundles of the batch.
+     * Bundles with content for other workspaces are not batched. This must only
+     * be used while bundles are registered sequentially.
+     *
+     * @param metadataSession the JCR Session for reading/writing metadata
+     * @param nodeBudget the number of created nodes after which a batch is saved
+     * @throws RepositoryException if the session for the content cannot be created
+     */
+    void startBatch(final Session metadataSession, final int nodeBudget) throws RepositoryException {
+        finishBatch();
+        this.batch = new Batch(metadataSession, bundleHelper.getSession(), nodeBudget);
+    }
+
+    /**
+     * Save the pending batch, if any, and stop batching.
+     */
+    void finishBatch() {
+        final Batch finished = this.batch;
+        if (finished != null) {
+            try {
+                commitBatch(finished);
+            } finally {
+                this.batch = null;
+                finished.contentSession.logout();
+            }
+        }
+    }
+
+    /**
+     * Saves the content of the bundles of the batch, then records that their
+     * content has been loaded and unlocks their bundle content infos. If saving
+     * the content fails, the bundles are registered again one by one.
+     */
+    private void commitBatch(final Batch batch) {
+        final List<BatchedBundle> bundles = batch.takeAll();
+        if (bundles.isEmpty()) {
+            return;
+        }
+        try {
+            batch.contentSession.refresh(true);
+            batch.contentSession.save();
+        } catch (RepositoryException re) {
+            log.warn(
+                    "Cannot save initial content of {} bundles at once, loading them one by one : {}",
+                    bundles.size(),
+                    re.getMessage());
+            replayBatch(batch, bundles);
+            return;
+        }
+        try {
+            for (final BatchedBundle batched : bundles) {
+                bundleHelper.markContentLoaded(
+                        batch.metadataSession,
+                        batched.bundle,
+                        batched.createdNodes,
+                        batched.contentDigest,
+                        batched.entryDigests);
+            }
+            batch.metadataSession.save();
+            log.debug("Saved initial content of {} bundles at once", bundles.size());
+        } catch (RepositoryException re) {
+            // the content is saved, it will be loaded again as it is not marked as loaded
+            log.error("Cannot mark initial content of " + bundles.size() + " bundles as loaded", re);
+            discardChanges(batch.metadataSession);
+        } finally {
+            for (final BatchedBundle batched : bundles) {
+                unlockBatchedBundle(batch.metadataSession, batched.bundle);
+            }
+        }
+    }
+
+    /**
+     * Discards the unsaved content of the batch and registers its bundles again
+     * one by one, each with its own save.
+     */
+    private void replayBatch(final Batch batch, final List<BatchedBundle> bundles) {
+        discardChanges(batch.contentSession);
+        for (final BatchedBundle batched : bundles) {
+            unlockBatchedBundle(batch.metadataSession, batched.bundle);
+        }
+        this.batch = null;
+        try {
+            for (final BatchedBundle batched : bundles) {
+                registerBundleInternal(batch.metadataSession, batched.bundle, true, false, true);
+            }
+        } finally {
+            this.batch = batch;
+        }
+    }
+
+    private void unlockBatchedBundle(final Session metadataSession, final Bundle bundle) {
+        try {
+            bundleHelper.unlockBundleContentInfo(metadataSession, bundle, false, null);
+        } catch (RepositoryException re) {
+            log.warn("Cannot unlock bundle content info of bundle {} : {}", bundle.getSymbolicName(), re.getMessage());
+        }
+    }
+
+    private void discardChanges(final Session session) {
+        try {
+            session.refresh(false);
+        } catch (RepositoryException re) {
+            log.warn("Unable to discard changes", re);
+        }
+    }
+
+    /**
+     * Retry loading bundles that have previously been delayed, except for the
+     * bundles waiting for a content reader. Bundles delayed because their bundle
+     * content info was locked are only retried once their backoff elapsed.
      * @param metadataSession the JCR Session for reading/writing metadata
      */
     public void retryDelayedBundles(final Session metadataSession) {
-        // handle delayed bundles, might help now
-        int currentSize = -1;
-        for (int i = delayedBundles.size();
-                i > 0 && currentSize != delayedBundles.size() && !delayedBundles.isEmpty();
-                i--) {
-            for (Iterator<Bundle> di = delayedBundles.iterator(); di.hasNext(); ) {
-                Bundle delayed = di.next();
-                if (registerBundleInternal(metadataSession, delayed, true, false)) {
-                    di.remove();
-                }
+        for (Bundle delayed : delayedBundles.getDueContended(System.currentTimeMillis())) {
+            if (registerBundleInternal(metadataSession, delayed, true, false, true)) {
+                delayedBundles.remove(delayed);
             }
-            currentSize = delayedBundles.size();
         }
+        // bundles which failed otherwise might succeed now that other bundles have been loaded
+        boolean loaded = true;
+        while (loaded) {
+            loaded = false;
+            for (Bundle delayed : delayedBundles.takeFailed()) {
+                loaded |= registerBundleInternal(metadataSession, delayed, true, false, true);
+            }
+        }
+    }
+
+    /**
+     * Retry loading the delayed bundles waiting for a content reader which is
+     * available now.
+     * @param metadataSession the JCR Session for reading/writing metadata
+     */
+    public void retryBundlesWaitingForReader(final Session metadataSession) {
+        final Map<String, ContentReader> readers = contentReaderWhiteboard.getReadersByExtension();
+        boolean loaded = false;
+        for (Bundle delayed : delayedBundles.takeWaitingForReader(readers::containsKey)) {
+            loaded |= registerBundleInternal(metadataSession, delayed, true, false, true);
+        }
+        if (loaded) {
+            retryDelayedBundles(metadataSession);
+        }
+    }
+
+    /**
+     * Returns the time in milliseconds at which delayed bundles should be
+     * retried next, or <code>-1</code> if no retry is scheduled.
+     */
+    long getNextRetryTime() {
+        return delayedBundles.getNextRetryTime();
     }
 
     /**
@@ -140,21 +313,44 @@ public class BundleContentLoader extends BaseImportLoader {
 
         // if this is an update, we have to uninstall the old content first
         if (isUpdate) {
-            this.unregisterBundle(metadataSession, bundle);
+            if (skipUnchangedContent || incrementalApply) {
+                // the installed content is kept if it is unchanged, otherwise it is
+                // uninstalled or updated in place while registering the bundle
+                delayedBundles.remove(bundle);
+            } else {
+                this.unregisterBundle(metadataSession, bundle);
+            }
         }
 
         log.debug("Registering bundle {} for content loading.", bundle.getSymbolicName());
 
-        if (registerBundleInternal(metadataSession, bundle, false, isUpdate)) {
+        // add to delayed bundles on failure - if this is not an update!
+        if (registerBundleInternal(metadataSession, bundle, false, isUpdate, !isUpdate)) {
             retryDelayedBundles(metadataSession);
-        } else if (!isUpdate) {
-            // add to delayed bundles - if this is not an update!
-            delayedBundles.add(bundle);
         }
     }
 
+    /**
+     * Register a bundle and install its content without retrying delayed
+     * bundles. This allows independent bundles to be registered concurrently,
+     * each caller using its own metadata session. A bundle whose registration
+     * fails is delayed.
+     *
+     * @param metadataSession the JCR Session for reading/writing metadata
+     * @param bundle the bundle to install
+     * @return {@code true} if the content was installed or there was nothing to install
+     */
+    boolean registerBundleConcurrently(final Session metadataSession, final Bundle bundle) {
+        log.debug("Registering bundle {} for content loading.", bundle.getSymbolicName());
+        return registerBundleInternal(metadataSession, bundle, false, false, true);
+    }
+
     private boolean registerBundleInternal(
-            final Session metadataSession, final Bundle bundle, final boolean isRetry, final boolean isUpdate) {
+            final Session metadataSession,
+            final Bundle bundle,
+            final boolean isRetry,
+            final boolean isUpdate,
+            final boolean delayOnFailure) {
 
         // check if bundle has initial content
         final Iterator<PathEntry> pathIter = PathEntry.getContentPaths(bundle);
@@ -163,6 +359,18 @@ public class BundleContentLoader extends BaseImportLoader {
             return true;
         }
 
+        final Map<String, Long> snapshot = this.loadedContentSnapshot;
+        if (!isUpdate && snapshot != null) {
+            final Long loadedAt = snapshot.get(bundle.getSymbolicName());
+            if (loadedAt != null && loadedAt >= bundle.getLastModified()) {
+                log.info("Content of bundle already loaded {}.", bundle.getSymbolicName());
+                return true;
+            }
+        }
+
+        final Batch currentBatch =
+                batch != null && batch.metadataSession == metadataSession && isBatchable(bundle) ? batch : null;
+
         try {
             bundleHelper.createRepositoryPath(metadataSession, BundleContentLoaderListener.BUNDLE_CONTENT_NODE);
 
@@ -172,13 +380,26 @@ public class BundleContentLoader extends BaseImportLoader {
 
             // if we don't get an info, someone else is currently loading
             if (bundleContentInfo == null) {
+                if (delayOnFailure) {
+                    delayedBundles.delayForContention(bundle, System.currentTimeMillis());
+                }
                 return false;
             }
 
             boolean success = false;
             List<String> createdNodes = null;
+            String contentDigest = null;
+            final BundleEntryDigests bundleEntryDigests = skipUnchangedEntries
+                    ? new BundleEntryDigests(
+                            bundle.getHeaders().get(PathEntry.CONTENT_HEADER),
+                            (String[]) bundleContentInfo.get(BundleContentLoaderListener.PROPERTY_ENTRY_DIGESTS),
+                            (String[]) bundleContentInfo.get(BundleContentLoaderListener.PROPERTY_UNINSTALL_PATHS))
+                    : null;
+            String[] entryDigests = skipUnchangedEntries
+                    ? (String[]) bundleContentInfo.get(BundleContentLoaderListener.PROPERTY_ENTRY_DIGESTS)
+                    : null;
             try {
-                final boolean contentAlreadyLoaded = ((Boolean)
+                boolean contentAlreadyLoaded = ((Boolean)
                                 bundleContentInfo.get(BundleContentLoaderListener.PROPERTY_CONTENT_LOADED))
                         .booleanValue();
                 boolean isBundleUpdated = false;
@@ -187,11 +408,64 @@ public class BundleContentLoader extends BaseImportLoader {
                 if (lastLoadedAt != null && lastLoadedAt.getTimeInMillis() < bundle.getLastModified()) {
                     isBundleUpdated = true;
                 }
-                if (!isUpdate && !isBundleUpdated && contentAlreadyLoaded) {
+                boolean isContentUnchanged = false;
+                if (skipUnchangedContent) {
+                    final String loadedDigest =
+                            (String) bundleContentInfo.get(BundleContentLoaderListener.PROPERTY_CONTENT_DIGEST);
+                    if (!isUpdate && !isBundleUpdated && loadedDigest != null) {
+                        // the bundle has not been modified since the content was loaded
+                        contentDigest = loadedDigest;
+                    } else {
+                        contentDigest = computeContentDigest(bundle);
+                    }
+                    isContentUnchanged = contentDigest != null && contentDigest.equals(loadedDigest);
+                    if (isUpdate && contentAlreadyLoaded && !isContentUnchanged && !incrementalApply) {
+                        // the changed content of the updated bundle is replaced
+                        uninstallContent(metadataSession, bundle, (String[])
+                                bundleContentInfo.get(BundleContentLoaderListener.PROPERTY_UNINSTALL_PATHS));
+                        bundleHelper.contentIsUninstalled(metadataSession, bundle);
+                        contentAlreadyLoaded = false;
+                    }
+                }
+                // the previously installed content is updated in place instead of being uninstalled first
+                final String[] previousUninstallPaths = isUpdate && incrementalApply && contentAlreadyLoaded
+                        ? (String[]) bundleContentInfo.get(BundleContentLoaderListener.PROPERTY_UNINSTALL_PATHS)
+                        : null;
+                if (contentAlreadyLoaded && (isContentUnchanged || (!isUpdate && !isBundleUpdated))) {
                     log.info("Content of bundle already loaded {}.", bundle.getSymbolicName());
                 } else {
-                    createdNodes =
-                            installContent(metadataSession, bundle, pathIter, contentAlreadyLoaded && !isBundleUpdated);
+                    if (currentBatch != null) {
+                        try {
+                            createdNodes = installContent(
+                                    currentBatch.contentSession,
+                                    bundle,
+                                    pathIter,
+                                    contentAlreadyLoaded && !isBundleUpdated,
+                                    currentBatch,
+                                    null,
+                                    bundleEntryDigests);
+                        } catch (RepositoryException | ContentReaderUnavailableException | RuntimeException e) {
+                            // the content of the other bundles of the batch has been discarded as well
+                            replayBatch(currentBatch, currentBatch.takeAll());
+                            throw e;
+                        }
+                    } else {
+                        final boolean incrementalUpdate = isUpdate && incrementalApply && contentAlreadyLoaded;
+                        createdNodes = installContent(
+                                metadataSession,
+                                bundle,
+                                pathIter,
+                                contentAlreadyLoaded && !isBundleUpdated && !incrementalUpdate,
+                                null,
+                                previousUninstallPaths,
+                                bundleEntryDigests);
+                        if (previousUninstallPaths != null) {
+                            removeStaleContent(metadataSession, bundle, previousUninstallPaths, createdNodes);
+                        }
+                    }
+                    if (bundleEntryDigests != null) {
+                        entryDigests = bundleEntryDigests.toArray();
+                    }
                     if (isRetry) {
                         // log success of retry
                         log.info("Retrying to load initial content for bundle {} succeeded.", bundle.getSymbolicName());
@@ -201,7 +475,12 @@ public class BundleContentLoader extends BaseImportLoader {
                 success = true;
                 return true;
             } finally {
-                bundleHelper.unlockBundleContentInfo(metadataSession, bundle, success, createdNodes);
+                if (success && currentBatch != null) {
+                    currentBatch.add(new BatchedBundle(bundle, createdNodes, contentDigest, entryDigests));
+                } else {
+                    bundleHelper.unlockBundleContentInfo(
+                            metadataSession, bundle, success, createdNodes, contentDigest, entryDigests);
+                }
             }
 
         } catch (ContentReaderUnavailableException crue) {
@@ -210,6 +489,13 @@ public class BundleContentLoader extends BaseImportLoader {
             if (!isRetry) {
                 log.warn("Cannot load initial content for bundle {} : {}", bundle.getSymbolicName(), crue.getMessage());
             }
+            if (delayOnFailure) {
+                if (crue.getEntry() != null) {
+                    delayedBundles.delayForReader(bundle, crue.getEntry());
+                } else {
+                    delayedBundles.delayForFailure(bundle);
+                }
+            }
         } catch (RepositoryException re) {
             // if we are retrying we already logged this message once, so we
             // won't log it again
@@ -218,10 +504,99 @@ public class BundleContentLoader extends BaseImportLoader {
                         "Cannot load initial content for bundle " + bundle.getSymbolicName() + " : " + re.getMessage(),
                         re);
             }
+            if (delayOnFailure) {
+                delayedBundles.delayForFailure(bundle);
+            }
+        } finally {
+            if (currentBatch != null && currentBatch.isFull()) {
+                commitBatch(currentBatch);
+            }
         }
         return false;
     }
 
+    /**
+     * Removes the previously installed top nodes which are no longer part of
+     * the content of the bundle after its content has been updated in place.
+     */
+    private void removeStaleContent(
+            final Session session,
+            final Bundle bundle,
+            final String[] previousUninstallPaths,
+            final List<String> createdNodes) {
+        final List<String> stale = new ArrayList<>();
+        for (final String previous : previousUninstallPaths) {
+            if (createdNodes.stream().noneMatch(path -> previous.equals(path) || previous.startsWith(path + '/'))) {
+                stale.add(previous);
+            }
+        }
+        if (!stale.isEmpty()) {
+            log.debug("Removing stale initial content of bundle {} : {}", bundle.getSymbolicName(), stale);
+            uninstallContent(session, bundle, stale.toArray(new String[stale.size()]));
+        }
+    }
+
+    /**
+     * Returns the predicate for the paths of the existing nodes to update in
+     * place when installing the given path entry: the whole target of an entry
+     * overwriting its target and the previously installed nodes of an updated
+     * bundle.
+     *
+     * @return the predicate or <code>null</code> if no node is updated in place
+     */
+    private Predicate<String> getIncrementalPaths(
+            final PathEntry pathEntry, final Node targetNode, final String[] previousUninstallPaths)
+            throws RepositoryException {
+        if (!incrementalApply) {
+            return null;
+        }
+        final List<String> paths = new ArrayList<>();
+        if (pathEntry.isOverwrite()) {
+            paths.add(targetNode.getPath());
+        }
+        if (previousUninstallPaths != null) {
+            final String workspacePrefix =
+                    targetNode.getSession().getWorkspace().getName() + ':';
+            for (final String previous : previousUninstallPaths) {
+                if (previous.startsWith(workspacePrefix)) {
+                    paths.add(previous.substring(workspacePrefix.length()));
+                }
+            }
+        }
+        if (paths.isEmpty()) {
+            return null;
+        }
+        return path -> paths.stream().anyMatch(p -> path.equals(p) || path.startsWith(p + '/'));
+    }
+
+    /**
+     * Checks whether the content of the bundle can be saved in a batch, which is
+     * the case unless it has content for another workspace.
+     */
+    private static boolean isBatchable(final Bundle bundle) {
+        final Iterator<PathEntry> pathIter = PathEntry.getContentPaths(bundle);
+        while (pathIter != null && pathIter.hasNext()) {
+            if (pathIter.next().getWorkspace() != null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Computes the digest of the initial content of the bundle.
+     *
+     * @return the digest or <code>null</code> if it cannot be computed
+     */
+    private String computeContentDigest(final Bundle bundle) {
+        try {
+            return BundleContentDigest.compute(bundle);
+        } catch (IOException ioe) {
+            log.warn("Cannot compute content digest of bundle {} : {}", bundle.getSymbolicName(), ioe.getMessage());
+            return null;
+        }
+    }
+
     /**
      * Unregister a bundle. Remove installed content.
      *
@@ -230,9 +605,7 @@ public class BundleContentLoader extends BaseImportLoader {
      */
     public void unregisterBundle(final Session session, final Bundle bundle) {
 
-        if (delayedBundles.contains(bundle)) {
-            delayedBundles.remove(bundle);
-        } else {
+        if (!delayedBundles.remove(bundle)) {
             try {
                 bundleHelper.createRepositoryPath(session, BundleContentLoaderListener.BUNDLE_CONTENT_NODE);
 
@@ -271,7 +644,10 @@ public class BundleContentLoader extends BaseImportLoader {
             final Session defaultSession,
             final Bundle bundle,
             final Iterator<PathEntry> pathIter,
-            final boolean contentAlreadyLoaded)
+            final boolean contentAlreadyLoaded,
+            final Batch batch,
+            final String[] previousUninstallPaths,
+            final BundleEntryDigests entryDigests)
             throws RepositoryException, ContentReaderUnavailableException {
 
         final List<String> createdNodes = new ArrayList<>();
@@ -279,6 +655,11 @@ public class BundleContentLoader extends BaseImportLoader {
 
         log.debug("Installing initial content from bundle {}", bundle.getSymbolicName());
         final DefaultContentCreator contentCreator = new DefaultContentCreator(this.bundleHelper);
+        // the nodes added by this installation are removed again if it fails after
+        // they have been saved, which is not done before the end of a batch
+        final List<String> addedNodes = batch == null ? new ArrayList<>() : null;
+        contentCreator.setAddedNodes(addedNodes);
+        boolean installed = false;
         try {
             while (pathIter.hasNext()) {
                 final PathEntry pathEntry = pathIter.next();
@@ -300,6 +681,11 @@ public class BundleContentLoader extends BaseImportLoader {
                     continue;
                 }
 
+                if (contentAlreadyLoaded && !pathEntry.isOverwrite() && entryDigests != null) {
+                    // the entries are not loaded again, so their digests are still valid
+                    entryDigests.keepLoaded(pathEntry.getPath());
+                }
+
                 if (!contentAlreadyLoaded || pathEntry.isOverwrite()) {
                     String workspace = pathEntry.getWorkspace();
                     final Session targetSession;
@@ -314,39 +700,37 @@ public class BundleContentLoader extends BaseImportLoader {
                         targetSession = defaultSession;
                     }
 
-                    final Node targetNode =
-                            getTargetNode(targetSession, pathEntry.getTarget(), pathEntry.isOverwrite());
+                    final Node targetNode = getTargetNode(
+                            targetSession, pathEntry.getTarget(), pathEntry.isOverwrite() && !incrementalApply);
 
                     if (targetNode != null) {
+                        contentCreator.setIncrementalPaths(
+                                getIncrementalPaths(pathEntry, targetNode, previousUninstallPaths));
                         installFromPath(
                                 bundle,
+                                BundleEntryIndex.build(bundle, pathEntry.getPath()),
                                 pathEntry.getPath(),
                                 pathEntry,
                                 targetNode,
                                 pathEntry.isUninstall() ? createdNodes : null,
-                                contentCreator);
+                                contentCreator,
+                                batch == null,
+                                entryDigests);
                     }
                 }
             }
 
+            // set the REFERENCE properties pointing to nodes created later on
+            contentCreator.resolveReferences();
+
             // now optimize created nodes list
-            Collections.sort(createdNodes);
-            if (createdNodes.size() > 1) {
-                final Iterator<String> i = createdNodes.iterator();
-                String previous = i.next() + '/';
-                while (i.hasNext()) {
-                    final String current = i.next();
-                    if (current.startsWith(previous)) {
-                        i.remove();
-                    } else {
-                        previous = current + '/';
-                    }
-                }
-            }
+            optimizeCreatedNodes(createdNodes);
 
-            // persist modifications now
-            defaultSession.refresh(true);
-            defaultSession.save();
+            // persist modifications now, unless they are saved with the batch
+            if (batch == null || !contentCreator.getVersionables().isEmpty()) {
+                defaultSession.refresh(true);
+                defaultSession.save();
+            }
 
             for (Session session : createdSessions.values()) {
                 session.refresh(true);
@@ -359,9 +743,13 @@ public class BundleContentLoader extends BaseImportLoader {
                         versionable.getSession().getWorkspace().getVersionManager();
                 versionManager.checkin(versionable.getPath());
             }
+            if (batch != null) {
+                batch.nodeCount += contentCreator.getCreatedNodeCount();
+            }
+            installed = true;
         } finally {
             try {
-                if (defaultSession.hasPendingChanges()) {
+                if (!installed && defaultSession.hasPendingChanges()) {
                     defaultSession.refresh(false);
                 }
                 for (Session session : createdSessions.values()) {
@@ -372,6 +760,15 @@ public class BundleContentLoader extends BaseImportLoader {
             } catch (RepositoryException re) {
                 log.warn("Failure to rollback partial initial content for bundle {}", bundle.getSymbolicName(), re);
             }
+            if (!installed && contentCreator.isContentSaved() && !addedNodes.isEmpty()) {
+                // remove the nodes added and already saved, existing nodes which have been reused are kept
+                optimizeCreatedNodes(addedNodes);
+                log.warn(
+                        "Removing partially saved initial content of bundle {} : {}",
+                        bundle.getSymbolicName(),
+                        addedNodes);
+                uninstallContent(defaultSession, bundle, addedNodes.toArray(new String[addedNodes.size()]));
+            }
             contentCreator.clear();
             for (Session session : createdSessions.values()) {
                 session.logout();
@@ -382,24 +779,89 @@ public class BundleContentLoader extends BaseImportLoader {
         return createdNodes;
     }
 
+    /**
+     * Removes the paths of nodes which are contained in other nodes of the list,
+     * as these are removed together with their ancestor. The list is sorted.
+     */
+    private static void optimizeCreatedNodes(final List<String> createdNodes) {
+        Collections.sort(createdNodes);
+        if (createdNodes.size() > 1) {
+            final Iterator<String> i = createdNodes.iterator();
+            String previous = i.next() + '/';
+            while (i.hasNext()) {
+                final String current = i.next();
+                if (current.startsWith(previous)) {
+                    i.remove();
+                } else {
+                    previous = current + '/';
+                }
+            }
+        }
+    }
+
+    /**
+     * Saves the session of the given node if the configured number of nodes has
+     * been created since the last save or the used heap exceeds the configured
+     * threshold. This is only called once an entry has been completely imported
+     * so that no node with missing mandatory items is saved. Content installed
+     * with a batch is only saved when the batch is committed, as the session
+     * holds the unsaved content of the other bundles of the batch as well.
+     */
+    private void saveIfNeeded(
+            final Node node, final List<String> createdNodes, final DefaultContentCreator contentCreator)
+            throws RepositoryException {
+        if ((saveThreshold > 0 && contentCreator.getUnsavedNodeCount() >= saveThreshold) || isHeapThresholdExceeded()) {
+            final Session session = node.getSession();
+            if (session.hasPendingChanges()) {
+                log.debug("Saving {} nodes of initial content", contentCreator.getUnsavedNodeCount());
+                session.refresh(true);
+                session.save();
+                contentCreator.contentSaved();
+                // keep the lists of nodes from growing with every created node
+                if (createdNodes != null) {
+                    optimizeCreatedNodes(createdNodes);
+                }
+                if (contentCreator.getAddedNodes() != null) {
+                    optimizeCreatedNodes(contentCreator.getAddedNodes());
+                }
+            }
+        }
+    }
+
+    private boolean isHeapThresholdExceeded() {
+        if (saveHeapThreshold <= 0) {
+            return false;
+        }
+        final Runtime runtime = Runtime.getRuntime();
+        final long used = runtime.totalMemory() - runtime.freeMemory();
+        return used * 100 >= runtime.maxMemory() * saveHeapThreshold;
+    }
+
     /**
      * Handle content installation for a single path.
      *
      * @param bundle        The bundle containing the content.
+     * @param index         The index of the entries of the path entry
      * @param path          The path
      * @param configuration
      * @param parent        The parent node.
      * @param createdNodes  An optional list to store all new nodes. This list is
      *                      used for an uninstall
+     * @param intermediateSaves Whether the content may be saved before it is
+     *                      completely installed
+     * @param entryDigests  The digests of the entries, if unchanged entries are skipped
      * @throws RepositoryException
      */
     private void installFromPath(
             final Bundle bundle,
+            final BundleEntryIndex index,
             final String path,
             final PathEntry configuration,
             final Node parent,
             final List<String> createdNodes,
-            final DefaultContentCreator contentCreator)
+            final DefaultContentCreator contentCreator,
+            final boolean intermediateSaves,
+            final BundleEntryDigests entryDigests)
             throws RepositoryException, ContentReaderUnavailableException {
 
         // init content creator
@@ -407,38 +869,48 @@ public class BundleContentLoader extends BaseImportLoader {
 
         final Map<String, Node> processedEntries = new HashMap<>();
 
-        Enumeration<String> entries = bundle.getEntryPaths(path);
+        final List<String> entries = index.getChildren(path);
         if (entries == null) {
             // check for single content
-            final URL u = bundle.getEntry(path);
-            if (u == null) {
+            if (index.getEntry(path) == null) {
                 log.info("install: No initial content entries at {} in bundle {}", path, bundle.getSymbolicName());
                 return;
             }
             // we have a single file content -> this should replace the target node fully, i.e. parent is one level
             // above
-            handleFile(path, bundle, processedEntries, configuration, parent.getParent(), createdNodes, contentCreator);
+            handleFile(
+                    path,
+                    bundle,
+                    index,
+                    processedEntries,
+                    configuration,
+                    parent.getParent(),
+                    createdNodes,
+                    contentCreator,
+                    entryDigests);
+            contentCreator.removeUnappliedItems(parent.getParent());
             return;
         }
 
         // potential parent node import/extension
-        URL parentNodeDescriptor = importParentNode(bundle, path, parent, contentCreator);
+        URL parentNodeDescriptor = importParentNode(index, path, parent, contentCreator);
         if (parentNodeDescriptor != null) {
             processedEntries.put(parentNodeDescriptor.toString(), parent);
         }
 
-        while (entries.hasMoreElements()) {
-            final String entry = entries.nextElement();
+        for (final String entry : entries) {
             log.debug("Processing initial content entry {} in bundle {}", entry, bundle.getSymbolicName());
             if (entry.endsWith("/")) {
 
                 // dir, check for node descriptor, else create dir
                 final String base = entry.substring(0, entry.length() - 1);
 
+                String nodeDescriptorPath = null;
                 URL nodeDescriptor = null;
                 for (String ext : contentCreator.getContentReaders().keySet()) {
-                    nodeDescriptor = bundle.getEntry(base + ext);
+                    nodeDescriptor = index.getEntry(base + ext);
                     if (nodeDescriptor != null) {
+                        nodeDescriptorPath = base + ext;
                         break;
                     }
                 }
@@ -451,23 +923,56 @@ public class BundleContentLoader extends BaseImportLoader {
                 if (nodeDescriptor != null) {
                     node = processedEntries.get(nodeDescriptor.toString());
                     if (node == null) {
-                        node = createNode(parent, name, nodeDescriptor, contentCreator, configuration);
+                        if (isUnchanged(entryDigests, parent, name, nodeDescriptorPath, nodeDescriptor)) {
+                            node = parent.getNode(name);
+                            contentCreator.markNodeApplied(parent, name);
+                        } else {
+                            node = createNode(index, parent, name, nodeDescriptor, contentCreator, configuration);
+                        }
                         processedEntries.put(nodeDescriptor.toString(), node);
                     }
                 } else {
-                    node = createFolder(parent, name, configuration.isOverwrite());
+                    final boolean replace = configuration.isOverwrite() && !incrementalApply;
+                    final boolean added = replace || !parent.hasNode(name);
+                    node = createFolder(parent, name, replace);
+                    if (added) {
+                        contentCreator.nodeAdded(node);
+                    }
+                    contentCreator.markNodeApplied(parent, name);
                 }
 
                 // walk down the line
                 if (node != null) {
-                    installFromPath(bundle, entry, configuration, node, createdNodes, contentCreator);
+                    installFromPath(
+                            bundle,
+                            index,
+                            entry,
+                            configuration,
+                            node,
+                            createdNodes,
+                            contentCreator,
+                            intermediateSaves,
+                            entryDigests);
                 }
 
             } else {
                 // file => create file
-                handleFile(entry, bundle, processedEntries, configuration, parent, createdNodes, contentCreator);
+                handleFile(
+                        entry,
+                        bundle,
+                        index,
+                        processedEntries,
+                        configuration,
+                        parent,
+                        createdNodes,
+                        contentCreator,
+                        entryDigests);
+            }
+            if (intermediateSaves) {
+                saveIfNeeded(parent, createdNodes, contentCreator);
             }
         }
+        contentCreator.removeUnappliedItems(parent);
     }
 
     /**
@@ -475,23 +980,27 @@ public class BundleContentLoader extends BaseImportLoader {
      *
      * @param entry
      * @param bundle
+     * @param index
      * @param processedEntries
      * @param configuration
      * @param parent
      * @param createdNodes
+     * @param entryDigests
      * @throws RepositoryException
      */
     private void handleFile(
             final String entry,
             final Bundle bundle,
+            final BundleEntryIndex index,
             final Map<String, Node> processedEntries,
             final PathEntry configuration,
             final Node parent,
             final List<String> createdNodes,
-            final DefaultContentCreator contentCreator)
+            final DefaultContentCreator contentCreator,
+            final BundleEntryDigests entryDigests)
             throws RepositoryException, ContentReaderUnavailableException {
 
-        final URL file = bundle.getEntry(entry);
+        final URL file = index.getEntry(entry);
         final String name = getName(entry);
         try {
             if (processedEntries.containsKey(file.toString())) {
@@ -500,10 +1009,12 @@ public class BundleContentLoader extends BaseImportLoader {
             }
 
             // check for node descriptor
+            String nodeDescriptorPath = null;
             URL nodeDescriptor = null;
             for (String ext : contentCreator.getContentReaders().keySet()) {
-                nodeDescriptor = bundle.getEntry(entry + ext);
+                nodeDescriptor = index.getEntry(entry + ext);
                 if (nodeDescriptor != null) {
+                    nodeDescriptorPath = entry + ext;
                     break;
                 }
             }
@@ -511,9 +1022,29 @@ public class BundleContentLoader extends BaseImportLoader {
             // install if it is a descriptor
             boolean foundReader = getContentReader(entry, configuration) != null;
 
+            // skip the entry if neither it nor its descriptor changed since it has been loaded
+            final String nodeName = foundReader ? toPlainName(name, getContentReaderExtension(name)) : name;
+            if (entryDigests != null
+                    && nodeName != null
+                    && !entry.endsWith(EXT_JCR_XML)
+                    && isUnchanged(entryDigests, parent, nodeName, entry, file)
+                    && (nodeDescriptor == null
+                            || isUnchanged(entryDigests, parent, nodeName, nodeDescriptorPath, nodeDescriptor))) {
+                log.debug("Skipping unchanged entry {} in bundle {}", entry, bundle.getSymbolicName());
+                final Node node = parent.getNode(nodeName);
+                processedEntries.put(file.toString(), node);
+                if (nodeDescriptor != null) {
+                    processedEntries.put(nodeDescriptor.toString(), node);
+                }
+                contentCreator.markNodeApplied(parent, nodeName);
+                entryDigests.keepUninstallPaths(
+                        node.getSession().getWorkspace().getName() + ":" + node.getPath(), createdNodes);
+                return;
+            }
+
             Node node = null;
             if (foundReader) {
-                node = createNode(parent, name, file, contentCreator, configuration);
+                node = createNode(index, parent, name, file, contentCreator, configuration);
                 if (node != null) {
                     log.debug("Created node as {} {}", node.getPath(), name);
                     processedEntries.put(file.toString(), node);
@@ -526,7 +1057,7 @@ public class BundleContentLoader extends BaseImportLoader {
                 //   it into the delayedBundles list to retry later
                 if (configuration.isImportProviderRequired(name)) {
                     throw new ContentReaderUnavailableException(
-                            String.format("Unable to locate a required content reader for entry %s", entry));
+                            String.format("Unable to locate a required content reader for entry %s", entry), entry);
                 } else {
                     log.debug("Can't find content reader for entry {} at {}", entry, name);
                 }
@@ -546,7 +1077,7 @@ public class BundleContentLoader extends BaseImportLoader {
             if (nodeDescriptor != null && !processedEntries.containsKey(nodeDescriptor.toString())) {
                 try {
                     contentCreator.setIgnoreOverwriteFlag(true);
-                    node = createNode(parent, name, nodeDescriptor, contentCreator, configuration);
+                    node = createNode(index, parent, name, nodeDescriptor, contentCreator, configuration);
                     processedEntries.put(nodeDescriptor.toString(), node);
                 } finally {
                     contentCreator.setIgnoreOverwriteFlag(false);
@@ -558,9 +1089,33 @@ public class BundleContentLoader extends BaseImportLoader {
         }
     }
 
+    /**
+     * Checks whether the given bundle entry did not change since the content has
+     * been loaded and whether the node loaded from it still exists. The digest of
+     * the entry is recorded in any case.
+     */
+    private boolean isUnchanged(
+            final BundleEntryDigests entryDigests,
+            final Node parent,
+            final String name,
+            final String entry,
+            final URL entryUrl)
+            throws RepositoryException {
+        if (entryDigests == null) {
+            return false;
+        }
+        try {
+            return entryDigests.isUnchanged(entry, entryUrl) && parent.hasNode(name);
+        } catch (IOException ioe) {
+            log.warn("Cannot compute the digest of {}, loading it again", entryUrl, ioe);
+            return false;
+        }
+    }
+
     /**
      * Create a new node from a content resource found in the bundle.
      *
+     * @param index          The index of the bundle entries
      * @param parent         The parent node
      * @param name           The name of the new content node
      * @param resourceUrl    The resource url.
@@ -570,6 +1125,7 @@ public class BundleContentLoader extends BaseImportLoader {
      * @throws RepositoryException
      */
     private Node createNode(
+            final BundleEntryIndex index,
             Node parent,
             String name,
             URL resourceUrl,
@@ -583,7 +1139,11 @@ public class BundleContentLoader extends BaseImportLoader {
             // special treatment for system view imports
             if (resourcePath.endsWith(EXT_JCR_XML)) {
                 contentStream = resourceUrl.openStream();
-                return importJcrXml(parent, name, contentStream, false);
+                final Node node = importJcrXml(parent, name, contentStream, false);
+                if (node != null) {
+                    contentCreator.markNodeApplied(parent, node.getName());
+                }
+                return node;
             }
 
             // get the node reader for this resource
@@ -596,7 +1156,8 @@ public class BundleContentLoader extends BaseImportLoader {
 
             final String contentReaderExtension = getContentReaderExtension(name);
             contentCreator.prepareParsing(parent, toPlainName(name, contentReaderExtension));
-            nodeReader.parse(resourceUrl, contentCreator);
+            // files of exploded bundles are read from the file system, e.g. to inflate archives in parallel
+            nodeReader.parse(index.toLocalUrl(resourceUrl), contentCreator);
 
             return contentCreator.getCreatedRootNode();
         } catch (RepositoryException re) {
@@ -752,16 +1313,18 @@ public class BundleContentLoader extends BaseImportLoader {
             log.debug("Uninstalling initial content from bundle {}", bundle.getSymbolicName());
             if (uninstallPaths != null && uninstallPaths.length > 0) {
                 for (String path : uninstallPaths) {
-                    if (!pathFilter.test(path)) {
-                        log.debug("Path {} excluded by configuration", path);
-                        continue;
-                    }
                     final Session targetSession;
 
                     final int wsSepPos = path.indexOf(":/");
+                    final String workspaceName = wsSepPos != -1 ? path.substring(0, wsSepPos) : null;
                     if (wsSepPos != -1) {
-                        final String workspaceName = path.substring(0, wsSepPos);
                         path = path.substring(wsSepPos + 1);
+                    }
+                    if (!pathFilter.test(path)) {
+                        log.debug("Path {} excluded by configuration", path);
+                        continue;
+                    }
+                    if (workspaceName != null) {
                         if (workspaceName.equals(defaultSession.getWorkspace().getName())) {
                             targetSession = defaultSession;
                         } else if (createdSessions.containsKey(workspaceName)) {
@@ -837,7 +1400,7 @@ public class BundleContentLoader extends BaseImportLoader {
      * Return the parent node descriptor (ROOT).
      */
     private Descriptor getParentNodeDescriptor(
-            final Bundle bundle, final String path, final DefaultContentCreator contentCreator) {
+            final BundleEntryIndex index, final String path, final DefaultContentCreator contentCreator) {
 
         for (Map.Entry<String, ContentReader> entry :
                 contentCreator.getContentReaders().entrySet()) {
@@ -849,7 +1412,7 @@ public class BundleContentLoader extends BaseImportLoader {
                 filePath.append(PARENT_DESCRIPTOR);
                 // add file extension, e.g. .jcr.xml, .xml, .zip (see BaseImportLoader)
                 filePath.append(entry.getKey());
-                URL url = bundle.getEntry(filePath.toString());
+                URL url = index.getEntry(filePath.toString());
                 if (url != null) {
                     final Descriptor descriptor = new Descriptor();
                     descriptor.setUrl(url);
@@ -865,10 +1428,11 @@ public class BundleContentLoader extends BaseImportLoader {
      * Imports mixin nodes and properties (and optionally child nodes) of the parent
      * node.
      */
-    private URL importParentNode(Bundle bundle, String path, Node parent, final DefaultContentCreator contentCreator)
+    private URL importParentNode(
+            BundleEntryIndex index, String path, Node parent, final DefaultContentCreator contentCreator)
             throws RepositoryException {
 
-        final Descriptor descriptor = getParentNodeDescriptor(bundle, path, contentCreator);
+        final Descriptor descriptor = getParentNodeDescriptor(index, path, contentCreator);
         // no parent descriptor (ROOT) found
         if (descriptor == null) {
             return null;
@@ -895,4 +1459,64 @@ public class BundleContentLoader extends BaseImportLoader {
             return bundleHelper.getSession(workspace);
         }
     }
+
+    /**
+     * Bundles whose content has been installed on the content session but not
+     * saved yet, together with the number of nodes created for them.
+     */
+    private static final class Batch {
+
+        private final Session metadataSession;
+
+        private final Session contentSession;
+
+        private final int nodeBudget;
+
+        private final List<BatchedBundle> bundles = new ArrayList<>();
+
+        private int nodeCount;
+
+        Batch(final Session metadataSession, final Session contentSession, final int nodeBudget) {
+            this.metadataSession = metadataSession;
+            this.contentSession = contentSession;
+            this.nodeBudget = nodeBudget;
+        }
+
+        void add(final BatchedBundle bundle) {
+            bundles.add(bundle);
+        }
+
+        boolean isFull() {
+            return nodeCount >= nodeBudget;
+        }
+
+        List<BatchedBundle> takeAll() {
+            final List<BatchedBundle> taken = new ArrayList<>(bundles);
+            bundles.clear();
+            nodeCount = 0;
+            return taken;
+        }
+    }
+
+    private static final class BatchedBundle {
+
+        private final Bundle bundle;
+
+        private final List<String> createdNodes;
+
+        private final String contentDigest;
+
+        private final String[] entryDigests;
+
+        BatchedBundle(
+                final Bundle bundle,
+                final List<String> createdNodes,
+                final String contentDigest,
+                final String[] entryDigests) {
+            this.bundle = bundle;
+            this.createdNodes = createdNodes;
+            this.contentDigest = contentDigest;
+            this.entryDigests = entryDigests;
+        }
+    }
 }
@@ -32,4 +32,34 @@ public @interface BundleContentLoaderConfiguration {
 
     @AttributeDefinition(name = "%excludedTargets.name", description = "%excludedTargets.description")
     String[] excludedTargets() default {};
+
+    @AttributeDefinition(name = "%startupThreads.name", description = "%startupThreads.description")
+    int startupThreads() default 1;
+
+    @AttributeDefinition(name = "%asyncBundleEvents.name", description = "%asyncBundleEvents.description")
+    boolean asyncBundleEvents() default false;
+
+    @AttributeDefinition(name = "%skipUnchangedContent.name", description = "%skipUnchangedContent.description")
+    boolean skipUnchangedContent() default false;
+
+    @AttributeDefinition(name = "%useLeases.name", description = "%useLeases.description")
+    boolean useLeases() default false;
+
+    @AttributeDefinition(name = "%leaseTimeout.name", description = "%leaseTimeout.description")
+    long leaseTimeout() default 1800;
+
+    @AttributeDefinition(name = "%startupBatchSize.name", description = "%startupBatchSize.description")
+    int startupBatchSize() default 0;
+
+    @AttributeDefinition(name = "%saveThreshold.name", description = "%saveThreshold.description")
+    int saveThreshold() default 0;
+
+    @AttributeDefinition(name = "%saveHeapThreshold.name", description = "%saveHeapThreshold.description")
+    int saveHeapThreshold() default 0;
+
+    @AttributeDefinition(name = "%incrementalApply.name", description = "%incrementalApply.description")
+    boolean incrementalApply() default false;
+
+    @AttributeDefinition(name = "%skipUnchangedEntries.name", description = "%skipUnchangedEntries.description")
+    boolean skipUnchangedEntries() default false;
 }
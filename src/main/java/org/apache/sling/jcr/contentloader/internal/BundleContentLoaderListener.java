@@ -19,19 +19,31 @@
 package org.apache.sling.jcr.contentloader.internal;
 
 import javax.jcr.Node;
+import javax.jcr.NodeIterator;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import javax.jcr.Value;
 import javax.jcr.lock.LockException;
 import javax.jcr.lock.LockManager;
 
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.sling.commons.mime.MimeTypeService;
 import org.apache.sling.jcr.api.SlingRepository;
@@ -79,6 +91,12 @@ public class BundleContentLoaderListener
     private static final String PROPERTY_CONTENT_UNLOADED_AT = "content-unload-time";
     private static final String PROPERTY_CONTENT_UNLOADED_BY = "content-unloaded-by";
     public static final String PROPERTY_UNINSTALL_PATHS = "uninstall-paths";
+    public static final String PROPERTY_CONTENT_DIGEST = "content-digest";
+    public static final String PROPERTY_ENTRY_DIGESTS = "entry-digests";
+
+    private static final String PROPERTY_LEASE_OWNER = "lease-owner";
+    private static final String PROPERTY_LEASE_TOKEN = "lease-token";
+    private static final String PROPERTY_LEASE_EXPIRES = "lease-expires";
 
     public static final String BUNDLE_CONTENT_NODE = "/var/sling/bundle-content";
 
@@ -114,17 +132,54 @@ public class BundleContentLoaderListener
      * The initial content loader which is called to load initial content up into
      * the repository when the providing bundle is installed.
      */
-    private BundleContentLoader bundleContentLoader;
+    private volatile BundleContentLoader bundleContentLoader;
+
+    /**
+     * The queue processing bundle events asynchronously, <code>null</code> if
+     * bundle events are processed synchronously.
+     */
+    private volatile BundleEventQueue bundleEventQueue;
 
     /**
      * The id of the current instance
      */
     private String slingId;
 
+    /**
+     * Scheduler retrying delayed bundles once their backoff elapsed.
+     */
+    private ScheduledExecutorService retryScheduler;
+
+    /**
+     * The currently scheduled retry of delayed bundles.
+     */
+    private ScheduledFuture<?> scheduledRetry;
+
+    /**
+     * Whether bundle content nodes are guarded by leases instead of JCR locks.
+     */
+    private boolean useLeases;
+
+    /**
+     * The time in milliseconds after which a lease expires.
+     */
+    private long leaseTimeout;
+
+    /**
+     * The tokens of the leases held by this instance per bundle symbolic name.
+     */
+    private final Map<String, String> leaseTokens = new ConcurrentHashMap<>();
+
+    /**
+     * Scheduler renewing the leases held by this instance while their content
+     * is being installed, <code>null</code> if leases are not used.
+     */
+    private ScheduledExecutorService leaseRenewer;
+
     /**
      * List of currently updated bundles.
      */
-    private final Set<String> updatedBundles = new HashSet<>();
+    private final Set<String> updatedBundles = ConcurrentHashMap.newKeySet();
 
     /** Sling settings service. */
     @Reference
@@ -155,12 +210,13 @@ public class BundleContentLoaderListener
         Session session = null;
         try {
             session = this.getSession();
-            bundleContentLoader.retryDelayedBundles(session);
+            bundleContentLoader.retryBundlesWaitingForReader(session);
         } catch (Exception t) {
             log.error("handleContentReaderAdded: Problem loading initial content of delayed bundles", t);
         } finally {
             this.ungetSession(session);
         }
+        scheduleRetry();
     }
 
     // ---------- BundleListener -----------------------------------------------
@@ -168,13 +224,14 @@ public class BundleContentLoaderListener
     /**
      * Loads and unloads any content provided by the bundle whose state changed. If
      * the bundle has been started, the content is loaded. If the bundle is about to
-     * stop, the content are unloaded.
+     * stop, the content are unloaded. If asynchronous bundle event processing is
+     * enabled, loading and unloading is only queued here.
      *
      * @param event The <code>BundleEvent</code> representing the bundle state
      *              change.
      */
     @Override
-    public synchronized void bundleChanged(BundleEvent event) {
+    public void bundleChanged(BundleEvent event) {
 
         //
         // NOTE:
@@ -185,26 +242,14 @@ public class BundleContentLoaderListener
             return;
         }
 
-        Session session = null;
         final Bundle bundle = event.getBundle();
         switch (event.getType()) {
             case BundleEvent.RESOLVED:
                 // register content when the bundle content is available
                 // as node types are registered when the bundle is installed
                 // we can safely add the content at this point.
-                try {
-                    session = this.getSession();
-                    final boolean isUpdate;
-                    isUpdate = this.updatedBundles.remove(bundle.getSymbolicName());
-                    bundleContentLoader.registerBundle(session, bundle, isUpdate);
-                } catch (Exception t) {
-                    log.error(
-                            "bundleChanged: Problem loading initial content of bundle " + bundle.getSymbolicName()
-                                    + " (" + bundle.getBundleId() + ")",
-                            t);
-                } finally {
-                    this.ungetSession(session);
-                }
+                final boolean isUpdate = this.updatedBundles.remove(bundle.getSymbolicName());
+                handleBundleEvent(bundle, BundleEvent.RESOLVED, isUpdate);
                 break;
             case BundleEvent.UPDATED:
                 // we just add the symbolic name to the list of updated bundles
@@ -212,22 +257,104 @@ public class BundleContentLoaderListener
                 this.updatedBundles.add(bundle.getSymbolicName());
                 break;
             case BundleEvent.UNINSTALLED:
-                try {
-                    session = this.getSession();
-                    bundleContentLoader.unregisterBundle(session, bundle);
-                } catch (Exception t) {
-                    log.error(
-                            "bundleChanged: Problem unloading initial content of bundle " + bundle.getSymbolicName()
-                                    + " (" + bundle.getBundleId() + ")",
-                            t);
-                } finally {
-                    this.ungetSession(session);
-                }
+                handleBundleEvent(bundle, BundleEvent.UNINSTALLED, false);
                 break;
             default:
         }
     }
 
+    /**
+     * Queues the bundle event if asynchronous processing is enabled, otherwise
+     * processes it right away.
+     */
+    private void handleBundleEvent(final Bundle bundle, final int type, final boolean isUpdate) {
+        final BundleEventQueue queue = this.bundleEventQueue;
+        if (queue != null) {
+            queue.add(bundle, type, isUpdate);
+        } else {
+            processBundleEvent(bundle, type, isUpdate);
+        }
+    }
+
+    /**
+     * Loads or unloads the content of the given bundle.
+     *
+     * @param bundle The bundle whose state changed
+     * @param type Either <code>BundleEvent.RESOLVED</code> or <code>BundleEvent.UNINSTALLED</code>
+     * @param isUpdate Whether the bundle has been updated before being resolved
+     */
+    private synchronized void processBundleEvent(final Bundle bundle, final int type, final boolean isUpdate) {
+        if (this.bundleContentLoader == null) {
+            return;
+        }
+
+        Session session = null;
+        if (type == BundleEvent.RESOLVED) {
+            try {
+                session = this.getSession();
+                bundleContentLoader.registerBundle(session, bundle, isUpdate);
+            } catch (Exception t) {
+                log.error(
+                        "bundleChanged: Problem loading initial content of bundle " + bundle.getSymbolicName() + " ("
+                                + bundle.getBundleId() + ")",
+                        t);
+            } finally {
+                this.ungetSession(session);
+            }
+        } else if (type == BundleEvent.UNINSTALLED) {
+            try {
+                session = this.getSession();
+                bundleContentLoader.unregisterBundle(session, bundle);
+            } catch (Exception t) {
+                log.error(
+                        "bundleChanged: Problem unloading initial content of bundle " + bundle.getSymbolicName() + " ("
+                                + bundle.getBundleId() + ")",
+                        t);
+            } finally {
+                this.ungetSession(session);
+            }
+        }
+        scheduleRetry();
+    }
+
+    /**
+     * Schedules the retry of the delayed bundles for the time their backoff
+     * elapses, replacing any previously scheduled retry.
+     */
+    private synchronized void scheduleRetry() {
+        if (this.bundleContentLoader == null || this.retryScheduler == null) {
+            return;
+        }
+        if (this.scheduledRetry != null) {
+            this.scheduledRetry.cancel(false);
+            this.scheduledRetry = null;
+        }
+        final long nextRetryTime = this.bundleContentLoader.getNextRetryTime();
+        if (nextRetryTime >= 0) {
+            final long delay = Math.max(0, nextRetryTime - System.currentTimeMillis());
+            this.scheduledRetry = this.retryScheduler.schedule(this::retryDelayedBundles, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Retries the delayed bundles, called by the scheduler.
+     */
+    private synchronized void retryDelayedBundles() {
+        if (this.bundleContentLoader == null) {
+            return;
+        }
+        Session session = null;
+        try {
+            session = this.getSession();
+            bundleContentLoader.retryDelayedBundles(session);
+        } catch (Exception t) {
+            log.error("Problem loading initial content of delayed bundles", t);
+        } finally {
+            this.ungetSession(session);
+        }
+        scheduleRetry();
+    }
+
     // ---------- Implementation helpers --------------------------------------
 
     /** Returns the MIME type from the MimeTypeService for the given name */
@@ -271,7 +398,29 @@ public class BundleContentLoaderListener
     @Activate
     protected synchronized void activate(BundleContext bundleContext, BundleContentLoaderConfiguration configuration) {
         this.slingId = this.settingsService.getSlingId();
+        this.useLeases = configuration.useLeases();
+        this.leaseTimeout = TimeUnit.SECONDS.toMillis(configuration.leaseTimeout());
         this.bundleContentLoader = new BundleContentLoader(this, contentReaderWhiteboard, configuration);
+        if (configuration.asyncBundleEvents()) {
+            this.bundleEventQueue = new BundleEventQueue(
+                    event -> processBundleEvent(event.getBundle(), event.getType(), event.isUpdate()));
+        }
+
+        this.retryScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "Sling ContentLoader Delayed Bundle Retry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (useLeases) {
+            this.leaseRenewer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                final Thread thread = new Thread(runnable, "Sling ContentLoader Lease Renewal");
+                thread.setDaemon(true);
+                return thread;
+            });
+            final long renewalPeriod = Math.max(leaseTimeout / 3, 1);
+            this.leaseRenewer.scheduleAtFixedRate(
+                    this::renewLeases, renewalPeriod, renewalPeriod, TimeUnit.MILLISECONDS);
+        }
 
         bundleContext.addBundleListener(this);
         // start listening for new ContentReader components
@@ -284,18 +433,47 @@ public class BundleContentLoaderListener
             log.debug("Activated - attempting to load content from all "
                     + "bundles which are neither INSTALLED nor UNINSTALLED");
 
+            if (useLeases) {
+                reapExpiredLeases(session);
+            }
+            bundleContentLoader.setLoadedContentSnapshot(readLoadedContentSnapshot(session));
+
             int ignored = 0;
             Bundle[] bundles = bundleContext.getBundles();
+            final List<Bundle> candidates = new ArrayList<>(bundles.length);
             for (Bundle bundle : bundles) {
                 if ((bundle.getState() & (Bundle.INSTALLED | Bundle.UNINSTALLED)) == 0) {
                     // load content for bundles which are neither INSTALLED nor
                     // UNINSTALLED
-                    loadBundle(bundle, session);
+                    candidates.add(bundle);
                 } else {
                     ignored++;
                 }
             }
 
+            final int startupThreads = configuration.startupThreads();
+            if (startupThreads > 1 && configuration.startupBatchSize() > 0) {
+                log.info(
+                        "Ignoring startup batch size {} as initial content is loaded using {} startup threads",
+                        configuration.startupBatchSize(),
+                        startupThreads);
+            }
+            if (startupThreads > 1 && candidates.size() > 1) {
+                loadBundlesInParallel(candidates, startupThreads, session);
+            } else {
+                final int startupBatchSize = configuration.startupBatchSize();
+                if (startupBatchSize > 0) {
+                    bundleContentLoader.startBatch(session, startupBatchSize);
+                }
+                try {
+                    for (Bundle bundle : candidates) {
+                        loadBundle(bundle, session);
+                    }
+                } finally {
+                    bundleContentLoader.finishBatch();
+                }
+            }
+
             log.debug(
                     "Out of {} bundles, {} were not in a suitable state for initial content loading",
                     bundles.length,
@@ -307,8 +485,83 @@ public class BundleContentLoaderListener
                             + " registering mappings for existing bundles",
                     t);
         } finally {
+            // the snapshot is only valid while this component is activated
+            bundleContentLoader.setLoadedContentSnapshot(null);
             this.ungetSession(session);
         }
+        scheduleRetry();
+    }
+
+    /**
+     * Reads the time the content has been loaded for all bundles whose content
+     * is loaded and which are currently not locked, with a single traversal of
+     * the bundle content nodes.
+     *
+     * @param session the session to read the metadata
+     * @return map of bundle symbolic names to the time their content has been loaded
+     *      or <code>null</code> if the metadata cannot be read
+     */
+    private @Nullable Map<String, Long> readLoadedContentSnapshot(final Session session) {
+        final Map<String, Long> loadedAt = new HashMap<>();
+        final long now = System.currentTimeMillis();
+        try {
+            final NodeIterator nodes = session.getNode(BUNDLE_CONTENT_NODE).getNodes();
+            while (nodes.hasNext()) {
+                final Node bcNode = nodes.nextNode();
+                if (bcNode.hasProperty(PROPERTY_CONTENT_LOADED)
+                        && bcNode.getProperty(PROPERTY_CONTENT_LOADED).getBoolean()
+                        && bcNode.hasProperty(PROPERTY_CONTENT_LOADED_AT)
+                        && !bcNode.isLocked()
+                        && !isLeased(bcNode, now)) {
+                    loadedAt.put(
+                            bcNode.getName(),
+                            bcNode.getProperty(PROPERTY_CONTENT_LOADED_AT)
+                                    .getDate()
+                                    .getTimeInMillis());
+                }
+            }
+        } catch (RepositoryException re) {
+            log.warn("Unable to read bundle content info of all bundles, reading it per bundle instead", re);
+            return null;
+        }
+        log.debug("Content of {} bundles has already been loaded", loadedAt.size());
+        return Collections.unmodifiableMap(loadedAt);
+    }
+
+    /**
+     * Removes all expired leases, for example left behind by a crashed instance,
+     * with a single save.
+     *
+     * @param session the session to write the metadata
+     */
+    private void reapExpiredLeases(final Session session) {
+        final long now = System.currentTimeMillis();
+        try {
+            final NodeIterator nodes = session.getNode(BUNDLE_CONTENT_NODE).getNodes();
+            while (nodes.hasNext()) {
+                final Node bcNode = nodes.nextNode();
+                if (bcNode.hasProperty(PROPERTY_LEASE_EXPIRES) && !isLeased(bcNode, now)) {
+                    log.info(
+                            "Removing expired lease of {} on {}",
+                            bcNode.hasProperty(PROPERTY_LEASE_OWNER)
+                                    ? bcNode.getProperty(PROPERTY_LEASE_OWNER).getString()
+                                    : null,
+                            bcNode.getPath());
+                    removeLease(bcNode);
+                }
+            }
+            if (session.hasPendingChanges()) {
+                session.save();
+            }
+        } catch (RepositoryException re) {
+            // another instance may be reaping or taking over the same leases
+            log.warn("Unable to remove expired leases: {}", re.getMessage());
+            try {
+                session.refresh(false);
+            } catch (RepositoryException e) {
+                log.warn("Unable to discard changes", e);
+            }
+        }
     }
 
     private void loadBundle(Bundle bundle, Session session) throws RepositoryException {
@@ -326,6 +579,86 @@ public class BundleContentLoaderListener
         }
     }
 
+    /**
+     * Loads the content of the given bundles using a pool of worker threads, each
+     * with its own session. Bundles which could not be loaded by the workers are
+     * delayed and retried sequentially on the given session afterwards.
+     */
+    private void loadBundlesInParallel(final List<Bundle> bundles, final int threads, final Session session)
+            throws RepositoryException {
+        final int workers = Math.min(threads, bundles.size());
+        log.debug("Loading initial content of {} bundles using {} threads", bundles.size(), workers);
+
+        final boolean[] processed = new boolean[bundles.size()];
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicInteger threadCounter = new AtomicInteger();
+        final ExecutorService executor = Executors.newFixedThreadPool(workers, runnable -> {
+            final Thread thread =
+                    new Thread(runnable, "Sling ContentLoader Startup Worker #" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            final List<Future<?>> futures = new ArrayList<>(workers);
+            for (int i = 0; i < workers; i++) {
+                futures.add(executor.submit(() -> loadBundles(bundles, next, processed)));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException ee) {
+                    log.error("Problem while loading initial content of bundles in parallel", ee.getCause());
+                }
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            log.warn("Interrupted while loading initial content of bundles in parallel", ie);
+            return;
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // final sequential pass for the bundles the workers did not get to
+        // and for the bundles which have been delayed by the workers
+        for (int i = 0; i < processed.length; i++) {
+            if (!processed[i]) {
+                loadBundle(bundles.get(i), session);
+            }
+        }
+        bundleContentLoader.retryDelayedBundles(session);
+    }
+
+    /**
+     * Worker loop taking the next unprocessed bundle until all bundles have been
+     * processed.
+     */
+    private void loadBundles(final List<Bundle> bundles, final AtomicInteger next, final boolean[] processed) {
+        Session session = null;
+        try {
+            session = this.getSession();
+            for (int i = next.getAndIncrement(); i < bundles.size(); i = next.getAndIncrement()) {
+                final Bundle bundle = bundles.get(i);
+                processed[i] = true;
+                try {
+                    bundleContentLoader.registerBundleConcurrently(session, bundle);
+                } catch (Exception t) {
+                    log.error(
+                            "Problem loading initial content of bundle " + bundle.getSymbolicName() + " ("
+                                    + bundle.getBundleId() + ")",
+                            t);
+                } finally {
+                    if (session.hasPendingChanges()) {
+                        session.refresh(false);
+                    }
+                }
+            }
+        } catch (RepositoryException re) {
+            log.error("Problem while loading initial content of bundles in parallel", re);
+        } finally {
+            this.ungetSession(session);
+        }
+    }
+
     /** Deactivates this component, called by SCR to take out of service */
     @Deactivate
     protected synchronized void deactivate(BundleContext bundleContext) {
@@ -333,6 +666,33 @@ public class BundleContentLoaderListener
         // stop listening for new ContentReader components
         contentReaderWhiteboard.removeListener();
 
+        if (this.retryScheduler != null) {
+            this.retryScheduler.shutdownNow();
+            this.retryScheduler = null;
+            this.scheduledRetry = null;
+        }
+
+        if (this.leaseRenewer != null) {
+            this.leaseRenewer.shutdownNow();
+            this.leaseRenewer = null;
+        }
+
+        if (this.bundleEventQueue != null) {
+            int discarded = 0;
+            for (BundleEventQueue.Event event : this.bundleEventQueue.close()) {
+                // resolved bundles are loaded on the next activation, uninstalled ones would not be unloaded
+                if (event.getType() == BundleEvent.UNINSTALLED) {
+                    processBundleEvent(event.getBundle(), event.getType(), event.isUpdate());
+                } else {
+                    discarded++;
+                }
+            }
+            if (discarded > 0) {
+                log.info("Discarded {} pending bundle events on deactivation", discarded);
+            }
+            this.bundleEventQueue = null;
+        }
+
         if (this.bundleContentLoader != null) {
             this.bundleContentLoader.dispose();
             this.bundleContentLoader = null;
@@ -362,6 +722,15 @@ public class BundleContentLoaderListener
         return getRepository().loginService(null, workspace);
     }
 
+    /**
+     * Returns the number of bundle events waiting to be processed asynchronously.
+     */
+    @Override
+    public int getPendingBundleEvents() {
+        final BundleEventQueue queue = this.bundleEventQueue;
+        return queue != null ? queue.size() : 0;
+    }
+
     /**
      * Return the administrative session and close it.
      */
@@ -394,6 +763,7 @@ public class BundleContentLoaderListener
             }
             try {
                 final Node bcNode = parentNode.addNode(nodeName, "nt:unstructured");
+                // lockable in lease mode as well, to allow switching back to JCR locks
                 bcNode.addMixin("mix:lockable");
                 session.save();
             } catch (RepositoryException re) {
@@ -408,18 +778,27 @@ public class BundleContentLoaderListener
                     "Node {}/{} is currently locked, unable to get BundleContentInfo.", BUNDLE_CONTENT_NODE, nodeName);
             return null;
         }
-        try {
-            LockManager lockManager = session.getWorkspace().getLockManager();
-            lockManager.lock(
-                    bcNode.getPath(),
-                    false, // isDeep
-                    true, // isSessionScoped
-                    Long.MAX_VALUE, // timeoutHint
-                    null); // ownerInfo
-        } catch (LockException le) {
-            this.log.debug(
-                    "Unable to lock node {}/{}, unable to get BundleContentInfo.", BUNDLE_CONTENT_NODE, nodeName, le);
-            return null;
+        if (useLeases) {
+            if (!acquireLease(session, bcNode)) {
+                return null;
+            }
+        } else {
+            try {
+                LockManager lockManager = session.getWorkspace().getLockManager();
+                lockManager.lock(
+                        bcNode.getPath(),
+                        false, // isDeep
+                        true, // isSessionScoped
+                        Long.MAX_VALUE, // timeoutHint
+                        null); // ownerInfo
+            } catch (LockException le) {
+                this.log.debug(
+                        "Unable to lock node {}/{}, unable to get BundleContentInfo.",
+                        BUNDLE_CONTENT_NODE,
+                        nodeName,
+                        le);
+                return null;
+            }
         }
         final Map<String, Object> info = new HashMap<>();
         if (bcNode.hasProperty(PROPERTY_CONTENT_LOADED_AT)) {
@@ -439,6 +818,11 @@ public class BundleContentLoaderListener
                     PROPERTY_CONTENT_LOADED_BY,
                     bcNode.getProperty(PROPERTY_CONTENT_LOADED_BY).getString());
         }
+        if (bcNode.hasProperty(PROPERTY_CONTENT_DIGEST)) {
+            info.put(
+                    PROPERTY_CONTENT_DIGEST,
+                    bcNode.getProperty(PROPERTY_CONTENT_DIGEST).getString());
+        }
         if (bcNode.hasProperty(PROPERTY_UNINSTALL_PATHS)) {
             final Value[] values = bcNode.getProperty(PROPERTY_UNINSTALL_PATHS).getValues();
             final String[] s = new String[values.length];
@@ -447,6 +831,14 @@ public class BundleContentLoaderListener
             }
             info.put(PROPERTY_UNINSTALL_PATHS, s);
         }
+        if (bcNode.hasProperty(PROPERTY_ENTRY_DIGESTS)) {
+            final Value[] values = bcNode.getProperty(PROPERTY_ENTRY_DIGESTS).getValues();
+            final String[] s = new String[values.length];
+            for (int i = 0; i < values.length; i++) {
+                s[i] = values[i].getString();
+            }
+            info.put(PROPERTY_ENTRY_DIGESTS, s);
+        }
         return info;
     }
 
@@ -454,22 +846,187 @@ public class BundleContentLoaderListener
     public void unlockBundleContentInfo(
             final Session session, final Bundle bundle, final boolean contentLoaded, final List<String> createdNodes)
             throws RepositoryException {
+        unlockBundleContentInfo(session, bundle, contentLoaded, createdNodes, null);
+    }
+
+    @Override
+    public void unlockBundleContentInfo(
+            final Session session,
+            final Bundle bundle,
+            final boolean contentLoaded,
+            final List<String> createdNodes,
+            final String contentDigest)
+            throws RepositoryException {
+        unlockBundleContentInfo(session, bundle, contentLoaded, createdNodes, contentDigest, null);
+    }
+
+    @Override
+    public void unlockBundleContentInfo(
+            final Session session,
+            final Bundle bundle,
+            final boolean contentLoaded,
+            final List<String> createdNodes,
+            final String contentDigest,
+            final String[] entryDigests)
+            throws RepositoryException {
         final String nodeName = bundle.getSymbolicName();
         final Node parentNode = (Node) session.getItem(BUNDLE_CONTENT_NODE);
         final Node bcNode = parentNode.getNode(nodeName);
-        if (contentLoaded) {
-            bcNode.setProperty(PROPERTY_CONTENT_LOADED, contentLoaded);
-            bcNode.setProperty(PROPERTY_CONTENT_LOADED_AT, Calendar.getInstance());
-            bcNode.setProperty(PROPERTY_CONTENT_LOADED_BY, this.slingId);
-            bcNode.setProperty(PROPERTY_CONTENT_UNLOADED_AT, (String) null);
-            bcNode.setProperty(PROPERTY_CONTENT_UNLOADED_BY, (String) null);
-            if (createdNodes != null && !createdNodes.isEmpty()) {
-                bcNode.setProperty(PROPERTY_UNINSTALL_PATHS, createdNodes.toArray(new String[createdNodes.size()]));
+        if (useLeases) {
+            // the content info is only recorded while the lease is still held by this instance
+            if (releaseLease(session, bcNode) && contentLoaded) {
+                setContentLoaded(bcNode, createdNodes, contentDigest, entryDigests);
+            }
+            if (session.hasPendingChanges()) {
+                session.save();
+            }
+        } else {
+            if (contentLoaded) {
+                setContentLoaded(bcNode, createdNodes, contentDigest, entryDigests);
             }
+            if (contentLoaded) {
+                session.save();
+            }
+            LockManager lockManager = session.getWorkspace().getLockManager();
+            lockManager.unlock(bcNode.getPath());
+        }
+    }
+
+    @Override
+    public void markContentLoaded(
+            final Session session,
+            final Bundle bundle,
+            final List<String> createdNodes,
+            final String contentDigest,
+            final String[] entryDigests)
+            throws RepositoryException {
+        final Node parentNode = (Node) session.getItem(BUNDLE_CONTENT_NODE);
+        setContentLoaded(parentNode.getNode(bundle.getSymbolicName()), createdNodes, contentDigest, entryDigests);
+    }
+
+    private void setContentLoaded(
+            final Node bcNode, final List<String> createdNodes, final String contentDigest, final String[] entryDigests)
+            throws RepositoryException {
+        bcNode.setProperty(PROPERTY_CONTENT_LOADED, true);
+        bcNode.setProperty(PROPERTY_CONTENT_LOADED_AT, Calendar.getInstance());
+        bcNode.setProperty(PROPERTY_CONTENT_LOADED_BY, this.slingId);
+        bcNode.setProperty(PROPERTY_CONTENT_UNLOADED_AT, (String) null);
+        bcNode.setProperty(PROPERTY_CONTENT_UNLOADED_BY, (String) null);
+        if (createdNodes != null && !createdNodes.isEmpty()) {
+            bcNode.setProperty(PROPERTY_UNINSTALL_PATHS, createdNodes.toArray(new String[createdNodes.size()]));
+        }
+        bcNode.setProperty(PROPERTY_CONTENT_DIGEST, contentDigest);
+        bcNode.setProperty(PROPERTY_ENTRY_DIGESTS, entryDigests);
+    }
+
+    /**
+     * Acquires the lease on the bundle content node unless another session holds
+     * a lease which has not expired yet. Acquiring the lease is a single save,
+     * concurrent attempts to acquire the same lease fail with a conflict on save.
+     *
+     * @return <code>true</code> if the lease has been acquired
+     */
+    private boolean acquireLease(final Session session, final Node bcNode) throws RepositoryException {
+        final String nodeName = bcNode.getName();
+        final long now = System.currentTimeMillis();
+        if (isLeased(bcNode, now)) {
+            this.log.debug(
+                    "Node {}/{} is currently leased by {}, unable to get BundleContentInfo.",
+                    BUNDLE_CONTENT_NODE,
+                    nodeName,
+                    bcNode.hasProperty(PROPERTY_LEASE_OWNER)
+                            ? bcNode.getProperty(PROPERTY_LEASE_OWNER).getString()
+                            : null);
+            return false;
+        }
+        final String token = UUID.randomUUID().toString();
+        final Calendar expires = Calendar.getInstance();
+        expires.setTimeInMillis(now + leaseTimeout);
+        try {
+            bcNode.setProperty(PROPERTY_LEASE_OWNER, this.slingId);
+            bcNode.setProperty(PROPERTY_LEASE_TOKEN, token);
+            bcNode.setProperty(PROPERTY_LEASE_EXPIRES, expires);
             session.save();
+        } catch (RepositoryException re) {
+            // for concurrency issues (running in a cluster) we just give up
+            this.log.debug(
+                    "Unable to lease node {}/{}, unable to get BundleContentInfo.", BUNDLE_CONTENT_NODE, nodeName, re);
+            session.refresh(false);
+            return false;
+        }
+        leaseTokens.put(nodeName, token);
+        return true;
+    }
+
+    /**
+     * Removes the lease from the bundle content node if it is still the lease
+     * acquired by this instance. The change is not saved.
+     *
+     * @return <code>true</code> if the lease was still held by this instance
+     */
+    private boolean releaseLease(final Session session, final Node bcNode) throws RepositoryException {
+        final String token;
+        synchronized (leaseTokens) {
+            // waits for a running renewal, the lease is not renewed afterwards
+            token = leaseTokens.remove(bcNode.getName());
+        }
+        // see renewals and take-overs saved by other sessions, keeping the pending changes
+        session.refresh(true);
+        if (token != null
+                && bcNode.hasProperty(PROPERTY_LEASE_TOKEN)
+                && token.equals(bcNode.getProperty(PROPERTY_LEASE_TOKEN).getString())) {
+            removeLease(bcNode);
+            return true;
+        }
+        this.log.warn("Lease on {} has expired and has been taken over in the meantime", bcNode.getPath());
+        return false;
+    }
+
+    /**
+     * Extends the leases held by this instance, with a session of its own as
+     * the sessions holding the leases are busy installing content.
+     */
+    void renewLeases() {
+        if (leaseTokens.isEmpty()) {
+            return;
         }
-        LockManager lockManager = session.getWorkspace().getLockManager();
-        lockManager.unlock(bcNode.getPath());
+        Session session = null;
+        try {
+            session = this.getSession();
+            final Node parentNode = (Node) session.getItem(BUNDLE_CONTENT_NODE);
+            synchronized (leaseTokens) {
+                final Calendar expires = Calendar.getInstance();
+                expires.setTimeInMillis(System.currentTimeMillis() + leaseTimeout);
+                for (final Map.Entry<String, String> lease : leaseTokens.entrySet()) {
+                    final Node bcNode = parentNode.hasNode(lease.getKey()) ? parentNode.getNode(lease.getKey()) : null;
+                    if (bcNode != null
+                            && bcNode.hasProperty(PROPERTY_LEASE_TOKEN)
+                            && lease.getValue()
+                                    .equals(bcNode.getProperty(PROPERTY_LEASE_TOKEN)
+                                            .getString())) {
+                        bcNode.setProperty(PROPERTY_LEASE_EXPIRES, expires);
+                    }
+                }
+                if (session.hasPendingChanges()) {
+                    session.save();
+                }
+            }
+        } catch (RepositoryException re) {
+            this.log.warn("Unable to renew leases: {}", re.getMessage());
+        } finally {
+            this.ungetSession(session);
+        }
+    }
+
+    private static boolean isLeased(final Node bcNode, final long now) throws RepositoryException {
+        return bcNode.hasProperty(PROPERTY_LEASE_EXPIRES)
+                && bcNode.getProperty(PROPERTY_LEASE_EXPIRES).getDate().getTimeInMillis() > now;
+    }
+
+    private static void removeLease(final Node bcNode) throws RepositoryException {
+        bcNode.setProperty(PROPERTY_LEASE_OWNER, (String) null);
+        bcNode.setProperty(PROPERTY_LEASE_TOKEN, (String) null);
+        bcNode.setProperty(PROPERTY_LEASE_EXPIRES, (Calendar) null);
     }
 
     @Override
@@ -483,6 +1040,8 @@ public class BundleContentLoaderListener
                 bcNode.setProperty(PROPERTY_CONTENT_UNLOADED_AT, Calendar.getInstance());
                 bcNode.setProperty(PROPERTY_CONTENT_UNLOADED_BY, this.slingId);
                 bcNode.setProperty(PROPERTY_UNINSTALL_PATHS, (String[]) null);
+                bcNode.setProperty(PROPERTY_CONTENT_DIGEST, (String) null);
+                bcNode.setProperty(PROPERTY_ENTRY_DIGESTS, (String[]) null);
                 session.save();
             }
         } catch (RepositoryException re) {
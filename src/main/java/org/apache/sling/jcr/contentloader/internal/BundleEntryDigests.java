@@ -0,0 +1,118 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.contentloader.internal;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The <code>BundleEntryDigests</code> keeps track of the digests of the
+ * individual entries of a bundle whose content is loaded, compared to the
+ * digests recorded when the content has been loaded before. The digests are
+ * stored as strings of the digest, a blank and the entry path.
+ * <p>
+ * As the content of unchanged entries is not loaded again, the uninstall paths
+ * recorded for that content before are kept as well.
+ */
+final class BundleEntryDigests {
+
+    private final String header;
+
+    private final Map<String, String> loaded = new HashMap<>();
+
+    private final Map<String, String> current = new TreeMap<>();
+
+    private final String[] loadedUninstallPaths;
+
+    /**
+     * @param header the initial content header of the bundle, which is part of every digest
+     * @param loadedDigests the digests recorded when the content has been loaded before or <code>null</code>
+     * @param loadedUninstallPaths the uninstall paths recorded when the content has been loaded before or <code>null</code>
+     */
+    BundleEntryDigests(final String header, final String[] loadedDigests, final String[] loadedUninstallPaths) {
+        this.header = header;
+        this.loadedUninstallPaths = loadedUninstallPaths;
+        if (loadedDigests != null) {
+            for (final String loadedDigest : loadedDigests) {
+                final int pos = loadedDigest.indexOf(' ');
+                if (pos > 0) {
+                    loaded.put(loadedDigest.substring(pos + 1), loadedDigest.substring(0, pos));
+                }
+            }
+        }
+    }
+
+    /**
+     * Computes and records the digest of the given entry.
+     *
+     * @return <code>true</code> if the digest is the same as when the content has been loaded before
+     * @throws IOException if the entry cannot be read
+     */
+    boolean isUnchanged(final String entry, final URL url) throws IOException {
+        final String digest = BundleContentDigest.computeEntry(header, url);
+        current.put(entry, digest);
+        return digest.equals(loaded.get(entry));
+    }
+
+    /**
+     * Keeps the digests recorded before for the entries below the given path,
+     * which are not loaded again.
+     */
+    void keepLoaded(final String path) {
+        final String prefix = path.startsWith("/") ? path.substring(1) : path;
+        loaded.forEach((entry, digest) -> {
+            if (entry.equals(prefix)
+                    || (entry.startsWith(prefix) && (prefix.endsWith("/") || entry.charAt(prefix.length()) == '/'))) {
+                current.putIfAbsent(entry, digest);
+            }
+        });
+    }
+
+    /**
+     * Adds the uninstall paths recorded before for the given node and its
+     * descendants, which are not loaded again, to the list of created nodes.
+     *
+     * @param nodePath the node path prefixed with the workspace name
+     * @param createdNodes the list of created nodes or <code>null</code> if the content is not uninstalled
+     */
+    void keepUninstallPaths(final String nodePath, final List<String> createdNodes) {
+        if (createdNodes == null || loadedUninstallPaths == null) {
+            return;
+        }
+        for (final String uninstallPath : loadedUninstallPaths) {
+            if ((uninstallPath.equals(nodePath) || uninstallPath.startsWith(nodePath + '/'))
+                    && !createdNodes.contains(uninstallPath)) {
+                createdNodes.add(uninstallPath);
+            }
+        }
+    }
+
+    /**
+     * Returns the recorded digests of the entries in the stored format.
+     */
+    String[] toArray() {
+        return current.entrySet().stream()
+                .map(e -> e.getValue() + ' ' + e.getKey())
+                .toArray(String[]::new);
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.contentloader.internal;
+
+import java.io.File;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.osgi.framework.Bundle;
+
+/**
+ * The <code>BundleEntryIndex</code> is an in-memory trie of all entries of a
+ * bundle below the path of a path entry. It is built by listing every
+ * directory once, so that checking for node descriptors and <code>ROOT</code>
+ * files does not need to look up each possible file name in the bundle.
+ * <p>
+ * Entry paths are used as returned by {@link Bundle#getEntryPaths(String)},
+ * i.e. relative to the bundle root and with a trailing slash for directories.
+ */
+final class BundleEntryIndex {
+
+    /**
+     * The location prefix of bundles installed from a URL without copying it,
+     * which denotes a directory for exploded bundles.
+     */
+    private static final String REFERENCE_PREFIX = "reference:";
+
+    private final Bundle bundle;
+
+    private final String rootPath;
+
+    private final EntryNode root;
+
+    private final File directory;
+
+    private BundleEntryIndex(final Bundle bundle, final String rootPath, final EntryNode root) {
+        this.bundle = bundle;
+        this.rootPath = rootPath;
+        this.root = root;
+        this.directory = getDirectory(bundle);
+    }
+
+    /**
+     * Builds the index of the entries at and below the given path.
+     *
+     * @param bundle the bundle containing the entries
+     * @param path the path of the path entry
+     * @return the index, which is empty if there is no entry at the path
+     */
+    static BundleEntryIndex build(final Bundle bundle, final String path) {
+        final String rootPath = normalize(path);
+        final EntryNode root;
+        final Enumeration<String> entries = bundle.getEntryPaths(path);
+        if (entries != null) {
+            root = new EntryNode();
+            addChildren(bundle, root, entries);
+        } else if (bundle.getEntry(path) != null) {
+            root = new EntryNode();
+        } else {
+            root = null;
+        }
+        return new BundleEntryIndex(bundle, rootPath, root);
+    }
+
+    private static void addChildren(final Bundle bundle, final EntryNode parent, final Enumeration<String> entries) {
+        parent.children = new LinkedHashMap<>();
+        while (entries.hasMoreElements()) {
+            final String entry = entries.nextElement();
+            final EntryNode node = new EntryNode();
+            node.path = entry;
+            parent.children.put(getName(entry), node);
+            if (entry.endsWith("/")) {
+                final Enumeration<String> children = bundle.getEntryPaths(entry);
+                if (children != null) {
+                    addChildren(bundle, node, children);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the paths of the entries in the given directory.
+     *
+     * @param directory the path of the directory
+     * @return the entry paths or <code>null</code> if there is no such directory
+     *         or it is empty, like {@link Bundle#getEntryPaths(String)}
+     */
+    List<String> getChildren(final String directory) {
+        final EntryNode node = find(directory);
+        if (node == null || node.children == null) {
+            return null;
+        }
+        final List<String> paths = new ArrayList<>(node.children.size());
+        for (final EntryNode child : node.children.values()) {
+            paths.add(child.path);
+        }
+        return paths;
+    }
+
+    /**
+     * Returns the URL of the given entry. Entries below the path the index has
+     * been built for are only looked up in the bundle if they exist.
+     *
+     * @param entry the path of the entry
+     * @return the URL or <code>null</code> if there is no such entry
+     */
+    URL getEntry(final String entry) {
+        if (!isIndexed(entry)) {
+            // entries next to the path entry, e.g. descriptors of a single file
+            return bundle.getEntry(entry);
+        }
+        return find(entry) != null ? bundle.getEntry(entry) : null;
+    }
+
+    /**
+     * Returns the URL of the file of the given entry URL if the bundle is
+     * installed from a directory, so that archives are read from the local file
+     * system.
+     *
+     * @param url the URL of an entry of the bundle
+     * @return the <code>file:</code> URL of the entry or the given URL if the
+     *         entry is not a file of an exploded bundle
+     */
+    URL toLocalUrl(final URL url) {
+        if (directory != null) {
+            final File file = new File(directory, url.getPath());
+            if (file.isFile()) {
+                try {
+                    return file.toURI().toURL();
+                } catch (MalformedURLException e) {
+                    // read from the bundle
+                }
+            }
+        }
+        return url;
+    }
+
+    private static File getDirectory(final Bundle bundle) {
+        final String location = bundle.getLocation();
+        if (location == null || !location.startsWith(REFERENCE_PREFIX + "file:")) {
+            return null;
+        }
+        final String fileUrl = location.substring(REFERENCE_PREFIX.length());
+        File file;
+        try {
+            file = new File(URI.create(fileUrl));
+        } catch (IllegalArgumentException e) {
+            // locations are not required to be encoded
+            file = new File(fileUrl.substring("file:".length()));
+        }
+        return file.isDirectory() ? file : null;
+    }
+
+    private boolean isIndexed(final String entry) {
+        final String normalized = normalize(entry);
+        return rootPath.isEmpty()
+                || normalized.equals(rootPath)
+                || (normalized.startsWith(rootPath) && normalized.charAt(rootPath.length()) == '/');
+    }
+
+    private EntryNode find(final String entry) {
+        final String normalized = normalize(entry);
+        if (root == null || !isIndexed(normalized)) {
+            return null;
+        }
+        EntryNode node = root;
+        if (normalized.length() > rootPath.length()) {
+            final String relPath = normalized.substring(rootPath.isEmpty() ? 0 : rootPath.length() + 1);
+            int start = 0;
+            while (node != null && start <= relPath.length()) {
+                int end = relPath.indexOf('/', start);
+                if (end < 0) {
+                    end = relPath.length();
+                }
+                if (node.children == null) {
+                    return null;
+                }
+                final String name = relPath.substring(start, end);
+                node = node.children.get(name);
+                if (node == null) {
+                    return null;
+                }
+                start = end + 1;
+            }
+        }
+        return node;
+    }
+
+    private static String getName(final String entry) {
+        final String normalized = normalize(entry);
+        return normalized.substring(normalized.lastIndexOf('/') + 1);
+    }
+
+    private static String normalize(final String path) {
+        int start = 0;
+        int end = path.length();
+        while (start < end && path.charAt(start) == '/') {
+            start++;
+        }
+        while (end > start && path.charAt(end - 1) == '/') {
+            end--;
+        }
+        return path.substring(start, end);
+    }
+
+    private static final class EntryNode {
+
+        private String path;
+
+        private Map<String, EntryNode> children;
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.contentloader.internal;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+import org.osgi.framework.Bundle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The <code>BundleEventQueue</code> processes bundle events on a single
+ * dedicated thread, so that the thread delivering the bundle event is not
+ * blocked by the content installation.
+ * <p>
+ * Events are processed in the order in which they were added, which also keeps
+ * the ordering per bundle symbolic name. An event for a bundle is merged into
+ * the last pending event for the same bundle symbolic name if both are of the
+ * same type, as processing it twice would not change the outcome.
+ */
+class BundleEventQueue {
+
+    private final Logger log = LoggerFactory.getLogger(BundleEventQueue.class);
+
+    private final Consumer<Event> processor;
+
+    private final ExecutorService executor;
+
+    /** pending events in the order they will be processed */
+    private final Deque<Event> events = new ArrayDeque<>();
+
+    /** the last pending event per bundle symbolic name */
+    private final Map<String, Event> lastPendingEvents = new HashMap<>();
+
+    /** whether a drain task has been scheduled on the executor */
+    private boolean draining;
+
+    /** the number of events currently being processed */
+    private int active;
+
+    BundleEventQueue(final Consumer<Event> processor) {
+        this.processor = processor;
+        this.executor = Executors.newSingleThreadExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "Sling ContentLoader Bundle Event Worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Adds an event to the queue, merging it into the last pending event
+     * for the same bundle symbolic name if that has the same type.
+     *
+     * @param bundle the bundle whose state changed
+     * @param type the <code>BundleEvent</code> type
+     * @param isUpdate whether the bundle has been updated
+     */
+    synchronized void add(final Bundle bundle, final int type, final boolean isUpdate) {
+        final String name = bundle.getSymbolicName();
+        final Event last = lastPendingEvents.get(name);
+        if (last != null && last.type == type) {
+            log.debug("Coalescing bundle event {} for bundle {}", type, name);
+            last.bundle = bundle;
+            last.isUpdate |= isUpdate;
+            return;
+        }
+        final Event event = new Event(bundle, type, isUpdate);
+        events.add(event);
+        lastPendingEvents.put(name, event);
+        if (!draining) {
+            draining = true;
+            executor.execute(this::drain);
+        }
+    }
+
+    /**
+     * Returns the number of events which are pending or currently being processed.
+     */
+    synchronized int size() {
+        return events.size() + active;
+    }
+
+    /**
+     * Stops processing events, removing all pending ones. An event currently
+     * being processed is completed.
+     *
+     * @return the pending events which have not been processed, in order
+     */
+    synchronized List<Event> close() {
+        final List<Event> pending = new ArrayList<>(events);
+        events.clear();
+        lastPendingEvents.clear();
+        executor.shutdown();
+        return pending;
+    }
+
+    private void drain() {
+        while (true) {
+            final Event event;
+            synchronized (this) {
+                event = events.poll();
+                if (event == null) {
+                    draining = false;
+                    return;
+                }
+                lastPendingEvents.remove(event.bundle.getSymbolicName(), event);
+                active++;
+            }
+            try {
+                processor.accept(event);
+            } catch (Exception e) {
+                log.error("Problem processing bundle event for bundle " + event.bundle.getSymbolicName(), e);
+            } finally {
+                synchronized (this) {
+                    active--;
+                }
+            }
+        }
+    }
+
+    /**
+     * A pending bundle event.
+     */
+    static final class Event {
+
+        private Bundle bundle;
+
+        private final int type;
+
+        private boolean isUpdate;
+
+        Event(final Bundle bundle, final int type, final boolean isUpdate) {
+            this.bundle = bundle;
+            this.type = type;
+            this.isUpdate = isUpdate;
+        }
+
+        Bundle getBundle() {
+            return bundle;
+        }
+
+        int getType() {
+            return type;
+        }
+
+        boolean isUpdate() {
+            return isUpdate;
+        }
+    }
+}
@@ -33,6 +33,40 @@ public interface BundleHelper extends ContentHelper {
     void unlockBundleContentInfo(Session session, Bundle bundle, boolean contentLoaded, List<String> createdNodes)
             throws RepositoryException;
 
+    /**
+     * Unlocks the bundle content info, additionally recording the digest of the
+     * loaded content if the content has been loaded.
+     */
+    default void unlockBundleContentInfo(
+            Session session, Bundle bundle, boolean contentLoaded, List<String> createdNodes, String contentDigest)
+            throws RepositoryException {
+        unlockBundleContentInfo(session, bundle, contentLoaded, createdNodes);
+    }
+
+    /**
+     * Unlocks the bundle content info, additionally recording the digests of the
+     * loaded content and of its entries if the content has been loaded.
+     */
+    default void unlockBundleContentInfo(
+            Session session,
+            Bundle bundle,
+            boolean contentLoaded,
+            List<String> createdNodes,
+            String contentDigest,
+            String[] entryDigests)
+            throws RepositoryException {
+        unlockBundleContentInfo(session, bundle, contentLoaded, createdNodes, contentDigest);
+    }
+
+    /**
+     * Records that the content of the bundle has been loaded on the locked
+     * bundle content info, without saving the session and without unlocking
+     * the bundle content info.
+     */
+    void markContentLoaded(
+            Session session, Bundle bundle, List<String> createdNodes, String contentDigest, String[] entryDigests)
+            throws RepositoryException;
+
     void contentIsUninstalled(Session session, Bundle bundle);
 
     void createRepositoryPath(Session session, String path) throws RepositoryException;
@@ -40,4 +74,11 @@ public interface BundleHelper extends ContentHelper {
     Session getSession() throws RepositoryException;
 
     Session getSession(String workspace) throws RepositoryException;
+
+    /**
+     * Returns the number of bundle events which have not been processed yet.
+     */
+    default int getPendingBundleEvents() {
+        return 0;
+    }
 }
@@ -83,6 +83,10 @@ public class ContentLoaderWebConsolePlugin extends GenericServlet {
         try {
             session = repository.loginService(null, null);
             pw.print("<p class='statline ui-state-highlight'>Apache Sling JCR Content Loader");
+            final int pendingBundleEvents = bundleHelper.getPendingBundleEvents();
+            if (pendingBundleEvents > 0) {
+                pw.print(" - " + pendingBundleEvents + " pending bundle events");
+            }
             pw.print("</p>");
             pw.println("<table class='nicetable'><thead>");
             pw.println(
@@ -25,7 +25,23 @@ package org.apache.sling.jcr.contentloader.internal;
 class ContentReaderUnavailableException extends Exception {
     private static final long serialVersionUID = 1L;
 
+    private final String entry;
+
     public ContentReaderUnavailableException(String message) {
+        this(message, null);
+    }
+
+    public ContentReaderUnavailableException(String message, String entry) {
         super(message);
+        this.entry = entry;
+    }
+
+    /**
+     * Returns the name of the entry for which no content reader is available.
+     *
+     * @return the entry name or <code>null</code> if not known
+     */
+    public String getEntry() {
+        return entry;
     }
 }
@@ -18,6 +18,7 @@
  */
 package org.apache.sling.jcr.contentloader.internal;
 
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
@@ -36,9 +37,12 @@ public class ContentReaderWhiteboard {
 
     private ContentReaderWhiteboardListener listener;
 
-    private Map<String, ContentReader> readersByExtension = new LinkedHashMap<>();
+    // the maps are replaced on every change, so readers always see a consistent snapshot
+    private volatile Map<String, ContentReader> readersByExtension = Collections.emptyMap();
 
-    private Map<String, ContentReader> readersByType = new LinkedHashMap<>();
+    private volatile Map<String, ContentReader> readersByType = Collections.emptyMap();
+
+    private volatile ContentReaders contentReaders = ContentReaders.EMPTY;
 
     public void setListener(ContentReaderWhiteboardListener listener) {
         this.listener = listener;
@@ -56,6 +60,13 @@ public class ContentReaderWhiteboard {
         return readersByType;
     }
 
+    /**
+     * Returns the snapshot of the readers used to look them up by file name.
+     */
+    ContentReaders getContentReaders() {
+        return contentReaders;
+    }
+
     @Reference(
             name = "contentReader",
             service = ContentReader.class,
@@ -64,18 +75,20 @@ public class ContentReaderWhiteboard {
     protected void bindContentReader(final ContentReader operation, final Map<String, Object> properties) {
         final String[] extensions = PropertiesUtil.toStringArray(properties.get(ContentReader.PROPERTY_EXTENSIONS));
         final String[] types = PropertiesUtil.toStringArray(properties.get(ContentReader.PROPERTY_TYPES));
-        if (extensions != null) {
-            synchronized (readersByExtension) {
+        synchronized (this) {
+            if (extensions != null) {
+                final Map<String, ContentReader> readers = new LinkedHashMap<>(readersByExtension);
                 for (final String extension : extensions) {
-                    readersByExtension.put(extension, operation);
+                    readers.put(extension, operation);
                 }
+                setReadersByExtension(readers);
             }
-        }
-        if (types != null) {
-            synchronized (this.readersByType) {
+            if (types != null) {
+                final Map<String, ContentReader> readers = new LinkedHashMap<>(readersByType);
                 for (final String type : types) {
-                    readersByType.put(type, operation);
+                    readers.put(type, operation);
                 }
+                readersByType = Collections.unmodifiableMap(readers);
             }
         }
 
@@ -89,19 +102,26 @@ public class ContentReaderWhiteboard {
     protected void unbindContentReader(final Map<String, Object> properties) {
         final String[] extensions = PropertiesUtil.toStringArray(properties.get(ContentReader.PROPERTY_EXTENSIONS));
         final String[] types = PropertiesUtil.toStringArray(properties.get(ContentReader.PROPERTY_TYPES));
-        if (readersByExtension != null && extensions != null) {
-            synchronized (readersByExtension) {
+        synchronized (this) {
+            if (extensions != null) {
+                final Map<String, ContentReader> readers = new LinkedHashMap<>(readersByExtension);
                 for (final String extension : extensions) {
-                    readersByExtension.remove(extension);
+                    readers.remove(extension);
                 }
+                setReadersByExtension(readers);
             }
-        }
-        if (types != null) {
-            synchronized (readersByType) {
+            if (types != null) {
+                final Map<String, ContentReader> readers = new LinkedHashMap<>(readersByType);
                 for (final String type : types) {
-                    readersByType.remove(type);
+                    readers.remove(type);
                 }
+                readersByType = Collections.unmodifiableMap(readers);
             }
         }
     }
+
+    private void setReadersByExtension(final Map<String, ContentReader> readers) {
+        readersByExtension = Collections.unmodifiableMap(readers);
+        contentReaders = new ContentReaders(readers);
+    }
 }
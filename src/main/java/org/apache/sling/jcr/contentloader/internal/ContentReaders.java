@@ -0,0 +1,110 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.contentloader.internal;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.sling.jcr.contentloader.ContentReader;
+import org.apache.sling.jcr.contentloader.ImportOptions;
+
+/**
+ * The <code>ContentReaders</code> is an immutable snapshot of the registered
+ * content readers, keyed by their file extension including the leading dot.
+ * The <code>.jcr.xml</code> extension of system view imports is always
+ * contained, with a <code>null</code> reader.
+ * <p>
+ * The extensions are kept in a trie of their reversed characters, so that the
+ * longest extension a file name ends with is found by walking the name
+ * backwards once, instead of comparing it with every extension.
+ */
+final class ContentReaders {
+
+    static final ContentReaders EMPTY = new ContentReaders(Collections.emptyMap());
+
+    private final Map<String, ContentReader> readers;
+
+    private final SuffixNode suffixes = new SuffixNode();
+
+    /**
+     * @param readersByExtension the readers keyed by their extension without the leading dot
+     */
+    ContentReaders(final Map<String, ContentReader> readersByExtension) {
+        final Map<String, ContentReader> map = new LinkedHashMap<>();
+        map.put(BaseImportLoader.EXT_JCR_XML, null);
+        readersByExtension.forEach((extension, reader) -> map.put('.' + extension, reader));
+        this.readers = Collections.unmodifiableMap(map);
+        for (final String extension : map.keySet()) {
+            SuffixNode node = suffixes;
+            for (int i = extension.length() - 1; i >= 0; i--) {
+                node = node.children.computeIfAbsent(extension.charAt(i), c -> new SuffixNode());
+            }
+            node.extension = extension;
+        }
+    }
+
+    /**
+     * Returns the readers keyed by their extension, in the order they have been registered.
+     */
+    Map<String, ContentReader> getReaders() {
+        return readers;
+    }
+
+    /**
+     * Returns the longest extension a reader is registered for which the given name ends with.
+     *
+     * @param name the file name
+     * @param options the options to check for ignored readers or <code>null</code>
+     * @return the extension including the leading dot or <code>null</code>
+     */
+    String getExtension(final String name, final ImportOptions options) {
+        String extension = null;
+        SuffixNode node = suffixes;
+        for (int i = name.length() - 1; i >= 0 && node != null; i--) {
+            node = node.children.get(name.charAt(i));
+            if (node != null
+                    && node.extension != null
+                    && (options == null || !options.isIgnoredImportProvider(node.extension))) {
+                extension = node.extension;
+            }
+        }
+        return extension;
+    }
+
+    /**
+     * Returns the reader for the given name, which is not ignored by the given options.
+     *
+     * @param name the file name
+     * @param options the options to check for ignored readers
+     * @return the reader or <code>null</code>
+     */
+    ContentReader getReader(final String name, final ImportOptions options) {
+        final String extension = getExtension(name, options);
+        return extension != null ? readers.get(extension) : null;
+    }
+
+    private static final class SuffixNode {
+
+        private final Map<Character, SuffixNode> children = new HashMap<>();
+
+        private String extension;
+    }
+}
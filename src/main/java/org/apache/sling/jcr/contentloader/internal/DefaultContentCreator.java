@@ -19,6 +19,7 @@
 package org.apache.sling.jcr.contentloader.internal;
 
 import javax.jcr.Binary;
+import javax.jcr.InvalidItemStateException;
 import javax.jcr.Item;
 import javax.jcr.ItemNotFoundException;
 import javax.jcr.Node;
@@ -30,6 +31,9 @@ import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import javax.jcr.Value;
 import javax.jcr.ValueFactory;
+import javax.jcr.nodetype.ItemDefinition;
+import javax.jcr.nodetype.NodeDefinition;
+import javax.jcr.nodetype.NodeType;
 import javax.jcr.security.AccessControlEntry;
 import javax.jcr.security.AccessControlList;
 import javax.jcr.security.AccessControlManager;
@@ -45,6 +49,7 @@ import java.security.NoSuchAlgorithmException;
 import java.security.Principal;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collection;
 import java.util.Collections;
@@ -53,15 +58,14 @@ import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
-import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
-import java.util.stream.StreamSupport;
 
 import org.apache.jackrabbit.api.security.JackrabbitAccessControlList;
 import org.apache.jackrabbit.api.security.principal.PrincipalManager;
@@ -96,7 +100,17 @@ public class DefaultContentCreator implements ContentCreator {
 
     private ImportOptions configuration;
 
-    private final Deque<Node> parentNodeStack = new ArrayDeque<>();
+    private final Deque<NodeFrame> parentNodeStack = new ArrayDeque<>();
+
+    /**
+     * Whether the node types by name have auto created child nodes.
+     */
+    private final Map<String, Boolean> autoCreatedChildNodeTypes = new HashMap<>();
+
+    /**
+     * The name of the workspace of the created nodes, looked up once per parse.
+     */
+    private String workspaceName;
 
     /**
      * The list of versionables.
@@ -104,10 +118,53 @@ public class DefaultContentCreator implements ContentCreator {
     private final List<Node> versionables = new ArrayList<>();
 
     /**
-     * Delayed references during content loading for the reference property.
+     * The number of nodes created since this content creator has been created.
+     */
+    private int createdNodeCount;
+
+    /**
+     * The number of created nodes at the time the content has been saved last.
+     */
+    private int savedNodeCount;
+
+    /**
+     * Whether the content has been saved while it was being created.
+     */
+    private boolean contentSaved;
+
+    /**
+     * The number of times the content has been saved while it was being created.
      */
-    private final Map<String, List<String>> delayedReferences = new HashMap<>();
+    private int saveCount;
 
+    /**
+     * The identifiers of the referenceable nodes referenced so far, by their
+     * path. The entries of a node and its descendants are dropped when the node
+     * is removed.
+     */
+    private final Map<String, String> identifiers = new HashMap<>();
+
+    /**
+     * The paths of the versionable nodes checked out if necessary.
+     */
+    private final Set<String> checkedOutVersionables = new HashSet<>();
+
+    /**
+     * The nodes of the REFERENCE properties whose values are resolved once the
+     * content is completed, by the path of the property.
+     */
+    private final Map<String, Node> delayedReferences = new LinkedHashMap<>();
+
+    /**
+     * The paths of the nodes referenced by delayed single value REFERENCE
+     * properties, by the path of the property.
+     */
+    private final Map<String, String> delayedSingleReferences = new HashMap<>();
+
+    /**
+     * The identifiers or paths of the nodes referenced by delayed multi value
+     * REFERENCE properties, by the path of the property.
+     */
     private final Map<String, String[]> delayedMultipleReferences = new HashMap<>();
 
     private String defaultName;
@@ -136,13 +193,39 @@ public class DefaultContentCreator implements ContentCreator {
      */
     private List<String> createdNodes;
 
+    /**
+     * Optional list of the nodes added by this content creator. Unlike the list
+     * of created nodes it never contains existing nodes which are reused.
+     */
+    private List<String> addedNodes;
+
     /**
      * Optional listener to get notified about changes
      */
     private ContentImportListener importListener;
 
-    private Set<String> appliedSet = new LinkedHashSet<>();
-    private Set<String> importedNodes = new LinkedHashSet<>();
+    /**
+     * Sets of the names of applied properties which are not used by a node
+     * on the stack anymore, to be reused for other nodes.
+     */
+    private final Deque<Set<String>> appliedPropertiesPool = new ArrayDeque<>();
+
+    /**
+     * The nodes imported so far, kept if the nodes are merged.
+     */
+    private final ImportedNode importedNodes = new ImportedNode();
+
+    /**
+     * Optional predicate for the paths of the existing nodes which are updated
+     * incrementally instead of being replaced.
+     */
+    private Predicate<String> incrementalPaths;
+
+    /**
+     * The names of the properties and child nodes applied to a node, by node
+     * path, while content is applied incrementally.
+     */
+    private final Map<String, AppliedItems> appliedItems = new HashMap<>();
 
     /**
      * A one time use seed to randomize the user location.
@@ -181,17 +264,49 @@ public class DefaultContentCreator implements ContentCreator {
             final List<String> createdNodes,
             final ContentImportListener importListener) {
         this.configuration = options;
-        // create list of allowed content readers
-        this.contentReaders = new HashMap<>();
-        defaultContentReaders.forEach((key, value) -> {
-            if (!configuration.isIgnoredImportProvider(key)) {
-                contentReaders.put(key, value);
-            }
-        });
+        // create list of allowed content readers, the default readers are an
+        // immutable snapshot which can be shared unless some of them are ignored
+        if (defaultContentReaders.keySet().stream().anyMatch(options::isIgnoredImportProvider)) {
+            this.contentReaders = new HashMap<>();
+            defaultContentReaders.forEach((key, value) -> {
+                if (!configuration.isIgnoredImportProvider(key)) {
+                    contentReaders.put(key, value);
+                }
+            });
+        } else {
+            this.contentReaders = defaultContentReaders;
+        }
         this.createdNodes = createdNodes;
         this.importListener = importListener;
     }
 
+    /**
+     * Set the list to store the paths of the nodes added to the repository,
+     * for example to remove them again if the import fails.
+     *
+     * @param addedNodes the list or <code>null</code> to not record added nodes
+     */
+    public void setAddedNodes(final List<String> addedNodes) {
+        this.addedNodes = addedNodes;
+    }
+
+    /**
+     * Get the list of the nodes added to the repository.
+     */
+    public List<String> getAddedNodes() {
+        return this.addedNodes;
+    }
+
+    /**
+     * Notify this content creator about a node added to the repository for
+     * the imported content without this content creator.
+     */
+    public void nodeAdded(final Node node) throws RepositoryException {
+        if (this.addedNodes != null) {
+            this.addedNodes.add(node.getSession().getWorkspace().getName() + ":" + node.getPath());
+        }
+    }
+
     /**
      * If the defaultName is null, we are in PARENT_NODE import mode.
      *
@@ -200,7 +315,8 @@ public class DefaultContentCreator implements ContentCreator {
      */
     public void prepareParsing(final Node parentNode, final String defaultName) {
         this.parentNodeStack.clear();
-        this.parentNodeStack.push(parentNode);
+        this.parentNodeStack.push(new NodeFrame(null, parentNode, null, false, saveCount));
+        this.workspaceName = null;
         this.defaultName = defaultName;
         isParentNodeImport = defaultName == null;
         this.createdRootNode = null;
@@ -213,11 +329,172 @@ public class DefaultContentCreator implements ContentCreator {
         return this.versionables;
     }
 
+    /**
+     * Get the number of nodes created by this content creator.
+     */
+    public int getCreatedNodeCount() {
+        return this.createdNodeCount;
+    }
+
+    /**
+     * Get the number of nodes created by this content creator since the content
+     * has been saved last.
+     */
+    public int getUnsavedNodeCount() {
+        return this.createdNodeCount - this.savedNodeCount;
+    }
+
+    /**
+     * Notify this content creator that the created content has been saved.
+     */
+    public void contentSaved() {
+        this.savedNodeCount = this.createdNodeCount;
+        this.contentSaved = true;
+        this.saveCount++;
+    }
+
+    /**
+     * Whether the created content has been saved at least once.
+     */
+    public boolean isContentSaved() {
+        return this.contentSaved;
+    }
+
+    /**
+     * Set the paths of the existing nodes to update incrementally: such a node
+     * is kept, a property is only written if its value changed and properties
+     * and child nodes which are not part of the applied content are removed
+     * once the node is finished.
+     *
+     * @param incrementalPaths predicate for the node paths or <code>null</code>
+     *            to replace existing nodes as configured
+     */
+    public void setIncrementalPaths(final Predicate<String> incrementalPaths) {
+        this.incrementalPaths = incrementalPaths;
+        this.appliedItems.clear();
+    }
+
+    /**
+     * Record that the child node with the given name has been applied to the
+     * parent node, so it is not removed as part of an incremental update.
+     */
+    public void markNodeApplied(final Node parent, final String name) throws RepositoryException {
+        if (this.incrementalPaths != null) {
+            markNodeApplied(parent.getPath(), name);
+        }
+    }
+
+    private void markNodeApplied(final NodeFrame parent, final String name) throws RepositoryException {
+        if (this.incrementalPaths != null) {
+            markNodeApplied(parent.getPath(), name);
+        }
+    }
+
+    private void markNodeApplied(final String parentPath, final String name) {
+        appliedItems.computeIfAbsent(parentPath, k -> new AppliedItems()).nodes.add(name);
+    }
+
+    /**
+     * Remove the properties and child nodes which have not been applied from
+     * the given node and from its applied child nodes, if these are updated
+     * incrementally. This completes nodes whose content is not only defined by
+     * a single content reader, e.g. a folder or the root node of a descriptor.
+     */
+    public void removeUnappliedItems(final Node node) throws RepositoryException {
+        final AppliedItems items = appliedItems.get(node.getPath());
+        if (items != null) {
+            for (final String name : items.nodes) {
+                if (node.hasNode(name)) {
+                    removeUnapplied(node.getNode(name));
+                }
+            }
+            removeUnapplied(node);
+        }
+    }
+
+    private boolean isIncremental(final Node node) throws RepositoryException {
+        return this.incrementalPaths != null && this.incrementalPaths.test(node.getPath());
+    }
+
+    private boolean isIncremental(final NodeFrame frame) throws RepositoryException {
+        return this.incrementalPaths != null && this.incrementalPaths.test(frame.getPath());
+    }
+
+    private void markPropertyApplied(final Node node, final String name) throws RepositoryException {
+        markPropertyApplied(node.getPath(), name);
+    }
+
+    private void markPropertyApplied(final String path, final String name) {
+        appliedItems.computeIfAbsent(path, k -> new AppliedItems()).properties.add(name);
+    }
+
+    private void removeUnapplied(final Node node) throws RepositoryException {
+        final AppliedItems items = appliedItems.remove(node.getPath());
+        if (items == null || !isIncremental(node)) {
+            return;
+        }
+        final List<Item> unapplied = new ArrayList<>();
+        for (final PropertyIterator pi = node.getProperties(); pi.hasNext(); ) {
+            final Property property = pi.nextProperty();
+            if (!items.properties.contains(property.getName()) && isRemovable(property.getDefinition())) {
+                unapplied.add(property);
+            }
+        }
+        for (final NodeIterator ni = node.getNodes(); ni.hasNext(); ) {
+            final Node child = ni.nextNode();
+            if (!items.nodes.contains(child.getName()) && isRemovable(child.getDefinition())) {
+                unapplied.add(child);
+            }
+        }
+        if (!unapplied.isEmpty()) {
+            checkoutIfNecessary(node);
+            for (final Item item : unapplied) {
+                final String path = item.getPath();
+                if (item.isNode()) {
+                    forgetIdentifiers(path);
+                }
+                item.remove();
+                if (this.importListener != null) {
+                    this.importListener.onDelete(path);
+                }
+            }
+        }
+    }
+
+    private static boolean isRemovable(final ItemDefinition definition) {
+        return !definition.isProtected() && !definition.isMandatory() && !definition.isAutoCreated();
+    }
+
+    private static boolean isUnchanged(final Node node, final String name, final Value value)
+            throws RepositoryException {
+        if (!node.hasProperty(name)) {
+            return false;
+        }
+        final Property property = node.getProperty(name);
+        return !property.isMultiple() && property.getValue().equals(value);
+    }
+
+    private static boolean isUnchanged(final Node node, final String name, final Value[] values)
+            throws RepositoryException {
+        if (!node.hasProperty(name)) {
+            return false;
+        }
+        final Property property = node.getProperty(name);
+        return property.isMultiple() && Arrays.equals(property.getValues(), values);
+    }
+
     /**
      * Clear the content loader.
      */
     public void clear() {
         this.versionables.clear();
+        this.appliedItems.clear();
+        this.identifiers.clear();
+        this.checkedOutVersionables.clear();
+        this.importedNodes.clear();
+        this.delayedReferences.clear();
+        this.delayedSingleReferences.clear();
+        this.delayedMultipleReferences.clear();
     }
 
     /**
@@ -250,7 +527,8 @@ public class DefaultContentCreator implements ContentCreator {
      *      java.lang.String, java.lang.String[])
      */
     public void createNode(String name, String primaryNodeType, String[] mixinNodeTypes) throws RepositoryException {
-        final Node parentNode = this.parentNodeStack.peek();
+        final NodeFrame parentFrame = this.parentNodeStack.peek();
+        final Node parentNode = parentFrame.node;
         boolean isParentImport = (name == null && isParentNodeImport);
         if (name == null) {
             if (this.parentNodeStack.size() > 1) {
@@ -262,32 +540,52 @@ public class DefaultContentCreator implements ContentCreator {
         // if we are in parent node import mode, we don't create the root top level
         // node!
         if (!isParentImport || this.parentNodeStack.size() > 1) {
-            // if node already exists but should be overwritten, delete it
-            if (!this.ignoreOverwriteFlag && this.configuration.isOverwrite() && parentNode.hasNode(name)) {
-                checkoutIfNecessary(parentNode);
-                parentNode.getNode(name).remove();
+            Node existing = getChildNode(parentFrame, name);
+            final boolean incremental = existing != null && isIncremental(existing);
+            if (incremental) {
+                // keep the existing node unless its primary type changed
+                if (!this.ignoreOverwriteFlag
+                        && primaryNodeType != null
+                        && !existing.getPrimaryNodeType().getName().equals(primaryNodeType)) {
+                    checkoutIfNecessary(parentFrame);
+                    forgetIdentifiers(existing.getPath());
+                    existing.remove();
+                    parentFrame.removeChild(name);
+                    existing = getChildNode(parentFrame, name);
+                }
+            } else if (!this.ignoreOverwriteFlag && this.configuration.isOverwrite() && existing != null) {
+                // if node already exists but should be overwritten, delete it
+                checkoutIfNecessary(parentFrame);
+                forgetIdentifiers(existing.getPath());
+                existing.remove();
+                parentFrame.removeChild(name);
+                existing = getChildNode(parentFrame, name);
             }
 
             // ensure repository node
-            Node node;
-            if (parentNode.hasNode(name)) {
+            final String path = parentFrame.getChildPath(name);
+            final Node node;
+            if (existing != null) {
                 // use existing node
-                node = parentNode.getNode(name);
-            } else if (primaryNodeType == null) {
-                // no explicit node type, use repository default
-                checkoutIfNecessary(parentNode);
-                node = parentNode.addNode(name);
-                addNodeToCreatedList(node);
-                if (this.importListener != null) {
-                    this.importListener.onCreate(node.getPath());
+                node = existing;
+                if (incremental) {
+                    // the node would have been created if it had been replaced, it is
+                    // uninstalled with the content but it is not one of the added nodes
+                    addNodeToUninstallList(node, path);
                 }
             } else {
-                // explicit primary node type
-                checkoutIfNecessary(parentNode);
-                node = parentNode.addNode(name, primaryNodeType);
-                addNodeToCreatedList(node);
+                checkoutIfNecessary(parentFrame);
+                if (primaryNodeType == null) {
+                    // no explicit node type, use repository default
+                    node = parentNode.addNode(name);
+                } else {
+                    // explicit primary node type
+                    node = parentNode.addNode(name, primaryNodeType);
+                }
+                parentFrame.addChild(name, node);
+                addNodeToCreatedList(node, path);
                 if (this.importListener != null) {
-                    this.importListener.onCreate(node.getPath());
+                    this.importListener.onCreate(path);
                 }
             }
 
@@ -300,7 +598,10 @@ public class DefaultContentCreator implements ContentCreator {
                 }
             }
 
-            importedNodes.add(node.getPath());
+            if (this.configuration.isMerge()) {
+                importedNodes.add(path);
+            }
+            markNodeApplied(parentFrame, name);
 
             // check if node is versionable
             final boolean addToVersionables = this.configuration.isCheckin() && node.isNodeType("mix:versionable");
@@ -308,38 +609,106 @@ public class DefaultContentCreator implements ContentCreator {
                 this.versionables.add(node);
             }
 
-            this.parentNodeStack.push(node);
+            this.parentNodeStack.push(newNodeFrame(parentFrame, node, path, existing == null));
             if (this.createdRootNode == null) {
                 this.createdRootNode = node;
             }
         }
     }
 
+    /**
+     * Returns the child node with the given name or <code>null</code>. The child
+     * nodes of a node created by this content creator are known without asking
+     * the repository.
+     */
+    private Node getChildNode(final NodeFrame parent, final String name) throws RepositoryException {
+        if (parent.createdChildren != null && name.indexOf('/') == -1) {
+            return parent.createdChildren.get(name);
+        }
+        return parent.node.hasNode(name) ? parent.node.getNode(name) : null;
+    }
+
+    private NodeFrame newNodeFrame(final NodeFrame parent, final Node node, final String path, final boolean created)
+            throws RepositoryException {
+        return new NodeFrame(parent, node, path, created && !hasAutoCreatedChildNodes(node), saveCount);
+    }
+
+    /**
+     * Whether the node types of the given node define auto created child nodes,
+     * which exist without having been created by this content creator.
+     */
+    private boolean hasAutoCreatedChildNodes(final Node node) throws RepositoryException {
+        if (hasAutoCreatedChildNodes(node.getPrimaryNodeType())) {
+            return true;
+        }
+        for (final NodeType mixin : node.getMixinNodeTypes()) {
+            if (hasAutoCreatedChildNodes(mixin)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean hasAutoCreatedChildNodes(final NodeType nodeType) {
+        return autoCreatedChildNodeTypes.computeIfAbsent(
+                nodeType.getName(),
+                k -> Arrays.stream(nodeType.getChildNodeDefinitions()).anyMatch(NodeDefinition::isAutoCreated));
+    }
+
+    /**
+     * Forget which child nodes have been created by this content creator, after
+     * nodes may have been created in the repository without it.
+     */
+    private void forgetCreatedChildren() {
+        for (final NodeFrame frame : this.parentNodeStack) {
+            frame.createdChildren = null;
+        }
+    }
+
     /**
      * @see org.apache.sling.jcr.contentloader.ContentCreator#createProperty(java.lang.String,
      *      int, java.lang.String)
      */
     public void createProperty(String name, int propertyType, String value) throws RepositoryException {
-        appliedSet.add(name);
-        final Node node = this.parentNodeStack.peek();
+        final NodeFrame frame = this.parentNodeStack.peek();
+        markPropertyMerged(frame, name);
+        final Node node = frame.node;
+        final boolean incremental = isIncremental(frame);
+        if (incremental) {
+            markPropertyApplied(frame.getPath(), name);
+        }
         // check if the property already exists and isPropertyOverwrite() is false,
         // don't overwrite it in this case
-        if (node.hasProperty(name)
+        if (!frame.hasOnlyNewProperties(saveCount)
+                && node.hasProperty(name)
+                && !incremental
                 && !this.configuration.isPropertyOverwrite()
                 && !node.getProperty(name).isNew()) {
             return;
         }
+        if (incremental
+                && propertyType != PropertyType.REFERENCE
+                && isUnchanged(node, name, createValue(node.getSession().getValueFactory(), propertyType, value))) {
+            return;
+        }
 
         if (propertyType == PropertyType.REFERENCE) {
             // need to resolve the reference
             String propPath = node.getPath() + "/" + name; // NOSONAR
-            String uuid = getUUID(node.getSession(), propPath, getAbsPath(node, value));
+            String referencePath = getAbsPath(node, value);
+            String uuid = getUUID(node.getSession(), referencePath);
             if (uuid != null) {
-                checkoutIfNecessary(node);
+                checkoutIfNecessary(frame);
                 node.setProperty(name, uuid, propertyType);
                 if (this.importListener != null) {
                     this.importListener.onCreate(node.getProperty(name).getPath());
                 }
+                delayedReferences.remove(propPath);
+            } else {
+                // not existing or not referenceable yet, keep for delayed setting
+                delayedReferences.put(propPath, node);
+                delayedSingleReferences.put(propPath, referencePath);
+                delayedMultipleReferences.remove(propPath);
             }
         } else if ("jcr:isCheckedOut".equals(name)) {
             // don't try to write the property but record its state
@@ -349,13 +718,13 @@ public class DefaultContentCreator implements ContentCreator {
                 this.versionables.add(node);
             }
         } else if (propertyType == PropertyType.DATE) {
-            checkoutIfNecessary(node);
+            checkoutIfNecessary(frame);
             node.setProperty(name, ISO8601.parse(value));
             if (this.importListener != null) {
                 this.importListener.onCreate(node.getProperty(name).getPath());
             }
         } else {
-            checkoutIfNecessary(node);
+            checkoutIfNecessary(frame);
             if (propertyType == PropertyType.UNDEFINED) {
                 node.setProperty(name, value);
             } else {
@@ -372,35 +741,57 @@ public class DefaultContentCreator implements ContentCreator {
      *      int, java.lang.String[])
      */
     public void createProperty(String name, int propertyType, String[] values) throws RepositoryException {
-        appliedSet.add(name);
-        final Node node = this.parentNodeStack.peek();
+        final NodeFrame frame = this.parentNodeStack.peek();
+        markPropertyMerged(frame, name);
+        final Node node = frame.node;
+        final boolean incremental = isIncremental(frame);
+        if (incremental) {
+            markPropertyApplied(frame.getPath(), name);
+        }
         // check if the property already exists and isPropertyOverwrite() is false,
         // don't overwrite it in this case
-        if (node.hasProperty(name)
+        if (!frame.hasOnlyNewProperties(saveCount)
+                && node.hasProperty(name)
+                && !incremental
                 && !this.configuration.isPropertyOverwrite()
                 && !node.getProperty(name).isNew()) {
             return;
         }
+        if (incremental && propertyType != PropertyType.REFERENCE) {
+            final ValueFactory valueFactory = node.getSession().getValueFactory();
+            final Value[] jcrValues = new Value[values.length];
+            for (int i = 0; i < values.length; i++) {
+                jcrValues[i] = createValue(valueFactory, propertyType, values[i]);
+            }
+            if (isUnchanged(node, name, jcrValues)) {
+                return;
+            }
+        }
         if (propertyType == PropertyType.REFERENCE) {
             String propPath = node.getPath() + "/" + name; // NOSONAR
             boolean hasAll = true;
             String[] uuids = new String[values.length];
             String[] uuidOrPaths = new String[values.length];
             for (int i = 0; i < values.length; i++) {
-                uuids[i] = getUUID(node.getSession(), propPath, getAbsPath(node, values[i]));
-                uuidOrPaths[i] = uuids[i] != null ? uuids[i] : getAbsPath(node, values[i]);
+                String referencePath = getAbsPath(node, values[i]);
+                uuids[i] = getUUID(node.getSession(), referencePath);
+                uuidOrPaths[i] = uuids[i] != null ? uuids[i] : referencePath;
                 if (uuids[i] == null) hasAll = false;
             }
-            checkoutIfNecessary(node);
+            checkoutIfNecessary(frame);
             node.setProperty(name, uuids, propertyType);
             if (this.importListener != null) {
                 this.importListener.onCreate(node.getProperty(name).getPath());
             }
             if (!hasAll) {
+                delayedReferences.put(propPath, node);
+                delayedSingleReferences.remove(propPath);
                 delayedMultipleReferences.put(propPath, uuidOrPaths);
+            } else {
+                delayedReferences.remove(propPath);
             }
         } else if (propertyType == PropertyType.DATE) {
-            checkoutIfNecessary(node);
+            checkoutIfNecessary(frame);
 
             // This modification is to remove the colon in the JSON Timezone
             ValueFactory valueFactory = node.getSession().getValueFactory();
@@ -416,7 +807,7 @@ public class DefaultContentCreator implements ContentCreator {
                 this.importListener.onCreate(node.getProperty(name).getPath());
             }
         } else {
-            checkoutIfNecessary(node);
+            checkoutIfNecessary(frame);
             if (propertyType == PropertyType.UNDEFINED) {
                 node.setProperty(name, values);
             } else {
@@ -428,6 +819,19 @@ public class DefaultContentCreator implements ContentCreator {
         }
     }
 
+    /**
+     * Create the value a string of the given property type is written as.
+     */
+    private static Value createValue(final ValueFactory factory, final int propertyType, final String value)
+            throws RepositoryException {
+        if (propertyType == PropertyType.DATE) {
+            return factory.createValue(ISO8601.parse(value));
+        } else if (propertyType == PropertyType.UNDEFINED) {
+            return factory.createValue(value);
+        }
+        return factory.createValue(value, propertyType);
+    }
+
     protected Value createValue(final ValueFactory factory, Object value) throws RepositoryException {
         if (value == null) {
             return null;
@@ -472,19 +876,40 @@ public class DefaultContentCreator implements ContentCreator {
      * @see org.apache.sling.jcr.contentloader.ContentCreator#finishNode()
      */
     public void finishNode() throws RepositoryException {
-        final Node node = this.parentNodeStack.pop();
-        cleanUpNode(node);
-        // resolve REFERENCE property values pointing to this node
-        resolveReferences(node);
+        final NodeFrame frame = this.parentNodeStack.pop();
+        final Node node = frame.node;
+        cleanUpNode(frame);
+        // the root node of the content is completed by the caller, see removeUnappliedItems
+        if (this.parentNodeStack.size() > 1) {
+            removeUnapplied(node);
+        }
     }
 
-    private void cleanUpNode(Node node) throws RepositoryException {
+    /**
+     * Remember a property applied to the node on the stack, which is kept when
+     * the properties of the node are merged.
+     */
+    private void markPropertyMerged(final NodeFrame frame, final String name) {
         if (configuration.isPropertyMerge()) {
-            PropertyIterator it = node.getProperties();
+            if (frame.appliedProperties == null) {
+                final Set<String> pooled = appliedPropertiesPool.poll();
+                frame.appliedProperties = pooled != null ? pooled : new HashSet<>();
+            }
+            frame.appliedProperties.add(name);
+        }
+    }
+
+    private void cleanUpNode(final NodeFrame frame) throws RepositoryException {
+        final Set<String> appliedProperties = frame.appliedProperties;
+        if (appliedProperties != null) {
+            frame.appliedProperties = null;
+        }
+        if (configuration.isPropertyMerge() && !frame.keepProperties) {
+            PropertyIterator it = frame.node.getProperties();
             while (it.hasNext()) {
                 Property prop = it.nextProperty();
                 String propertyName = prop.getName();
-                if (appliedSet.contains(propertyName)) {
+                if (appliedProperties != null && appliedProperties.contains(propertyName)) {
                     continue;
                 }
                 if (!prop.getDefinition().isProtected()) {
@@ -496,12 +921,31 @@ public class DefaultContentCreator implements ContentCreator {
                 }
             }
         }
+        if (appliedProperties != null) {
+            appliedProperties.clear();
+            appliedPropertiesPool.push(appliedProperties);
+        }
     }
 
-    private void addNodeToCreatedList(Node node) throws RepositoryException {
+    private void addNodeToCreatedList(Node node, String path) throws RepositoryException {
+        this.createdNodeCount++;
+        if (this.addedNodes != null) {
+            this.addedNodes.add(getWorkspaceName(node) + ":" + path);
+        }
+        addNodeToUninstallList(node, path);
+    }
+
+    private void addNodeToUninstallList(Node node, String path) throws RepositoryException {
         if (this.createdNodes != null) {
-            this.createdNodes.add(node.getSession().getWorkspace().getName() + ":" + node.getPath());
+            this.createdNodes.add(getWorkspaceName(node) + ":" + path);
+        }
+    }
+
+    private String getWorkspaceName(Node node) throws RepositoryException {
+        if (this.workspaceName == null) {
+            this.workspaceName = node.getSession().getWorkspace().getName();
         }
+        return this.workspaceName;
     }
 
     private String getAbsPath(Node node, String path) throws RepositoryException {
@@ -521,76 +965,87 @@ public class DefaultContentCreator implements ContentCreator {
         return node.getPath() + "/" + path;
     }
 
-    private String getUUID(Session session, String propPath, String referencePath) throws RepositoryException {
-        if (session.itemExists(referencePath)) {
+    /**
+     * Drops the cached identifiers of the node at the given path and of its
+     * descendants, as the node is removed.
+     */
+    private void forgetIdentifiers(final String path) {
+        if (!identifiers.isEmpty()) {
+            final String prefix = path.endsWith("/") ? path : path + "/";
+            identifiers.keySet().removeIf(key -> key.equals(path) || key.startsWith(prefix));
+        }
+    }
+
+    private String getUUID(Session session, String referencePath) throws RepositoryException {
+        String uuid = identifiers.get(referencePath);
+        if (uuid == null && session.itemExists(referencePath)) {
             Item item = session.getItem(referencePath);
             if (item.isNode()) {
                 Node refNode = (Node) item;
                 if (refNode.isNodeType("mix:referenceable")) {
-                    return refNode.getIdentifier();
+                    uuid = refNode.getIdentifier();
+                    identifiers.put(referencePath, uuid);
                 }
             }
-        } else {
-            // not existing yet, keep for delayed setting
-            List<String> current = delayedReferences.computeIfAbsent(referencePath, k -> new ArrayList<>());
-            current.add(propPath);
         }
-        // no UUID found
-        return null;
+        // null if no UUID found
+        return uuid;
     }
 
-    private void resolveReferences(Node node) throws RepositoryException {
-        List<String> props = delayedReferences.remove(node.getPath());
-        if (props == null || props.isEmpty()) {
-            return;
-        }
-
-        // check whether we can set at all
-        if (!node.isNodeType("mix:referenceable")) {
-            return;
+    /**
+     * Sets the values of the REFERENCE properties which could not be resolved
+     * when they were created, as the nodes they point to were not existing or
+     * not referenceable yet. This is done once all content of an import has
+     * been created, so that properties may point to nodes created later on or
+     * from other files. Each property is set once and each node referenced is
+     * looked up at most once.
+     *
+     * @throws RepositoryException if a property cannot be set
+     */
+    public void resolveReferences() throws RepositoryException {
+        for (final Entry<String, Node> entry : delayedReferences.entrySet()) {
+            final String propPath = entry.getKey();
+            try {
+                resolveReference(entry.getValue(), getName(propPath), propPath);
+            } catch (InvalidItemStateException e) {
+                // the node has been removed after the property was created
+                log.debug("Not resolving REFERENCE property {} of a removed node", propPath);
+            }
         }
+        delayedReferences.clear();
+        delayedSingleReferences.clear();
+        delayedMultipleReferences.clear();
+    }
 
-        Session session = node.getSession();
-        String uuid = node.getIdentifier();
-
-        for (String property : props) {
-            String name = getName(property);
-            Node parentNode = getParentNode(session, property);
-            if (parentNode != null) {
-                checkoutIfNecessary(parentNode);
-                if (parentNode.hasProperty(name)
-                        && parentNode.getProperty(name).getDefinition().isMultiple()) {
-                    boolean hasAll = true;
-                    String[] uuidOrPaths = delayedMultipleReferences.get(property);
-                    String[] uuids = new String[uuidOrPaths.length];
-                    for (int i = 0; i < uuidOrPaths.length; i++) {
-                        // is the reference still a path
-                        if (uuidOrPaths[i].startsWith("/")) {
-                            if (uuidOrPaths[i].equals(node.getPath())) {
-                                uuidOrPaths[i] = uuid;
-                                uuids[i] = uuid;
-                            } else {
-                                uuids[i] = null;
-                                hasAll = false;
-                            }
-                        } else {
-                            uuids[i] = uuidOrPaths[i];
-                        }
-                    }
-                    parentNode.setProperty(name, uuids, PropertyType.REFERENCE);
-                    if (this.importListener != null) {
-                        this.importListener.onCreate(
-                                parentNode.getProperty(name).getPath());
-                    }
-                    if (hasAll) {
-                        delayedMultipleReferences.remove(property);
-                    }
+    private void resolveReference(final Node node, final String name, final String propPath)
+            throws RepositoryException {
+        final String[] uuidOrPaths = delayedMultipleReferences.get(propPath);
+        if (uuidOrPaths == null) {
+            final String uuid = getUUID(node.getSession(), delayedSingleReferences.get(propPath));
+            if (uuid != null) {
+                checkoutIfNecessary(node);
+                node.setProperty(name, uuid, PropertyType.REFERENCE);
+                if (this.importListener != null) {
+                    this.importListener.onCreate(node.getProperty(name).getPath());
+                }
+            }
+        } else {
+            boolean resolved = false;
+            final String[] uuids = new String[uuidOrPaths.length];
+            for (int i = 0; i < uuidOrPaths.length; i++) {
+                // is the reference still a path
+                if (uuidOrPaths[i].startsWith("/")) {
+                    uuids[i] = getUUID(node.getSession(), uuidOrPaths[i]);
+                    resolved |= uuids[i] != null;
                 } else {
-                    parentNode.setProperty(name, uuid, PropertyType.REFERENCE);
-                    if (this.importListener != null) {
-                        this.importListener.onCreate(
-                                parentNode.getProperty(name).getPath());
-                    }
+                    uuids[i] = uuidOrPaths[i];
+                }
+            }
+            if (resolved) {
+                checkoutIfNecessary(node);
+                node.setProperty(name, uuids, PropertyType.REFERENCE);
+                if (this.importListener != null) {
+                    this.importListener.onCreate(node.getProperty(name).getPath());
                 }
             }
         }
@@ -609,38 +1064,24 @@ public class DefaultContentCreator implements ContentCreator {
         return lastSlash < 0 ? path : path.substring(lastSlash + 1);
     }
 
-    private Node getParentNode(Session session, String path) throws RepositoryException {
-        int lastSlash = path.lastIndexOf('/');
-
-        // not an absolute path, cannot find parent
-        if (lastSlash < 0) {
-            return null;
-        }
-
-        // node below root
-        if (lastSlash == 0) {
-            return session.getRootNode();
-        }
-
-        // item in the hierarchy
-        path = path.substring(0, lastSlash);
-        if (!session.itemExists(path)) {
-            return null;
-        }
-
-        Item item = session.getItem(path);
-        return (item.isNode()) ? (Node) item : null;
-    }
-
     private void createProperty(String name, Object value, boolean overwriteExisting) throws RepositoryException {
-        final Node node = this.parentNodeStack.peek();
+        final NodeFrame frame = this.parentNodeStack.peek();
+        final Node node = frame.node;
+        final boolean incremental = isIncremental(frame);
+        if (incremental && value != null) {
+            markPropertyApplied(frame.getPath(), name);
+        }
         // check if the property already exists, don't overwrite it in this case
-        if (node.hasProperty(name) && !node.getProperty(name).isNew() && !overwriteExisting) {
+        if (!overwriteExisting
+                && !incremental
+                && !frame.hasOnlyNewProperties(saveCount)
+                && node.hasProperty(name)
+                && !node.getProperty(name).isNew()) {
             return;
         }
         if (value == null) {
             if (node.hasProperty(name)) {
-                checkoutIfNecessary(node);
+                checkoutIfNecessary(frame);
                 String propPath = node.getProperty(name).getPath();
                 node.getProperty(name).remove();
                 if (this.importListener != null) {
@@ -648,25 +1089,38 @@ public class DefaultContentCreator implements ContentCreator {
                 }
             }
         } else {
-            checkoutIfNecessary(node);
             final Value jcrValue = this.createValue(node.getSession().getValueFactory(), value);
+            if (incremental && isUnchanged(node, name, jcrValue)) {
+                markPropertyMerged(frame, name);
+                return;
+            }
+            checkoutIfNecessary(frame);
             node.setProperty(name, jcrValue);
             if (this.importListener != null) {
                 this.importListener.onModify(node.getProperty(name).getPath());
             }
         }
-        appliedSet.add(name);
+        markPropertyMerged(frame, name);
     }
 
     private void createProperty(String name, Object[] values, boolean overwriteExisting) throws RepositoryException {
-        final Node node = this.parentNodeStack.peek();
+        final NodeFrame frame = this.parentNodeStack.peek();
+        final Node node = frame.node;
+        final boolean incremental = isIncremental(frame);
+        if (incremental && values != null && values.length > 0) {
+            markPropertyApplied(frame.getPath(), name);
+        }
         // check if the property already exists, don't overwrite it in this case
-        if (node.hasProperty(name) && !node.getProperty(name).isNew() && !overwriteExisting) {
+        if (!overwriteExisting
+                && !incremental
+                && !frame.hasOnlyNewProperties(saveCount)
+                && node.hasProperty(name)
+                && !node.getProperty(name).isNew()) {
             return;
         }
         if (values == null || values.length == 0) {
             if (node.hasProperty(name)) {
-                checkoutIfNecessary(node);
+                checkoutIfNecessary(frame);
                 String propPath = node.getProperty(name).getPath();
                 node.getProperty(name).remove();
                 if (this.importListener != null) {
@@ -674,17 +1128,21 @@ public class DefaultContentCreator implements ContentCreator {
                 }
             }
         } else {
-            checkoutIfNecessary(node);
             final Value[] jcrValues = new Value[values.length];
             for (int i = 0; i < values.length; i++) {
                 jcrValues[i] = this.createValue(node.getSession().getValueFactory(), values[i]);
             }
+            if (incremental && isUnchanged(node, name, jcrValues)) {
+                markPropertyMerged(frame, name);
+                return;
+            }
+            checkoutIfNecessary(frame);
             node.setProperty(name, jcrValues);
             if (this.importListener != null) {
                 this.importListener.onModify(node.getProperty(name).getPath());
             }
         }
-        appliedSet.add(name);
+        markPropertyMerged(frame, name);
     }
 
     /**
@@ -695,24 +1153,41 @@ public class DefaultContentCreator implements ContentCreator {
             throws RepositoryException {
         int lastSlash = name.lastIndexOf('/');
         name = (lastSlash < 0) ? name : name.substring(lastSlash + 1);
-        final Node parentNode = this.parentNodeStack.peek();
+        final NodeFrame parentFrame = this.parentNodeStack.peek();
+        final Node fileNode = getChildNode(parentFrame, name);
 
         // if node already exists but should be overwritten, delete it
-        if (parentNode.hasNode(name)) {
-            this.parentNodeStack.push(parentNode.getNode(name));
-            Node contentNode = parentNode.getNode(name).getNode("jcr:content");
-            this.parentNodeStack.push(contentNode);
+        if (fileNode != null) {
+            final NodeFrame fileFrame =
+                    new NodeFrame(parentFrame, fileNode, parentFrame.getChildPath(name), false, saveCount);
+            fileFrame.keepProperties = true;
+            this.parentNodeStack.push(fileFrame);
+            Node contentNode = fileNode.getNode("jcr:content");
+            final NodeFrame contentFrame =
+                    new NodeFrame(fileFrame, contentNode, fileFrame.getChildPath("jcr:content"), false, saveCount);
+            this.parentNodeStack.push(contentFrame);
+            markNodeApplied(parentFrame, name);
+            markNodeApplied(fileFrame, contentNode.getName());
             long nodeLastModified = 0L;
             if (contentNode.hasProperty(JCR_LAST_MODIFIED)) {
                 nodeLastModified =
                         contentNode.getProperty(JCR_LAST_MODIFIED).getDate().getTimeInMillis();
             }
-            if (!this.configuration.isOverwrite() && nodeLastModified >= lastModified) {
+            if (isIncremental(contentNode) && nodeLastModified == lastModified) {
+                // unchanged file, keep the existing content
+                for (final PropertyIterator pi = contentNode.getProperties(); pi.hasNext(); ) {
+                    markPropertyApplied(contentNode, pi.nextProperty().getName());
+                }
+                contentFrame.keepProperties = true;
+                return;
+            }
+            if (!this.configuration.isOverwrite() && !isIncremental(contentNode) && nodeLastModified >= lastModified) {
+                contentFrame.keepProperties = true;
                 return;
             }
             log.debug(
                     "Updating {} lastModified:{} New Content LastModified:{}",
-                    parentNode.getNode(name).getPath(),
+                    fileFrame.getPath(),
                     new Date(nodeLastModified),
                     new Date(lastModified));
         } else {
@@ -747,23 +1222,28 @@ public class DefaultContentCreator implements ContentCreator {
             subPath = subPath.substring(1);
         }
         final StringTokenizer st = new StringTokenizer(subPath, "/");
-        Node node = this.parentNodeStack.peek();
+        NodeFrame frame = this.parentNodeStack.peek();
         while (st.hasMoreTokens()) {
             final String token = st.nextToken();
-            if (!node.hasNode(token)) {
+            final Node node = frame.node;
+            Node child = getChildNode(frame, token);
+            final String path = frame.getChildPath(token);
+            final boolean created = child == null;
+            if (created) {
                 if (newNodeType == null) {
                     return false;
                 }
-                checkoutIfNecessary(node);
-                final Node n = node.addNode(token, newNodeType);
-                addNodeToCreatedList(n);
+                checkoutIfNecessary(frame);
+                child = node.addNode(token, newNodeType);
+                frame.addChild(token, child);
+                addNodeToCreatedList(child, path);
                 if (this.importListener != null) {
-                    this.importListener.onCreate(node.getPath());
+                    this.importListener.onCreate(frame.getPath());
                 }
             }
-            node = node.getNode(token);
+            frame = newNodeFrame(frame, child, path, created);
         }
-        this.parentNodeStack.push(node);
+        this.parentNodeStack.push(frame);
         return true;
     }
 
@@ -776,7 +1256,8 @@ public class DefaultContentCreator implements ContentCreator {
     public void createGroup(final String name, String[] members, Map<String, Object> extraProperties)
             throws RepositoryException {
 
-        final Node parentNode = this.parentNodeStack.peek();
+        final Node parentNode = this.parentNodeStack.peek().node;
+        forgetCreatedChildren();
         Session session = parentNode.getSession();
 
         UserManager userManager = AccessControlUtil.getUserManager(session);
@@ -820,7 +1301,8 @@ public class DefaultContentCreator implements ContentCreator {
      */
     public void createUser(final String name, String password, Map<String, Object> extraProperties)
             throws RepositoryException {
-        final Node parentNode = this.parentNodeStack.peek();
+        final Node parentNode = this.parentNodeStack.peek().node;
+        forgetCreatedChildren();
         Session session = parentNode.getSession();
 
         UserManager userManager = AccessControlUtil.getUserManager(session);
@@ -953,7 +1435,8 @@ public class DefaultContentCreator implements ContentCreator {
     @Override
     public void createAce(String principalId, Collection<LocalPrivilege> privileges, String order)
             throws RepositoryException {
-        final Node parentNode = this.parentNodeStack.peek();
+        final Node parentNode = this.parentNodeStack.peek().node;
+        forgetCreatedChildren();
         Session jcrSession = parentNode.getSession();
 
         // validate that the principal name is valid
@@ -1342,7 +1825,7 @@ public class DefaultContentCreator implements ContentCreator {
      */
     @Override
     public Node getParent() {
-        return this.parentNodeStack.peek();
+        return this.parentNodeStack.peek().node;
     }
 
     /**
@@ -1393,86 +1876,279 @@ public class DefaultContentCreator implements ContentCreator {
         }
     }
 
+    /**
+     * Find the versionable ancestor of a node on the stack, which is looked up
+     * once per node and taken from the parent node on the stack if the node is
+     * not versionable itself.
+     */
+    private Node findVersionableAncestor(final NodeFrame frame) throws RepositoryException {
+        if (!frame.versionableKnown) {
+            if (frame.node.isNodeType("mix:versionable")) {
+                frame.versionable = frame.node;
+            } else if (frame.parent != null) {
+                frame.versionable = findVersionableAncestor(frame.parent);
+            } else {
+                try {
+                    frame.versionable = findVersionableAncestor(frame.node.getParent());
+                } catch (ItemNotFoundException e) {
+                    // top-level
+                    frame.versionable = null;
+                }
+            }
+            frame.versionableKnown = true;
+        }
+        return frame.versionable;
+    }
+
     /**
      * Checkout the node if needed
      */
     protected void checkoutIfNecessary(Node node) throws RepositoryException {
         if (this.configuration.isAutoCheckout()) {
-            Node versionableNode = findVersionableAncestor(node);
-            if (versionableNode != null && !versionableNode.isCheckedOut()) {
-                VersionManager versionManager =
-                        versionableNode.getSession().getWorkspace().getVersionManager();
-                versionManager.checkout(versionableNode.getPath());
-                if (this.importListener != null) {
-                    this.importListener.onCheckout(versionableNode.getPath());
-                }
+            checkout(findVersionableAncestor(node));
+        }
+    }
+
+    /**
+     * Checkout the node on the stack if needed, which is done once per node.
+     */
+    private void checkoutIfNecessary(final NodeFrame frame) throws RepositoryException {
+        if (this.configuration.isAutoCheckout() && !frame.checkedOut) {
+            checkout(findVersionableAncestor(frame));
+            frame.checkedOut = true;
+        }
+    }
+
+    private void checkout(final Node versionableNode) throws RepositoryException {
+        if (versionableNode != null
+                && this.checkedOutVersionables.add(versionableNode.getPath())
+                && !versionableNode.isCheckedOut()) {
+            VersionManager versionManager =
+                    versionableNode.getSession().getWorkspace().getVersionManager();
+            versionManager.checkout(versionableNode.getPath());
+            if (this.importListener != null) {
+                this.importListener.onCheckout(versionableNode.getPath());
             }
         }
     }
 
     @Override
     public void finish() throws RepositoryException {
-        if (this.configuration.isMerge()) {
-            Session session = this.createdRootNode.getSession();
-            importedNodes.stream()
-                    .flatMap(n -> {
-                        Set<String> iterable = getPeers(n, session);
-                        return StreamSupport.stream(iterable.spliterator(), false);
-                    })
-                    .filter(path -> !importedNodes.contains(path))
-                    .forEach(path -> removeNode(path, session));
-            importedNodes.stream()
-                    .flatMap(n -> {
-                        Set<String> iterable = getChildren(n, session);
-                        return StreamSupport.stream(iterable.spliterator(), false);
-                    })
-                    .filter(path -> !importedNodes.contains(path))
-                    .forEach(path -> removeNode(path, session));
-        }
-    }
-
-    private Set<String> getPeers(String path, Session session) {
-        try {
-            log.debug("finding peers for {}", path);
-            NodeIterator it = session.getNode(path).getParent().getNodes();
-            Set<String> peers = new LinkedHashSet<>();
-            while (it.hasNext()) {
-                String child = it.nextNode().getPath();
-                if (!child.equals(path)) {
-                    peers.add(child);
-                }
+        if (this.configuration.isMerge() && importedNodes.children != null) {
+            mergeChildren(importedNodes, "/", this.createdRootNode.getSession());
+        }
+    }
+
+    /**
+     * Merges the child nodes of the imported nodes and of their parents with
+     * the imported ones, walking the tree of the imported nodes once.
+     */
+    private void mergeChildren(final ImportedNode imported, final String path, final Session session) {
+        if (imported.imported || imported.hasImportedChildren()) {
+            removeUnimportedChildren(imported, path, session);
+        }
+        if (imported.children != null) {
+            for (final Entry<String, ImportedNode> child : imported.children.entrySet()) {
+                final String childPath = "/".equals(path) ? path + child.getKey() : path + "/" + child.getKey();
+                mergeChildren(child.getValue(), childPath, session);
             }
-            return peers;
-        } catch (RepositoryException e) {
-            return Collections.emptySet();
         }
     }
 
-    private Set<String> getChildren(String path, Session session) {
+    /**
+     * Removes the child nodes of the given node which have not been imported.
+     * The removals are saved together with the imported content.
+     */
+    private void removeUnimportedChildren(final ImportedNode imported, final String path, final Session session) {
         try {
-            log.debug("finding children for {}", path);
-            NodeIterator it = session.getNode(path).getNodes();
-            Set<String> peers = new LinkedHashSet<>();
-            while (it.hasNext()) {
-                String child = it.nextNode().getPath();
-                peers.add(child);
+            if (!session.nodeExists(path)) {
+                // removed together with an ancestor
+                return;
+            }
+            log.debug("merging children of {}", path);
+            final Node node = session.getNode(path);
+            final List<Node> unimported = new ArrayList<>();
+            for (final NodeIterator it = node.getNodes(); it.hasNext(); ) {
+                final Node child = it.nextNode();
+                if (!imported.isImported(child.getName())) {
+                    unimported.add(child);
+                }
+            }
+            if (!unimported.isEmpty()) {
+                checkoutIfNecessary(node);
+            }
+            for (final Node child : unimported) {
+                removeNode(child);
             }
-            return peers;
         } catch (RepositoryException e) {
-            return Collections.emptySet();
+            log.warn("unable to merge children of node {}", path);
         }
     }
 
-    private void removeNode(String item, Session session) {
+    private void removeNode(final Node node) {
+        String item = null;
         try {
+            item = node.getPath();
             if (this.importListener != null) {
                 this.importListener.onDelete(item);
             }
             log.debug("removing {}", item);
-            session.removeItem(item);
-            session.save();
+            forgetIdentifiers(item);
+            node.remove();
         } catch (RepositoryException e) {
             log.warn("unable to remove node {}", item);
         }
     }
+
+    /**
+     * A node on the stack of the nodes being created, with its path computed
+     * incrementally from its parent. For a node created by this content creator
+     * its child nodes created so far are kept, so that further child nodes and
+     * properties are written without checking the repository for existing ones.
+     */
+    private static final class NodeFrame {
+
+        /**
+         * The frame of the parent node or <code>null</code> for the node the
+         * content is created below.
+         */
+        private final NodeFrame parent;
+
+        private final Node node;
+
+        private String path;
+
+        /**
+         * The created child nodes by name or <code>null</code> if the node may
+         * have child nodes not created by this content creator.
+         */
+        private Map<String, Node> createdChildren;
+
+        /**
+         * The save count at the time the node was created.
+         */
+        private final int saveCount;
+
+        /**
+         * Whether the versionable ancestor has been looked up.
+         */
+        private boolean versionableKnown;
+
+        /**
+         * The nearest versionable ancestor or self or <code>null</code>.
+         */
+        private Node versionable;
+
+        /**
+         * Whether the node has been checked out if necessary.
+         */
+        private boolean checkedOut;
+
+        /**
+         * The names of the properties applied to the node or <code>null</code>.
+         */
+        private Set<String> appliedProperties;
+
+        /**
+         * Whether the existing properties are kept, as the node is not updated.
+         */
+        private boolean keepProperties;
+
+        NodeFrame(
+                final NodeFrame parent,
+                final Node node,
+                final String path,
+                final boolean created,
+                final int saveCount) {
+            this.parent = parent;
+            this.node = node;
+            this.path = path;
+            this.createdChildren = created ? new HashMap<>() : null;
+            this.saveCount = saveCount;
+        }
+
+        String getPath() throws RepositoryException {
+            if (path == null) {
+                path = node.getPath();
+            }
+            return path;
+        }
+
+        String getChildPath(final String name) throws RepositoryException {
+            final String parentPath = getPath();
+            return "/".equals(parentPath) ? parentPath + name : parentPath + "/" + name;
+        }
+
+        void addChild(final String name, final Node child) {
+            if (createdChildren != null && name.indexOf('/') == -1) {
+                createdChildren.put(name, child);
+            }
+        }
+
+        void removeChild(final String name) {
+            if (createdChildren != null) {
+                createdChildren.remove(name);
+            }
+        }
+
+        /**
+         * Whether all properties of the node are new, as the node has been
+         * created by this content creator and not been saved since.
+         */
+        boolean hasOnlyNewProperties(final int currentSaveCount) {
+            return createdChildren != null && saveCount == currentSaveCount;
+        }
+    }
+
+    /**
+     * A node of the tree of the imported nodes, which keeps the names of the
+     * child nodes instead of the full paths of all nodes.
+     */
+    private static final class ImportedNode {
+
+        private Map<String, ImportedNode> children;
+
+        private boolean imported;
+
+        void add(final String path) {
+            ImportedNode node = this;
+            int start = 1;
+            while (start < path.length()) {
+                int end = path.indexOf('/', start);
+                if (end < 0) {
+                    end = path.length();
+                }
+                if (node.children == null) {
+                    node.children = new HashMap<>();
+                }
+                node = node.children.computeIfAbsent(path.substring(start, end), k -> new ImportedNode());
+                start = end + 1;
+            }
+            node.imported = true;
+        }
+
+        boolean isImported(final String name) {
+            final ImportedNode child = children != null ? children.get(name) : null;
+            return child != null && child.imported;
+        }
+
+        boolean hasImportedChildren() {
+            return children != null && children.values().stream().anyMatch(child -> child.imported);
+        }
+
+        void clear() {
+            children = null;
+            imported = false;
+        }
+    }
+
+    /**
+     * The names of the properties and child nodes applied to a node.
+     */
+    private static final class AppliedItems {
+
+        private final Set<String> properties = new HashSet<>();
+
+        private final Set<String> nodes = new HashSet<>();
+    }
 }
@@ -143,6 +143,7 @@ public class DefaultContentImporter extends BaseImportLoader implements ContentH
         contentCreator.init(importOptions, getContentReaders(), createdPaths, importListener);
         contentCreator.prepareParsing(parent, name);
         contentReader.parse(contentStream, contentCreator);
+        contentCreator.resolveReferences();
 
         // save changes
         Session session = parent.getSession();
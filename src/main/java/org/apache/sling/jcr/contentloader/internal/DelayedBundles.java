@@ -0,0 +1,233 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.contentloader.internal;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import org.osgi.framework.Bundle;
+
+/**
+ * The <code>DelayedBundles</code> keep track of the bundles whose registration
+ * failed, indexed by the reason of the failure, so that only the bundles which
+ * may succeed now are retried:
+ * <ul>
+ * <li>Bundles for which a required content reader is missing are indexed by the
+ * extensions such a reader could be registered for, and are only retried once
+ * a reader for one of these extensions is available.</li>
+ * <li>Bundles whose bundle content info is locked by someone else are retried
+ * with an exponential backoff.</li>
+ * <li>Bundles which failed for any other reason are retried whenever another
+ * bundle has been registered successfully.</li>
+ * </ul>
+ * This class is thread-safe.
+ */
+class DelayedBundles {
+
+    static final long INITIAL_BACKOFF = 1000L;
+
+    static final long MAX_BACKOFF = 5 * 60 * 1000L;
+
+    /** bundles waiting for a content reader, by possible reader extension */
+    private final Map<String, Set<Bundle>> waitingForReader = new LinkedHashMap<>();
+
+    /** bundles waiting for someone else to release the bundle content info */
+    private final Map<Bundle, Backoff> contended = new LinkedHashMap<>();
+
+    /** bundles which failed for any other reason */
+    private final Set<Bundle> failed = new LinkedHashSet<>();
+
+    /**
+     * Delays a bundle until a content reader for the given entry is available.
+     *
+     * @param bundle the bundle
+     * @param entry the name of the entry for which no content reader was found
+     */
+    synchronized void delayForReader(final Bundle bundle, final String entry) {
+        remove(bundle);
+        final List<String> extensions = getExtensions(entry);
+        if (extensions.isEmpty()) {
+            failed.add(bundle);
+        }
+        for (final String extension : extensions) {
+            waitingForReader
+                    .computeIfAbsent(extension, k -> new LinkedHashSet<>())
+                    .add(bundle);
+        }
+    }
+
+    /**
+     * Delays a bundle whose bundle content info is locked by someone else. The
+     * delay doubles with every attempt up to {@link #MAX_BACKOFF}.
+     *
+     * @param bundle the bundle
+     * @param now the current time in milliseconds
+     */
+    synchronized void delayForContention(final Bundle bundle, final long now) {
+        final Backoff previous = contended.get(bundle);
+        remove(bundle);
+        final Backoff backoff = previous == null ? new Backoff(INITIAL_BACKOFF) : previous.next();
+        backoff.due = now + backoff.delay;
+        contended.put(bundle, backoff);
+    }
+
+    /**
+     * Delays a bundle which failed for any other reason.
+     *
+     * @param bundle the bundle
+     */
+    synchronized void delayForFailure(final Bundle bundle) {
+        remove(bundle);
+        failed.add(bundle);
+    }
+
+    /**
+     * Removes and returns all bundles waiting for a content reader for which a
+     * content reader is available now.
+     *
+     * @param isReaderAvailable tests whether a content reader is available for an extension
+     */
+    synchronized List<Bundle> takeWaitingForReader(final Predicate<String> isReaderAvailable) {
+        final Set<Bundle> result = new LinkedHashSet<>();
+        for (final Map.Entry<String, Set<Bundle>> entry : waitingForReader.entrySet()) {
+            if (isReaderAvailable.test(entry.getKey())) {
+                result.addAll(entry.getValue());
+            }
+        }
+        result.forEach(this::remove);
+        return new ArrayList<>(result);
+    }
+
+    /**
+     * Returns all contended bundles whose backoff elapsed. The bundles stay
+     * delayed, so that their backoff grows if they are delayed again.
+     *
+     * @param now the current time in milliseconds
+     */
+    synchronized List<Bundle> getDueContended(final long now) {
+        final List<Bundle> result = new ArrayList<>();
+        for (final Map.Entry<Bundle, Backoff> entry : contended.entrySet()) {
+            if (entry.getValue().due <= now) {
+                result.add(entry.getKey());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Removes and returns all bundles which failed for any other reason.
+     */
+    synchronized List<Bundle> takeFailed() {
+        final List<Bundle> result = new ArrayList<>(failed);
+        failed.clear();
+        return result;
+    }
+
+    /**
+     * Returns the time in milliseconds at which the next contended bundle should
+     * be retried, or <code>-1</code> if there are no contended bundles.
+     */
+    synchronized long getNextRetryTime() {
+        long next = -1;
+        for (final Backoff backoff : contended.values()) {
+            if (next < 0 || backoff.due < next) {
+                next = backoff.due;
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Removes the bundle from the delayed bundles.
+     *
+     * @return <code>true</code> if the bundle was delayed
+     */
+    synchronized boolean remove(final Bundle bundle) {
+        boolean removed = contended.remove(bundle) != null;
+        removed |= failed.remove(bundle);
+        for (final Iterator<Set<Bundle>> i = waitingForReader.values().iterator(); i.hasNext(); ) {
+            final Set<Bundle> bundles = i.next();
+            removed |= bundles.remove(bundle);
+            if (bundles.isEmpty()) {
+                i.remove();
+            }
+        }
+        return removed;
+    }
+
+    synchronized boolean contains(final Bundle bundle) {
+        return contended.containsKey(bundle)
+                || failed.contains(bundle)
+                || waitingForReader.values().stream().anyMatch(bundles -> bundles.contains(bundle));
+    }
+
+    synchronized int size() {
+        final Set<Bundle> all = new LinkedHashSet<>(failed);
+        all.addAll(contended.keySet());
+        waitingForReader.values().forEach(all::addAll);
+        return all.size();
+    }
+
+    synchronized boolean isEmpty() {
+        return failed.isEmpty() && contended.isEmpty() && waitingForReader.isEmpty();
+    }
+
+    synchronized void clear() {
+        failed.clear();
+        contended.clear();
+        waitingForReader.clear();
+    }
+
+    /**
+     * Returns all extensions a content reader for the given entry could be
+     * registered for, e.g. <code>b.json</code> and <code>json</code> for
+     * <code>/path/a.b.json</code>.
+     */
+    static List<String> getExtensions(final String entry) {
+        final List<String> extensions = new ArrayList<>();
+        final String name = entry.substring(entry.lastIndexOf('/') + 1);
+        for (int pos = name.indexOf('.'); pos != -1; pos = name.indexOf('.', pos + 1)) {
+            if (pos < name.length() - 1) {
+                extensions.add(name.substring(pos + 1));
+            }
+        }
+        return extensions;
+    }
+
+    private static final class Backoff {
+
+        private final long delay;
+
+        private long due;
+
+        Backoff(final long delay) {
+            this.delay = delay;
+        }
+
+        Backoff next() {
+            return new Backoff(Math.min(delay * 2, MAX_BACKOFF));
+        }
+    }
+}
@@ -25,17 +25,16 @@ import javax.jcr.Value;
 import javax.jcr.ValueFactory;
 import javax.jcr.ValueFormatException;
 
-import java.io.BufferedInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.StringReader;
+import java.util.AbstractMap.SimpleImmutableEntry;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
@@ -43,6 +42,7 @@ import java.util.regex.Pattern;
 
 import jakarta.json.Json;
 import jakarta.json.JsonArray;
+import jakarta.json.JsonBuilderFactory;
 import jakarta.json.JsonException;
 import jakarta.json.JsonNumber;
 import jakarta.json.JsonObject;
@@ -62,9 +62,11 @@ import org.osgi.framework.Constants;
 import org.osgi.framework.FrameworkUtil;
 import org.osgi.framework.InvalidSyntaxException;
 import org.osgi.framework.ServiceReference;
+import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
-
-import static org.apache.sling.jcr.contentparser.impl.JsonTicksConverter.tickToDoubleQuote;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
 
 /**
  * The <code>JsonReader</code> Parses a Json document on content load and
@@ -122,8 +124,21 @@ import static org.apache.sling.jcr.contentparser.impl.JsonTicksConverter.tickToD
             ContentReader.PROPERTY_EXTENSIONS + "=json",
             ContentReader.PROPERTY_TYPES + "=application/json"
         })
+@Designate(ocd = JsonReader.Config.class)
 public class JsonReader implements ContentReader {
 
+    @ObjectClassDefinition(
+            name = "%jsonreader.config.name",
+            description = "%jsonreader.config.description",
+            localization = "OSGI-INF/l10n/bundle")
+    public @interface Config {
+
+        @AttributeDefinition(
+                name = "%jsonreader.config.streaming.name",
+                description = "%jsonreader.config.streaming.description")
+        boolean streaming() default false;
+    }
+
     private static final Pattern jsonDate = Pattern.compile(
             "^[0-9]{4}-[0-9]{2}-[0-9]{2}T[0-9]{2}:[0-9]{2}:[0-9]{2}\\.[0-9]{3}[-+]{1}[0-9]{2}[:]{0,1}[0-9]{2}$");
     private static final String REFERENCE = "jcr:reference:";
@@ -157,6 +172,15 @@ public class JsonReader implements ContentReader {
     private static final String SECURITY_PRINCIPLES = "security:principals";
     private static final String SECURITY_ACL = "security:acl";
 
+    protected boolean streaming;
+
+    private volatile JsonBuilderFactory builderFactory;
+
+    @Activate
+    protected void activate(final Config config) {
+        this.streaming = config.streaming();
+    }
+
     /**
      * @see org.apache.sling.jcr.contentloader.ContentReader#parse(java.net.URL,
      *      org.apache.sling.jcr.contentloader.ContentCreator)
@@ -180,22 +204,161 @@ public class JsonReader implements ContentReader {
 
     @Override
     public void parse(InputStream ins, ContentCreator contentCreator) throws IOException, RepositoryException {
-        String jsonString = toString(ins).trim();
-        if (!jsonString.startsWith("{")) {
-            jsonString = "{" + jsonString + "}";
-        }
-        Map<String, Object> config = new HashMap<>();
-        config.put("org.apache.johnzon.supports-comments", true);
-        try (jakarta.json.JsonReader reader =
-                Json.createReaderFactory(config).createReader(new StringReader(tickToDoubleQuote(jsonString)))) {
-            JsonObject json = reader.readObject();
-            this.createNode(null, json, contentCreator);
+        try (JsonTokenizer tokenizer = JsonTokenizer.create(ins)) {
+            tokenizer.next();
+            if (streaming) {
+                this.streamNode(null, tokenizer, contentCreator);
+            } else {
+                JsonObject json = tokenizer.readObject(getBuilderFactory());
+                this.createNode(null, json, contentCreator);
+            }
             contentCreator.finish();
         } catch (JsonException je) {
             throw (IOException) new IOException(je.getMessage()).initCause(je);
         }
     }
 
+    protected JsonBuilderFactory getBuilderFactory() {
+        JsonBuilderFactory factory = this.builderFactory;
+        if (factory == null) {
+            factory = Json.createBuilderFactory(null);
+            this.builderFactory = factory;
+        }
+        return factory;
+    }
+
+    /**
+     * Creates the node for the object the tokenizer is positioned in and reads
+     * its members up to the end of the object, creating the properties and
+     * child nodes while reading. Only the members read before the first child
+     * node are kept until the node is created.
+     */
+    private void streamNode(String name, JsonTokenizer tokenizer, ContentCreator contentCreator)
+            throws IOException, RepositoryException {
+        final StreamedNode node = new StreamedNode(name);
+        while (tokenizer.next() != JsonTokenizer.Token.END_OBJECT) {
+            final String n = tokenizer.getString();
+            final JsonTokenizer.Token token = tokenizer.next();
+            if (token == JsonTokenizer.Token.START_OBJECT && !ignoredNames.contains(n) && !isSecurity(n)) {
+                node.create(contentCreator);
+                this.streamNode(n, tokenizer, contentCreator);
+                continue;
+            }
+            if (this.streamChild(n, token, tokenizer, node, contentCreator)) {
+                continue;
+            }
+
+            if ("jcr:primaryType".equals(n) || "jcr:mixinTypes".equals(n)) {
+                if (node.created) {
+                    throw new JsonException(n + " must be declared before the child nodes of " + name);
+                }
+                if ("jcr:primaryType".equals(n)) {
+                    node.primaryType = token == JsonTokenizer.Token.STRING ? tokenizer.getString() : null;
+                    tokenizer.skipValue();
+                } else if (token == JsonTokenizer.Token.START_ARRAY) {
+                    node.mixinTypes = toStrings(tokenizer.readArray(getBuilderFactory()));
+                } else {
+                    node.mixinTypes = null;
+                    tokenizer.skipValue();
+                }
+            } else if (ignoredNames.contains(n)) {
+                tokenizer.skipValue();
+            } else {
+                final Object value = readValue(token, tokenizer);
+                if (node.created) {
+                    writeMember(n, value, contentCreator);
+                } else {
+                    node.pending.add(new SimpleImmutableEntry<>(n, value));
+                }
+            }
+        }
+        node.create(contentCreator);
+        contentCreator.finishNode();
+    }
+
+    /**
+     * Streams the member with the given name if it holds child nodes which are
+     * not declared as a JSON object, reading its value up to its end. The node
+     * owning the member must be created before its child nodes.
+     *
+     * @return <code>true</code> if the member has been consumed, otherwise it is
+     *      read as a property
+     */
+    boolean streamChild(
+            String n,
+            JsonTokenizer.Token token,
+            JsonTokenizer tokenizer,
+            StreamedNode node,
+            ContentCreator contentCreator)
+            throws IOException, RepositoryException {
+        return false;
+    }
+
+    private Object readValue(JsonTokenizer.Token token, JsonTokenizer tokenizer) throws IOException {
+        switch (token) {
+            case START_OBJECT:
+                return tokenizer.readObject(getBuilderFactory());
+            case START_ARRAY:
+                return tokenizer.readArray(getBuilderFactory());
+            default:
+                return tokenizer.getScalar();
+        }
+    }
+
+    /**
+     * The node currently streamed, it is created with the members read before
+     * its first child node.
+     */
+    final class StreamedNode {
+
+        private final String name;
+
+        private String primaryType;
+
+        private String[] mixinTypes;
+
+        private boolean created;
+
+        /** members read before the node is created */
+        private final List<Map.Entry<String, Object>> pending = new ArrayList<>();
+
+        private StreamedNode(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Creates the node unless it has been created already.
+         */
+        void create(ContentCreator contentCreator) throws RepositoryException {
+            if (!created) {
+                contentCreator.createNode(name, primaryType, mixinTypes);
+                for (Map.Entry<String, Object> member : pending) {
+                    writeMember(member.getKey(), member.getValue(), contentCreator);
+                }
+                pending.clear();
+                created = true;
+            }
+        }
+    }
+
+    private void writeMember(String n, Object value, ContentCreator contentCreator) throws RepositoryException {
+        if (!handleSecurity(n, value, contentCreator)) {
+            this.createProperty(n, value, contentCreator);
+        }
+    }
+
+    private static boolean isSecurity(String n) {
+        return SECURITY_PRINCIPLES.equals(n) || SECURITY_ACL.equals(n);
+    }
+
+    private static String[] toStrings(JsonArray array) {
+        final String[] strings = new String[array.size()];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = array.getString(i);
+        }
+        return strings;
+    }
+
     protected boolean handleSecurity(String n, Object o, ContentCreator contentCreator) throws RepositoryException {
         if (SECURITY_PRINCIPLES.equals(n)) {
             this.createPrincipals(o, contentCreator);
@@ -213,36 +376,36 @@ public class JsonReader implements ContentReader {
             final String n = entry.getKey();
             // skip well known objects
             if (!ignoredNames.contains(n)) {
-                Object o = entry.getValue();
-                if (!handleSecurity(n, o, contentCreator)) {
-                    if (o instanceof JsonObject) {
-                        this.createNode(n, (JsonObject) o, contentCreator);
-                    } else {
-                        this.createProperty(n, o, contentCreator);
-                    }
-                }
+                writeChild(n, entry.getValue(), contentCreator);
             }
         }
     }
 
-    protected void createNode(String name, JsonObject obj, ContentCreator contentCreator) throws RepositoryException {
-        String primaryType = obj.getString("jcr:primaryType", null);
-
-        String[] mixinTypes = null;
-        Object mixinsObject = obj.get("jcr:mixinTypes");
-        if (mixinsObject instanceof JsonArray) {
-            JsonArray mixins = (JsonArray) mixinsObject;
-            mixinTypes = new String[mixins.size()];
-            for (int i = 0; i < mixinTypes.length; i++) {
-                mixinTypes[i] = mixins.getString(i);
+    /**
+     * Writes a single member of a node, which is not one of the ignored names,
+     * as security definition, child node or property.
+     */
+    protected void writeChild(String n, Object o, ContentCreator contentCreator) throws RepositoryException {
+        if (!handleSecurity(n, o, contentCreator)) {
+            if (o instanceof JsonObject) {
+                this.createNode(n, (JsonObject) o, contentCreator);
+            } else {
+                this.createProperty(n, o, contentCreator);
             }
         }
+    }
 
-        contentCreator.createNode(name, primaryType, mixinTypes);
+    protected void createNode(String name, JsonObject obj, ContentCreator contentCreator) throws RepositoryException {
+        contentCreator.createNode(name, obj.getString("jcr:primaryType", null), getMixinTypes(obj));
         writeChildren(obj, contentCreator);
         contentCreator.finishNode();
     }
 
+    protected static String[] getMixinTypes(JsonObject obj) {
+        Object mixinsObject = obj.get("jcr:mixinTypes");
+        return mixinsObject instanceof JsonArray ? toStrings((JsonArray) mixinsObject) : null;
+    }
+
     protected void createProperty(String name, Object value, ContentCreator contentCreator) throws RepositoryException {
         // assume simple value
         if (value instanceof JsonArray) {
@@ -265,6 +428,9 @@ public class JsonReader implements ContentReader {
             if (value != null) {
                 contentCreator.createProperty(getName(name), getType(name, value), value.toString());
             }
+        } else if (value != null) {
+            // single value read by the streaming parser
+            contentCreator.createProperty(getName(name), getType(name, value), value.toString());
         }
     }
 
@@ -322,37 +488,6 @@ public class JsonReader implements ContentReader {
         return name;
     }
 
-    private String toString(InputStream ins) throws IOException {
-        if (!ins.markSupported()) {
-            ins = new BufferedInputStream(ins);
-        }
-
-        String encoding;
-        ins.mark(5);
-        int c = ins.read();
-        if (c == '#') {
-            // character encoding following
-            StringBuilder buf = new StringBuilder();
-            for (c = ins.read(); !Character.isWhitespace((char) c); c = ins.read()) {
-                buf.append((char) c);
-            }
-            encoding = buf.toString();
-        } else {
-            ins.reset();
-            encoding = "UTF-8";
-        }
-
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        byte[] buf = new byte[1024];
-        int rd;
-        while ((rd = ins.read(buf)) >= 0) {
-            bos.write(buf, 0, rd);
-        }
-        bos.close(); // just to comply with the contract
-
-        return new String(bos.toByteArray(), encoding);
-    }
-
     /**
      * Create or update one or more user and/or groups <code>
      *  {
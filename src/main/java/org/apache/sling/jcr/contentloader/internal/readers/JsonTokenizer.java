@@ -0,0 +1,585 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.contentloader.internal.readers;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.util.Arrays;
+
+import jakarta.json.JsonArray;
+import jakarta.json.JsonArrayBuilder;
+import jakarta.json.JsonBuilderFactory;
+import jakarta.json.JsonException;
+import jakarta.json.JsonObject;
+import jakarta.json.JsonObjectBuilder;
+
+/**
+ * The <code>JsonTokenizer</code> reads the JSON dialect used for initial
+ * content directly from a character stream:
+ * <ul>
+ * <li>strings may be enclosed in ticks (single quotes) instead of double quotes,</li>
+ * <li><code>/* ... *&#47;</code> and <code>//</code> comments are skipped,</li>
+ * <li>the braces around the outermost object are optional and</li>
+ * <li>a first line starting with <code>#</code> names the character encoding,
+ * see {@link #create(InputStream)}.</li>
+ * </ul>
+ * Names and string values are returned as strings, numbers, booleans and
+ * <code>null</code> as plain Java objects, see {@link #getScalar()}. Only
+ * objects and arrays which are explicitly read with {@link #readObject(JsonBuilderFactory)}
+ * or {@link #readArray(JsonBuilderFactory)} are built as JSON values.
+ */
+final class JsonTokenizer implements Closeable {
+
+    enum Token {
+        START_OBJECT,
+        END_OBJECT,
+        START_ARRAY,
+        END_ARRAY,
+        NAME,
+        STRING,
+        NUMBER,
+        TRUE,
+        FALSE,
+        NULL,
+        END
+    }
+
+    private static final boolean OBJECT = true;
+
+    private static final boolean ARRAY = false;
+
+    private final Reader reader;
+
+    private final char[] buffer = new char[8192];
+
+    private int position;
+
+    private int limit;
+
+    private int line = 1;
+
+    private int column;
+
+    private int peeked = -1;
+
+    private final StringBuilder text = new StringBuilder();
+
+    private boolean[] containers = new boolean[16];
+
+    private int depth;
+
+    private boolean started;
+
+    private boolean implicitBraces;
+
+    private boolean expectValue;
+
+    private boolean afterValue;
+
+    private boolean afterComma;
+
+    private Token token;
+
+    JsonTokenizer(final Reader reader) {
+        this.reader = reader;
+    }
+
+    /**
+     * Creates a tokenizer for the stream, using the character encoding given
+     * in an optional first line starting with <code>#</code> or UTF-8.
+     */
+    static JsonTokenizer create(InputStream ins) throws IOException {
+        if (!ins.markSupported()) {
+            ins = new BufferedInputStream(ins);
+        }
+
+        String encoding;
+        ins.mark(5);
+        int c = ins.read();
+        if (c == '#') {
+            // character encoding following
+            StringBuilder buf = new StringBuilder();
+            for (c = ins.read(); !Character.isWhitespace((char) c); c = ins.read()) {
+                buf.append((char) c);
+            }
+            encoding = buf.toString();
+        } else {
+            ins.reset();
+            encoding = "UTF-8";
+        }
+        return new JsonTokenizer(new InputStreamReader(ins, encoding));
+    }
+
+    /**
+     * Reads the next token. The first token is always {@link Token#START_OBJECT}.
+     *
+     * @return the token, {@link Token#END} after the outermost object has ended
+     * @throws IOException if reading fails
+     * @throws JsonException if the content is not valid
+     */
+    Token next() throws IOException {
+        token = readToken();
+        return token;
+    }
+
+    /**
+     * Returns the name, string or number text of the current token.
+     */
+    String getString() {
+        return text.toString();
+    }
+
+    /**
+     * Returns the value of the current token, which must be a string, number,
+     * boolean or <code>null</code> token.
+     *
+     * @return a <code>String</code>, <code>Long</code>, <code>Double</code>,
+     *         <code>Boolean</code> or <code>null</code>
+     */
+    Object getScalar() {
+        switch (token) {
+            case STRING:
+                return getString();
+            case NUMBER:
+                return isIntegral()
+                        ? (Object) Long.valueOf(getLong())
+                        : (Object) getBigDecimal().doubleValue();
+            case TRUE:
+                return Boolean.TRUE;
+            case FALSE:
+                return Boolean.FALSE;
+            case NULL:
+                return null;
+            default:
+                throw error("Expected a value but found " + token);
+        }
+    }
+
+    /**
+     * Reads the members of the object whose {@link Token#START_OBJECT} has
+     * just been returned, up to its end.
+     */
+    JsonObject readObject(final JsonBuilderFactory factory) throws IOException {
+        final JsonObjectBuilder builder = factory.createObjectBuilder();
+        for (Token t = next(); t != Token.END_OBJECT; t = next()) {
+            final String name = getString();
+            switch (next()) {
+                case START_OBJECT:
+                    builder.add(name, readObject(factory));
+                    break;
+                case START_ARRAY:
+                    builder.add(name, readArray(factory));
+                    break;
+                case STRING:
+                    builder.add(name, getString());
+                    break;
+                case NUMBER:
+                    if (isLong()) {
+                        builder.add(name, getLong());
+                    } else {
+                        builder.add(name, getBigDecimal());
+                    }
+                    break;
+                case TRUE:
+                    builder.add(name, true);
+                    break;
+                case FALSE:
+                    builder.add(name, false);
+                    break;
+                default:
+                    builder.addNull(name);
+                    break;
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Reads the values of the array whose {@link Token#START_ARRAY} has just
+     * been returned, up to its end.
+     */
+    JsonArray readArray(final JsonBuilderFactory factory) throws IOException {
+        final JsonArrayBuilder builder = factory.createArrayBuilder();
+        for (Token t = next(); t != Token.END_ARRAY; t = next()) {
+            switch (t) {
+                case START_OBJECT:
+                    builder.add(readObject(factory));
+                    break;
+                case START_ARRAY:
+                    builder.add(readArray(factory));
+                    break;
+                case STRING:
+                    builder.add(getString());
+                    break;
+                case NUMBER:
+                    if (isLong()) {
+                        builder.add(getLong());
+                    } else {
+                        builder.add(getBigDecimal());
+                    }
+                    break;
+                case TRUE:
+                    builder.add(true);
+                    break;
+                case FALSE:
+                    builder.add(false);
+                    break;
+                default:
+                    builder.addNull();
+                    break;
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Reads and discards the value whose first token has just been returned.
+     */
+    void skipValue() throws IOException {
+        if (token == Token.START_OBJECT || token == Token.START_ARRAY) {
+            final int target = depth - 1;
+            while (depth > target) {
+                next();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    private Token readToken() throws IOException {
+        if (depth == 0) {
+            if (started) {
+                return Token.END;
+            }
+            started = true;
+            final int c = skipWhitespace();
+            if (c != '{') {
+                // the braces of the outermost object may be omitted
+                implicitBraces = true;
+                peeked = c;
+            }
+            return startContainer(OBJECT);
+        }
+
+        int c = skipWhitespace();
+        if (containers[depth - 1] == OBJECT) {
+            if (expectValue) {
+                return readValue(c);
+            }
+            if (afterValue) {
+                if (c == ',') {
+                    afterValue = false;
+                    afterComma = true;
+                    return readName(skipWhitespace());
+                }
+                return endObject(c);
+            }
+            if (!afterComma && (c == '}' || c < 0)) {
+                return endObject(c);
+            }
+            return readName(c);
+        }
+
+        if (afterValue) {
+            if (c == ',') {
+                afterValue = false;
+                afterComma = true;
+                c = skipWhitespace();
+            } else if (c == ']') {
+                return endContainer(Token.END_ARRAY);
+            } else {
+                throw error("Expected , or ] but found " + describe(c));
+            }
+        } else if (c == ']' && !afterComma) {
+            return endContainer(Token.END_ARRAY);
+        }
+        return readValue(c);
+    }
+
+    private Token endObject(final int c) {
+        if (c == '}' && !(implicitBraces && depth == 1)) {
+            return endContainer(Token.END_OBJECT);
+        }
+        if (c < 0 && implicitBraces && depth == 1) {
+            return endContainer(Token.END_OBJECT);
+        }
+        throw error("Expected , or } but found " + describe(c));
+    }
+
+    private Token readName(final int c) throws IOException {
+        if (c != '"' && c != '\'') {
+            throw error("Expected a name but found " + describe(c));
+        }
+        readString((char) c);
+        final int colon = skipWhitespace();
+        if (colon != ':') {
+            throw error("Expected : but found " + describe(colon));
+        }
+        afterComma = false;
+        expectValue = true;
+        return Token.NAME;
+    }
+
+    private Token readValue(final int c) throws IOException {
+        expectValue = false;
+        afterComma = false;
+        switch (c) {
+            case '{':
+                return startContainer(OBJECT);
+            case '[':
+                return startContainer(ARRAY);
+            case '"':
+            case '\'':
+                readString((char) c);
+                afterValue = true;
+                return Token.STRING;
+            case 't':
+                readLiteral(c, "true");
+                afterValue = true;
+                return Token.TRUE;
+            case 'f':
+                readLiteral(c, "false");
+                afterValue = true;
+                return Token.FALSE;
+            case 'n':
+                readLiteral(c, "null");
+                afterValue = true;
+                return Token.NULL;
+            default:
+                if (c == '-' || (c >= '0' && c <= '9')) {
+                    readNumber(c);
+                    afterValue = true;
+                    return Token.NUMBER;
+                }
+                throw error("Expected a value but found " + describe(c));
+        }
+    }
+
+    private Token startContainer(final boolean type) {
+        if (depth == containers.length) {
+            containers = Arrays.copyOf(containers, depth * 2);
+        }
+        containers[depth++] = type;
+        afterValue = false;
+        afterComma = false;
+        return type == OBJECT ? Token.START_OBJECT : Token.START_ARRAY;
+    }
+
+    private Token endContainer(final Token end) {
+        depth--;
+        // the container is a complete value of its parent
+        afterValue = true;
+        afterComma = false;
+        return end;
+    }
+
+    private void readString(final char quote) throws IOException {
+        text.setLength(0);
+        while (true) {
+            int c = read();
+            if (c < 0) {
+                throw error("Unterminated string");
+            }
+            if (c == quote) {
+                return;
+            }
+            if (c == '\\') {
+                c = read();
+                switch (c) {
+                    case '"':
+                    case '\'':
+                    case '\\':
+                    case '/':
+                        break;
+                    case 'b':
+                        c = '\b';
+                        break;
+                    case 'f':
+                        c = '\f';
+                        break;
+                    case 'n':
+                        c = '\n';
+                        break;
+                    case 'r':
+                        c = '\r';
+                        break;
+                    case 't':
+                        c = '\t';
+                        break;
+                    case 'u':
+                        c = readHex();
+                        break;
+                    default:
+                        throw error("Invalid escape sequence \\" + describe(c));
+                }
+            }
+            text.append((char) c);
+        }
+    }
+
+    private int readHex() throws IOException {
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            final int digit = Character.digit(read(), 16);
+            if (digit < 0) {
+                throw error("Invalid unicode escape sequence");
+            }
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    private void readNumber(int c) throws IOException {
+        text.setLength(0);
+        while (c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E' || (c >= '0' && c <= '9')) {
+            text.append((char) c);
+            c = read();
+        }
+        peeked = c;
+    }
+
+    private void readLiteral(int c, final String literal) throws IOException {
+        text.setLength(0);
+        while (c >= 'a' && c <= 'z') {
+            text.append((char) c);
+            c = read();
+        }
+        peeked = c;
+        if (!literal.contentEquals(text)) {
+            throw error("Unexpected literal " + text);
+        }
+    }
+
+    /**
+     * Whether the current number has neither a fraction nor an exponent.
+     */
+    private boolean isLong() {
+        for (int i = 0; i < text.length(); i++) {
+            final char c = text.charAt(i);
+            if (c == '.' || c == 'e' || c == 'E') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Whether the current number is integral like a <code>JsonNumber</code>
+     * read from the same text.
+     */
+    private boolean isIntegral() {
+        return isLong() || getBigDecimal().scale() == 0;
+    }
+
+    private long getLong() {
+        if (isLong()) {
+            try {
+                return Long.parseLong(text, 0, text.length(), 10);
+            } catch (NumberFormatException e) {
+                // too large for a long, truncated like JsonNumber.longValue()
+            }
+        }
+        return getBigDecimal().longValue();
+    }
+
+    private BigDecimal getBigDecimal() {
+        try {
+            return new BigDecimal(getString());
+        } catch (NumberFormatException e) {
+            throw error("Invalid number " + text);
+        }
+    }
+
+    private int skipWhitespace() throws IOException {
+        while (true) {
+            int c = read();
+            if (c == '/') {
+                c = read();
+                if (c == '*') {
+                    skipBlockComment();
+                } else if (c == '/') {
+                    skipLineComment();
+                } else {
+                    throw error("Unexpected character /");
+                }
+            } else if (c < 0 || !Character.isWhitespace(c)) {
+                return c;
+            }
+        }
+    }
+
+    private void skipBlockComment() throws IOException {
+        int previous = 0;
+        for (int c = read(); c >= 0; c = read()) {
+            if (previous == '*' && c == '/') {
+                return;
+            }
+            previous = c;
+        }
+        throw error("Unterminated comment");
+    }
+
+    private void skipLineComment() throws IOException {
+        for (int c = read(); c >= 0; c = read()) {
+            if (c == '\n') {
+                return;
+            }
+        }
+    }
+
+    private int read() throws IOException {
+        if (peeked != -1) {
+            final int c = peeked;
+            peeked = -1;
+            return c;
+        }
+        if (position == limit) {
+            limit = reader.read(buffer, 0, buffer.length);
+            position = 0;
+            if (limit <= 0) {
+                limit = 0;
+                return -1;
+            }
+        }
+        final char c = buffer[position++];
+        if (c == '\n') {
+            line++;
+            column = 0;
+        } else {
+            column++;
+        }
+        return c;
+    }
+
+    private static String describe(final int c) {
+        return c < 0 ? "end of input" : String.valueOf((char) c);
+    }
+
+    private JsonException error(final String message) {
+        return new JsonException(message + " at line " + line + ", column " + column);
+    }
+}
@@ -20,18 +20,21 @@ package org.apache.sling.jcr.contentloader.internal.readers;
 
 import javax.jcr.RepositoryException;
 
+import java.io.IOException;
 import java.util.Map;
 
-import jakarta.json.Json;
 import jakarta.json.JsonArray;
 import jakarta.json.JsonException;
 import jakarta.json.JsonObject;
-import jakarta.json.JsonObjectBuilder;
 import jakarta.json.JsonValue;
 import org.apache.sling.jcr.contentloader.ContentCreator;
 import org.apache.sling.jcr.contentloader.ContentReader;
 import org.osgi.framework.Constants;
+import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
 
 /**
  * Specific <code>JsonReader</code>, <code>OrderedJsonReader</code> parse json document exactly the same,
@@ -39,6 +42,7 @@ import org.osgi.service.component.annotations.Component;
  * type of structure that will force import of an orderable node with first and second
  * children, in that order.
  * Note that this is the reponsability of the json file to set appropriate node type / mixins.
+ * When streaming, the children of SLING:ordered are read and created one at a time.
  */
 @Component(
         service = ContentReader.class,
@@ -47,57 +51,96 @@ import org.osgi.service.component.annotations.Component;
             ContentReader.PROPERTY_EXTENSIONS + "=ordered-json",
             ContentReader.PROPERTY_TYPES + "=application/json"
         })
+@Designate(ocd = OrderedJsonReader.Config.class)
 public class OrderedJsonReader extends JsonReader {
 
+    @ObjectClassDefinition(
+            name = "%orderedjsonreader.config.name",
+            description = "%orderedjsonreader.config.description",
+            localization = "OSGI-INF/l10n/bundle")
+    public @interface Config {
+
+        @AttributeDefinition(
+                name = "%jsonreader.config.streaming.name",
+                description = "%jsonreader.config.streaming.description")
+        boolean streaming() default false;
+    }
+
     private static final String PN_ORDEREDCHILDREN = "SLING:ordered";
     private static final String PN_ORDEREDCHILDNAME = "SLING:name";
 
+    @Activate
+    protected void activate(final Config config) {
+        this.streaming = config.streaming();
+    }
+
     @Override
-    protected void writeChildren(JsonObject obj, ContentCreator contentCreator) throws RepositoryException {
-        if (!obj.containsKey(PN_ORDEREDCHILDREN)) {
-            super.writeChildren(obj, contentCreator);
+    protected void writeChild(String n, Object o, ContentCreator contentCreator) throws RepositoryException {
+        if (PN_ORDEREDCHILDREN.equals(n)) {
+            writeOrderedChildren(o, contentCreator);
         } else {
-            for (Map.Entry<String, JsonValue> entry : obj.entrySet()) {
-                final String n = entry.getKey();
-                // skip well known objects
-                if (!ignoredNames.contains(n)) {
-                    Object o = entry.getValue();
-                    if (!handleSecurity(n, o, contentCreator)) {
-                        if (n.equals(PN_ORDEREDCHILDREN)) {
-                            if (o instanceof JsonArray) {
-                                JsonArray children = (JsonArray) o;
-                                for (int childIndex = 0; childIndex < children.size(); childIndex++) {
-                                    Object oc = children.get(childIndex);
-                                    if (oc instanceof JsonObject) {
-                                        JsonObject child = (JsonObject) oc;
-                                        String childName = child.getString(PN_ORDEREDCHILDNAME, null);
-                                        if (childName != null && !childName.isEmpty()) {
-                                            JsonObjectBuilder builder = Json.createObjectBuilder();
-                                            for (Map.Entry<String, JsonValue> e : child.entrySet()) {
-                                                if (!PN_ORDEREDCHILDNAME.equals(e.getKey())) {
-                                                    builder.add(e.getKey(), e.getValue());
-                                                }
-                                            }
-                                            child = builder.build();
-                                            this.createNode(childName, child, contentCreator);
-                                        } else {
-                                            throw new JsonException(PN_ORDEREDCHILDREN
-                                                    + " children must have a name whose key is " + PN_ORDEREDCHILDNAME);
-                                        }
-                                    } else {
-                                        throw new JsonException(
-                                                PN_ORDEREDCHILDREN + " array must only have JSONObject items");
-                                    }
-                                }
-                            } else {
-                                throw new JsonException(PN_ORDEREDCHILDREN + " value must be a JSON array");
-                            }
-                        }
-                    } else {
-                        this.createProperty(n, o, contentCreator);
-                    }
-                }
+            super.writeChild(n, o, contentCreator);
+        }
+    }
+
+    /**
+     * Creates the child nodes of the SLING:ordered array in array order. The
+     * children are written from the parsed objects directly, skipping their
+     * SLING:name member, so no object of the tree is copied.
+     */
+    private void writeOrderedChildren(Object o, ContentCreator contentCreator) throws RepositoryException {
+        if (!(o instanceof JsonArray)) {
+            throw new JsonException(PN_ORDEREDCHILDREN + " value must be a JSON array");
+        }
+        for (JsonValue oc : (JsonArray) o) {
+            if (!(oc instanceof JsonObject)) {
+                throw new JsonException(PN_ORDEREDCHILDREN + " array must only have JSONObject items");
+            }
+            writeOrderedChild((JsonObject) oc, contentCreator);
+        }
+    }
+
+    /**
+     * Creates the child nodes of the SLING:ordered array while it is read, only
+     * the child currently read is kept in memory.
+     */
+    @Override
+    boolean streamChild(
+            String n,
+            JsonTokenizer.Token token,
+            JsonTokenizer tokenizer,
+            StreamedNode node,
+            ContentCreator contentCreator)
+            throws IOException, RepositoryException {
+        if (!PN_ORDEREDCHILDREN.equals(n)) {
+            return false;
+        }
+        if (token != JsonTokenizer.Token.START_ARRAY) {
+            throw new JsonException(PN_ORDEREDCHILDREN + " value must be a JSON array");
+        }
+        node.create(contentCreator);
+        for (JsonTokenizer.Token t = tokenizer.next(); t != JsonTokenizer.Token.END_ARRAY; t = tokenizer.next()) {
+            if (t != JsonTokenizer.Token.START_OBJECT) {
+                throw new JsonException(PN_ORDEREDCHILDREN + " array must only have JSONObject items");
+            }
+            writeOrderedChild(tokenizer.readObject(getBuilderFactory()), contentCreator);
+        }
+        return true;
+    }
+
+    private void writeOrderedChild(JsonObject child, ContentCreator contentCreator) throws RepositoryException {
+        String childName = child.getString(PN_ORDEREDCHILDNAME, null);
+        if (childName == null || childName.isEmpty()) {
+            throw new JsonException(
+                    PN_ORDEREDCHILDREN + " children must have a name whose key is " + PN_ORDEREDCHILDNAME);
+        }
+        contentCreator.createNode(childName, child.getString("jcr:primaryType", null), getMixinTypes(child));
+        for (Map.Entry<String, JsonValue> entry : child.entrySet()) {
+            final String n = entry.getKey();
+            if (!ignoredNames.contains(n) && !PN_ORDEREDCHILDNAME.equals(n)) {
+                writeChild(n, entry.getValue(), contentCreator);
             }
         }
+        contentCreator.finishNode();
     }
 }
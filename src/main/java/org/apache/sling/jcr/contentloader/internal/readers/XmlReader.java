@@ -20,32 +20,40 @@ package org.apache.sling.jcr.contentloader.internal.readers;
 
 import javax.jcr.PropertyType;
 import javax.jcr.RepositoryException;
-import javax.xml.transform.Source;
 import javax.xml.transform.Templates;
 import javax.xml.transform.TransformerConfigurationException;
-import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.stream.StreamResult;
 import javax.xml.transform.stream.StreamSource;
 
-import java.io.BufferedInputStream;
-import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
 import java.net.MalformedURLException;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.net.URLConnection;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -54,8 +62,8 @@ import org.apache.sling.jcr.contentloader.ContentReader;
 import org.jetbrains.annotations.Nullable;
 import org.kxml2.io.KXmlParser;
 import org.osgi.framework.Constants;
-import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xmlpull.v1.XmlPullParser;
@@ -143,21 +151,66 @@ public class XmlReader implements ContentReader {
     private static final String ELEM_FILE_NAMESPACE = "http://www.jcp.org/jcr/nt/1.0";
     private static final String ELEM_FILE_NAME = "file";
 
+    private static final int MAX_CACHED_TEMPLATES = 32;
+
+    private static final int TRANSFORMER_THREADS = Runtime.getRuntime().availableProcessors();
+
+    private static final int PIPE_SIZE = 65536;
+
     private static final String INVALID_XML_UNEXPECTED_ELEMENT =
             "XML file does not seem to contain valid content xml. Unexpected %s element in : %s";
     private static final String INVALID_XML_ELEMENT_NOT_ALLOWED = "Element is not allowed at this location: %s in %s";
 
-    private KXmlParser xmlParser;
+    /** The compiled stylesheets by their location, the least recently used ones are dropped */
+    private final Map<String, CachedTemplates> templatesCache =
+            Collections.synchronizedMap(new LinkedHashMap<String, CachedTemplates>(16, 0.75f, true) {
 
-    @Activate
-    protected void activate() {
-        this.xmlParser = new KXmlParser();
-        try {
-            // Make namespace-aware
-            this.xmlParser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
-        } catch (XmlPullParserException e) {
-            throw new RuntimeException(e);
-        }
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(final Map.Entry<String, CachedTemplates> eldest) {
+                    return size() > MAX_CACHED_TEMPLATES;
+                }
+            });
+
+    private final AtomicInteger transformerThreadCounter = new AtomicInteger();
+
+    /** The threads running the XSL transformations, idle threads are stopped */
+    private final ThreadPoolExecutor transformerExecutor = createTransformerExecutor();
+
+    private ThreadPoolExecutor createTransformerExecutor() {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                TRANSFORMER_THREADS,
+                TRANSFORMER_THREADS,
+                60,
+                TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(),
+                runnable -> {
+                    final Thread thread = new Thread(
+                            runnable,
+                            "Sling ContentLoader XSL Transformer #" + transformerThreadCounter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        transformerExecutor.shutdownNow();
+    }
+
+    /**
+     * Creates the parser for a single parse. The parser and the descriptions
+     * collected while parsing are never shared, so that several documents can
+     * be parsed at the same time.
+     */
+    private static KXmlParser createParser() throws XmlPullParserException {
+        final KXmlParser xmlParser = new KXmlParser();
+        // Make namespace-aware
+        xmlParser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+        return xmlParser;
     }
 
     // ---------- XML content access -------------------------------------------
@@ -167,13 +220,10 @@ public class XmlReader implements ContentReader {
      *      org.apache.sling.jcr.contentloader.ContentCreator)
      */
     @Override
-    public synchronized void parse(final URL url, final ContentCreator creator)
-            throws IOException, RepositoryException {
+    public void parse(final URL url, final ContentCreator creator) throws IOException, RepositoryException {
 
-        try (BufferedInputStream bufferedInput = new BufferedInputStream(url.openStream())) {
-            // We need to buffer input, so that we can reset the stream if we encounter an
-            // XSL stylesheet reference
-            parseInternal(bufferedInput, creator, url);
+        try (InputStream input = url.openStream()) {
+            parseInternal(createParser(), input, creator, url);
         } catch (XmlPullParserException xppe) {
             throw (IOException) new IOException(xppe.getMessage()).initCause(xppe);
         }
@@ -188,89 +238,75 @@ public class XmlReader implements ContentReader {
      */
     @Override
     public void parse(InputStream ins, ContentCreator creator) throws IOException, RepositoryException {
-        try (BufferedInputStream bufferedInput = new BufferedInputStream(ins)) {
-            // We need to buffer input, so that we can reset the stream if we encounter an
-            // XSL stylesheet reference
+        try (InputStream input = ins) {
             URL xmlLocation = null;
-            parseInternal(bufferedInput, creator, xmlLocation);
+            parseInternal(createParser(), input, creator, xmlLocation);
         } catch (XmlPullParserException xppe) {
             throw (IOException) new IOException(xppe.getMessage()).initCause(xppe);
         }
     }
 
-    private void parseInternal(final InputStream bufferedInput, final ContentCreator creator, final URL xmlLocation)
+    private void parseInternal(
+            final KXmlParser xmlParser, final InputStream input, final ContentCreator creator, final URL xmlLocation)
             throws XmlPullParserException, IOException, RepositoryException {
         final StringBuilder contentBuffer = new StringBuilder();
-        // Mark the beginning of the stream. We assume that if there's an XSL processing
-        // instruction,
-        // it will occur in the first gulp - which makes sense, as processing
-        // instructions must be
-        // specified before the root element of an XML file.
-        bufferedInput.mark(bufferedInput.available());
         // set the parser input, use null encoding to force detection with
         // <?xml?>
-        this.xmlParser.setInput(bufferedInput, null);
+        xmlParser.setInput(input, null);
 
-        NodeDescription.SHARED.clear();
-        PropertyDescription.SHARED.clear();
-        FileDescription.SHARED.clear();
+        final NodeDescription nodeDescription = new NodeDescription();
+        final PropertyDescription propertyDescription = new PropertyDescription();
+        final FileDescription fileDescription = new FileDescription();
+        final AttributeMap attributes = new AttributeMap();
 
         NodeDescription currentNode = null;
         PropertyDescription currentProperty = null;
         String currentElement;
 
-        int eventType = this.xmlParser.getEventType();
+        int eventType = xmlParser.getEventType();
         while (eventType != XmlPullParser.END_DOCUMENT) {
             if (eventType == XmlPullParser.PROCESSING_INSTRUCTION) {
-                ProcessingInstruction pi = new ProcessingInstruction(this.xmlParser.getText());
+                ProcessingInstruction pi = new ProcessingInstruction(xmlParser.getText());
                 // Look for a reference to an XSL stylesheet
                 if (pi.getName().equals(XML_STYLESHEET_PROCESSING_INSTRUCTION) && xmlLocation != null) {
-                    // Rewind the input stream to the beginning, so that it can be transformed with
-                    // XSL
-                    bufferedInput.reset();
-                    // Pipe the XML input through the XSL transformer
-                    XslTransformerStream transformerStream =
-                            new XslTransformerStream(bufferedInput, pi.getAttribute(HREF_ATTRIBUTE), xmlLocation);
-                    // Start the transformer thread
-                    transformerStream.startTransform();
-                    // Re-run the XML parser, now with the transformed XML
-                    parseInternal(transformerStream, creator, xmlLocation);
-                    transformerStream.close();
+                    // Re-run the XML parser with the document transformed from its beginning
+                    try (InputStream transformed = transform(xmlLocation, pi.getAttribute(HREF_ATTRIBUTE))) {
+                        parseInternal(xmlParser, transformed, creator, xmlLocation);
+                    }
                     return;
                 }
             }
             if (eventType == XmlPullParser.START_TAG) {
 
-                currentElement = this.xmlParser.getName();
+                currentElement = xmlParser.getName();
 
                 if (ELEM_PROPERTY.equals(currentElement)) {
                     currentNode = NodeDescription.create(currentNode, creator);
-                    currentProperty = PropertyDescription.SHARED;
+                    currentProperty = propertyDescription;
                 } else if (ELEM_NODE.equals(currentElement)) {
                     NodeDescription.create(currentNode, creator);
-                    currentNode = NodeDescription.SHARED;
+                    currentNode = nodeDescription;
                 } else if (ELEM_FILE_NAME.equals(currentElement)
-                        && ELEM_FILE_NAMESPACE.equals(this.xmlParser.getNamespace())) {
+                        && ELEM_FILE_NAMESPACE.equals(xmlParser.getNamespace())) {
                     if (xmlLocation != null) {
-                        int attributeCount = this.xmlParser.getAttributeCount();
+                        int attributeCount = xmlParser.getAttributeCount();
                         if (attributeCount < 2 || attributeCount > 3) {
                             throw new IOException(
                                     "File element must have these attributes: url, mimeType and lastModified: "
                                             + xmlLocation);
                         }
                         try {
-                            AttributeMap attributes = AttributeMap.getInstance();
                             attributes.setValues(xmlParser);
-                            FileDescription.SHARED.setBaseLocation(xmlLocation);
-                            FileDescription.SHARED.setValues(attributes);
+                            fileDescription.setBaseLocation(xmlLocation);
+                            fileDescription.setValues(attributes);
                             attributes.clear();
                         } catch (ParseException e) {
                             IOException ioe = new IOException("Error parsing file description: " + xmlLocation);
                             ioe.initCause(e);
                             throw ioe;
                         }
-                        FileDescription.SHARED.create(creator);
-                        FileDescription.SHARED.clear();
+                        fileDescription.create(creator);
+                        fileDescription.clear();
                     } else {
                         logger.warn("file element encountered when xml location isn't known. skipping.");
                     }
@@ -278,7 +314,7 @@ public class XmlReader implements ContentReader {
 
             } else if (eventType == XmlPullParser.END_TAG) {
 
-                String qName = this.xmlParser.getName();
+                String qName = xmlParser.getName();
                 String content = contentBuffer.toString().trim();
                 contentBuffer.delete(0, contentBuffer.length());
 
@@ -336,95 +372,143 @@ public class XmlReader implements ContentReader {
                     currentNode.addMixinType(content);
                 }
             } else if (eventType == XmlPullParser.TEXT || eventType == XmlPullParser.CDSECT) {
-                contentBuffer.append(this.xmlParser.getText());
+                contentBuffer.append(xmlParser.getText());
             }
 
-            eventType = this.xmlParser.nextToken();
+            eventType = xmlParser.nextToken();
         }
     }
 
     /**
-     * Takes an XML input stream and pipes it through an XSL transformer. Callers
-     * should call {@link #startTransform} before trying to use the stream, or the
-     * caller will wait indefinately for input.
+     * Transforms the document at the given location with the referenced XSL
+     * stylesheet. The document is read again from its location, so the input
+     * of the parser does not have to be kept for a reset. The transformation
+     * runs on one of the transformer threads and its output is piped to the
+     * returned stream while it is parsed.
      */
-    private static class XslTransformerStream extends PipedInputStream {
-        private InputStream inputXml;
-        private String xslHref;
-        private Thread transformerThread;
-        private PipedOutputStream pipedOut;
-        private URL xmlLocation;
+    private InputStream transform(final URL xmlLocation, final String xslHref) throws IOException {
+        final URL xslResource = new URL(xmlLocation, xslHref);
+        final Templates templates;
+        try {
+            templates = getTemplates(xslResource);
+        } catch (TransformerConfigurationException e) {
+            throw new IOException("Error compiling " + xslResource, e);
+        }
+        final TransformedInputStream transformed =
+                new TransformedInputStream("Error transforming " + xmlLocation + " with " + xslResource);
+        final PipedOutputStream pipedOut = new PipedOutputStream(transformed);
+        transformed.transformation = transformerExecutor.submit(() -> {
+            try (InputStream xml = xmlLocation.openStream();
+                    OutputStream out = pipedOut) {
+                templates
+                        .newTransformer()
+                        .transform(new StreamSource(xml, xmlLocation.toExternalForm()), new StreamResult(out));
+            }
+            return null;
+        });
+        return transformed;
+    }
 
-        /**
-         * Instantiate the XslTransformerStream.
-         *
-         * @param inputXml
-         *            XML to be transformed.
-         * @param xslHref
-         *            Path to an XSL stylesheet
-         * @param xmlLocation
-         * @throws IOException
-         */
-        public XslTransformerStream(InputStream inputXml, String xslHref, URL xmlLocation) throws IOException {
-            super();
-            this.inputXml = inputXml;
-            this.xslHref = xslHref;
-            this.transformerThread = null;
-            this.pipedOut = new PipedOutputStream(this);
-            this.xmlLocation = xmlLocation;
+    /**
+     * Returns the compiled stylesheet at the given location. Stylesheets are
+     * compiled once and reused as long as their last modification time does not
+     * change. The modification time of a stylesheet file is read without opening
+     * it, other connections are opened to get it and always closed again.
+     */
+    Templates getTemplates(final URL xslResource) throws IOException, TransformerConfigurationException {
+        final String key = xslResource.toExternalForm();
+        if ("file".equals(xslResource.getProtocol())) {
+            final CachedTemplates cached = templatesCache.get(key);
+            if (cached != null && cached.lastModified == getFileLastModified(xslResource)) {
+                return cached.templates;
+            }
         }
+        final URLConnection connection = xslResource.openConnection();
+        try (InputStream xsl = connection.getInputStream()) {
+            final long lastModified = connection.getLastModified();
+            final CachedTemplates cached = templatesCache.get(key);
+            if (cached != null && cached.lastModified == lastModified) {
+                return cached.templates;
+            }
+            final Templates templates = TransformerFactory.newInstance().newTemplates(new StreamSource(xsl, key));
+            templatesCache.put(key, new CachedTemplates(lastModified, templates));
+            return templates;
+        }
+    }
 
-        /**
-         * Starts the XSL transformer in a new thread, so that it can pipe its output to
-         * our <code>PipedInputStream</code>.
-         *
-         * @throws IOException
-         */
-        public void startTransform() throws IOException {
-            final URL xslResource = new URL(xmlLocation, this.xslHref);
+    private static long getFileLastModified(final URL url) {
+        try {
+            return new File(url.toURI()).lastModified();
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            // not a plain file, the modification time is read from the connection
+            return -1;
+        }
+    }
 
-            transformerThread = new Thread(
-                    () -> {
-                        try {
-                            Source xml = new StreamSource(inputXml);
-                            Source xsl = new StreamSource(xslResource.toExternalForm());
-                            final StreamResult streamResult;
-                            final Templates templates =
-                                    TransformerFactory.newInstance().newTemplates(xsl);
-                            streamResult = new StreamResult(pipedOut);
-                            templates.newTransformer().transform(xml, streamResult);
-                        } catch (TransformerConfigurationException e) {
-                            throw new RuntimeException("Error initializing XSL transformer", e);
-                        } catch (TransformerException e) {
-                            throw new RuntimeException("Error transforming", e);
-                        } finally {
-                            closeStream(pipedOut);
-                        }
-                    },
-                    "XslTransformerThread");
-            transformerThread.start();
+    /**
+     * The output of a transformation, reporting a failed transformation at the
+     * end of the output and stopping the transformation when it is closed early.
+     */
+    private static final class TransformedInputStream extends PipedInputStream {
+
+        private final String errorMessage;
+
+        private volatile Future<?> transformation;
+
+        private TransformedInputStream(final String errorMessage) {
+            super(PIPE_SIZE);
+            this.errorMessage = errorMessage;
         }
 
-        /**
-         * Utility function to close a stream if it is still open.
-         *
-         * @param closeable
-         *            Stream to close
-         */
-        private static void closeStream(Closeable closeable) {
-            if (closeable != null) {
-                try {
-                    closeable.close();
-                } catch (IOException ignore) {
-                    // ignore
-                }
+        @Override
+        public synchronized int read() throws IOException {
+            final int b = super.read();
+            if (b < 0) {
+                checkTransformation();
+            }
+            return b;
+        }
+
+        @Override
+        public synchronized int read(final byte[] b, final int off, final int len) throws IOException {
+            final int n = super.read(b, off, len);
+            if (n < 0) {
+                checkTransformation();
             }
+            return n;
+        }
+
+        private void checkTransformation() throws IOException {
+            try {
+                transformation.get();
+            } catch (ExecutionException e) {
+                throw new IOException(errorMessage, e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(errorMessage);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            super.close();
+            transformation.cancel(true);
         }
     }
 
-    protected static final class NodeDescription {
+    private static final class CachedTemplates {
 
-        public static final NodeDescription SHARED = new NodeDescription();
+        private final long lastModified;
+
+        private final Templates templates;
+
+        private CachedTemplates(final long lastModified, final Templates templates) {
+            this.lastModified = lastModified;
+            this.templates = templates;
+        }
+    }
+
+    protected static final class NodeDescription {
 
         private String name;
         private String primaryNodeType;
@@ -479,8 +563,6 @@ public class XmlReader implements ContentReader {
 
     protected static final class PropertyDescription {
 
-        public static final PropertyDescription SHARED = new PropertyDescription();
-
         public static PropertyDescription create(PropertyDescription desc, ContentCreator creator)
                 throws RepositoryException {
             int type = (desc.getType() == null ? PropertyType.STRING : PropertyType.valueFromName(desc.getType()));
@@ -615,7 +697,6 @@ public class XmlReader implements ContentReader {
         private URL baseLocation;
         private Long lastModified;
 
-        public static final FileDescription SHARED = new FileDescription();
         private static final String SRC_ATTRIBUTE = "src";
         private static final String MIME_TYPE_ATTRIBUTE = "mimeType";
         private static final String LAST_MODIFIED_ATTRIBUTE = "lastModified";
@@ -696,11 +777,6 @@ public class XmlReader implements ContentReader {
     protected static class AttributeMap extends HashMap<String, String> {
 
         private static final long serialVersionUID = -6304058237706001104L;
-        private static final AttributeMap instance = new AttributeMap();
-
-        public static AttributeMap getInstance() {
-            return instance;
-        }
 
         /**
          * Puts values in an <code>AttributeMap</code> by extracting attributes from the
@@ -20,29 +20,44 @@ package org.apache.sling.jcr.contentloader.internal.readers;
 
 import javax.jcr.RepositoryException;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.net.URISyntaxException;
 import java.nio.file.Files;
 import java.nio.file.attribute.FileAttribute;
 import java.nio.file.attribute.PosixFilePermission;
 import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
 
-import org.apache.commons.io.input.CloseShieldInputStream;
 import org.apache.commons.lang3.SystemUtils;
 import org.apache.sling.jcr.contentloader.ContentCreator;
 import org.apache.sling.jcr.contentloader.ContentReader;
 import org.osgi.framework.Constants;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
 import org.osgi.service.metatype.annotations.AttributeDefinition;
 import org.osgi.service.metatype.annotations.Designate;
 import org.osgi.service.metatype.annotations.ObjectClassDefinition;
@@ -85,19 +100,62 @@ public class ZipReader implements ContentReader {
                 name = "%zipreader.config.thresholdRatio.name",
                 description = "%zipreader.config.thresholdRatio.description")
         double thresholdRatio() default 10.0;
+
+        @AttributeDefinition(
+                name = "%zipreader.config.memoryThreshold.name",
+                description = "%zipreader.config.memoryThreshold.description")
+        int memoryThreshold() default 65536; // 64 KB
+
+        @AttributeDefinition(
+                name = "%zipreader.config.inflaterThreads.name",
+                description = "%zipreader.config.inflaterThreads.description")
+        int inflaterThreads() default 1;
     }
 
     private static final String NT_FOLDER = "nt:folder";
 
+    private static final int BUFFER_SIZE = 8192;
+
     private long thresholdEntries;
     private long thresholdSize;
     private double thresholdRatio;
+    private int memoryThreshold;
+    private int inflaterThreads;
+
+    /**
+     * The threads inflating the entries of local archives, shared by all archives
+     * and created on first use.
+     */
+    private ExecutorService inflaterPool;
 
     @Activate
     void activate(Config config) {
         thresholdEntries = config.thresholdEntries();
         thresholdSize = config.thresholdSize();
         thresholdRatio = config.thresholdRatio();
+        memoryThreshold = Math.max(0, config.memoryThreshold());
+        inflaterThreads = config.inflaterThreads();
+    }
+
+    @Deactivate
+    synchronized void deactivate() {
+        if (inflaterPool != null) {
+            inflaterPool.shutdownNow();
+            inflaterPool = null;
+        }
+    }
+
+    private synchronized ExecutorService getInflaterPool() {
+        if (inflaterPool == null) {
+            final AtomicInteger threadCounter = new AtomicInteger();
+            inflaterPool = Executors.newFixedThreadPool(inflaterThreads, runnable -> {
+                final Thread thread =
+                        new Thread(runnable, "Sling ContentLoader Zip Inflater #" + threadCounter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return inflaterPool;
     }
 
     /**
@@ -105,11 +163,34 @@ public class ZipReader implements ContentReader {
      */
     @Override
     public void parse(java.net.URL url, ContentCreator creator) throws IOException, RepositoryException {
+        final File file = inflaterThreads > 1 ? toFile(url) : null;
+        if (file != null) {
+            try (ZipFile zipFile = new ZipFile(file)) {
+                parse(zipFile, creator);
+            }
+            return;
+        }
         try (InputStream is = url.openStream()) {
             parse(is, creator);
         }
     }
 
+    /**
+     * Returns the local file of a <code>file:</code> URL or <code>null</code>
+     * if the URL does not denote a local file.
+     */
+    private static File toFile(java.net.URL url) {
+        if ("file".equals(url.getProtocol())) {
+            try {
+                final File file = new File(url.toURI());
+                return file.isFile() ? file : null;
+            } catch (URISyntaxException | IllegalArgumentException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
     /**
      * NOTE: made this a method to ease testing
      * @return true if this is a unix environment, false otherwise
@@ -148,93 +229,305 @@ public class ZipReader implements ContentReader {
      */
     @Override
     public void parse(InputStream ins, ContentCreator creator) throws IOException, RepositoryException {
-        File tempFile = null;
-        try (ZipInputStream zis = new ZipInputStream(ins)) {
+        try (ZipInputStream zis = new ZipInputStream(ins);
+                EntryBuffer buffer = new EntryBuffer(true)) {
             creator.createNode(null, NT_FOLDER, null);
+            final DirectoryCursor cursor = new DirectoryCursor(creator);
             ZipEntry entry;
-            int totalSizeArchive = 0;
-            int totalEntryArchive = 0;
-            tempFile = createTempFile();
+            long totalSizeArchive = 0;
+            long totalEntryArchive = 0;
             do {
                 entry = zis.getNextEntry();
                 if (entry != null) {
                     totalEntryArchive++;
 
                     if (!entry.isDirectory()) {
-                        // uncompress the entry to a temp file
-                        totalSizeArchive =
-                                copyZipEntryToTempFile(tempFile, zis, entry, totalSizeArchive, totalEntryArchive);
-
-                        // now process the entry data from the data stored in the temp file
-                        String name = entry.getName();
-                        int pos = name.lastIndexOf('/');
-                        if (pos != -1) {
-                            creator.switchCurrentNode(name.substring(0, pos), NT_FOLDER);
-                        }
-                        try (FileInputStream fis = new FileInputStream(tempFile)) {
-                            creator.createFileAndResourceNode(name, fis, null, entry.getTime());
-                        }
-                        creator.finishNode();
-                        creator.finishNode();
-                        if (pos != -1) {
-                            creator.finishNode();
-                        }
+                        // uncompress the entry to memory or a temp file
+                        totalSizeArchive += buffer.read(zis, entry);
+                        checkThresholds(totalSizeArchive, totalEntryArchive);
+
+                        // now process the entry data from the uncompressed data
+                        createFile(creator, cursor, entry, buffer);
                     }
                     zis.closeEntry();
                 }
 
             } while (entry != null);
+            cursor.moveTo("");
+            creator.finishNode();
+        }
+    }
+
+    /**
+     * Reads the archive from a local file. The entries up to the memory
+     * threshold are inflated by the inflater pool ahead of the calling thread,
+     * which creates the files in the order of the archive. Larger entries are
+     * inflated by the calling thread.
+     */
+    private void parse(ZipFile zipFile, ContentCreator creator) throws IOException, RepositoryException {
+        final List<? extends ZipEntry> entries = Collections.list(zipFile.entries());
+        checkThresholds(0, entries.size());
+        final List<ZipEntry> files = new ArrayList<>(entries.size());
+        for (ZipEntry entry : entries) {
+            if (!entry.isDirectory()) {
+                files.add(entry);
+            }
+        }
+
+        final ExecutorService executor = getInflaterPool();
+        // the entries inflated ahead, at most two per thread
+        final Deque<Future<EntryBuffer>> inflated = new ArrayDeque<>();
+        try (EntryBuffer buffer = new EntryBuffer(true)) {
+            creator.createNode(null, NT_FOLDER, null);
+            final DirectoryCursor cursor = new DirectoryCursor(creator);
+            long totalSizeArchive = 0;
+            int next = 0;
+            for (ZipEntry entry : files) {
+                while (next < files.size() && inflated.size() < 2 * inflaterThreads) {
+                    final ZipEntry ahead = files.get(next++);
+                    if (isInflatedAhead(ahead)) {
+                        inflated.add(executor.submit(() -> inflate(zipFile, ahead, new EntryBuffer(false))));
+                    }
+                }
+                final EntryBuffer data =
+                        isInflatedAhead(entry) ? getInflated(inflated.poll()) : inflate(zipFile, entry, buffer);
+                totalSizeArchive += data.size();
+                checkThresholds(totalSizeArchive, entries.size());
+                createFile(creator, cursor, entry, data);
+            }
+            cursor.moveTo("");
             creator.finishNode();
         } finally {
-            removeTempFile(tempFile);
+            // drop the entries inflated ahead of a failure, which are kept in memory only
+            for (Future<EntryBuffer> future : inflated) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    private boolean isInflatedAhead(ZipEntry entry) {
+        return entry.getSize() >= 0 && entry.getSize() <= memoryThreshold;
+    }
+
+    private EntryBuffer inflate(ZipFile zipFile, ZipEntry entry, EntryBuffer buffer) throws IOException {
+        try (InputStream in = zipFile.getInputStream(entry)) {
+            buffer.read(in, entry);
+        }
+        return buffer;
+    }
+
+    private static EntryBuffer getInflated(Future<EntryBuffer> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while inflating a zip entry");
+        } catch (ExecutionException ee) {
+            if (ee.getCause() instanceof IOException) {
+                throw (IOException) ee.getCause();
+            }
+            throw new IOException("Failed to inflate a zip entry", ee.getCause());
         }
     }
 
+    private void createFile(ContentCreator creator, DirectoryCursor cursor, ZipEntry entry, EntryBuffer buffer)
+            throws IOException, RepositoryException {
+        String name = entry.getName();
+        cursor.moveTo(name);
+        try (InputStream data = buffer.openStream()) {
+            creator.createFileAndResourceNode(name, data, null, entry.getTime());
+        }
+        creator.finishNode();
+        creator.finishNode();
+    }
+
     /**
-     * Copy the contents of a zip entry to a temp file and check the
-     * entry contents against the configured threshold for violations
-     *
-     * @param tempFile the temp file to write the entry to
-     * @param zis the input stream for the zip file we are processing
-     * @param entry the current zip entry
-     * @param totalSizeArchive the total size of the archive so far
-     * @param totalEntryArchive the total number of entries so far
-     * @return the new totalSizeArchive value after reading the entry
-     * @throws IOException
+     * Keeps the folders of the last entry switched to on the content creator.
+     * Moving to the next entry only finishes and switches to the folders which
+     * differ, so consecutive entries of the same folder do not walk their path
+     * again.
      */
-    protected int copyZipEntryToTempFile(
-            File tempFile, ZipInputStream zis, ZipEntry entry, int totalSizeArchive, int totalEntryArchive)
-            throws IOException {
-        int nBytes = -1;
-        byte[] buffer = new byte[2048];
-        int totalSizeEntry = 0;
-
-        // read the entry to a temp file so we can check the contents against
-        //  the configured thresholds
-        try (InputStream in = new BufferedInputStream(CloseShieldInputStream.wrap(zis));
-                OutputStream out = new BufferedOutputStream(new FileOutputStream(tempFile))) {
-            while ((nBytes = in.read(buffer)) > 0) { // Compliant
-                out.write(buffer, 0, nBytes);
-                totalSizeEntry += nBytes;
-                totalSizeArchive += nBytes;
-
-                double compressionRatio = (double) totalSizeEntry / entry.getCompressedSize();
-                if (compressionRatio > thresholdRatio) {
-                    // ratio between compressed and uncompressed data is highly suspicious, looks like a Zip Bomb Attack
-                    throw new IOException("The compression ratio exceeded the allowed threshold");
+    private static final class DirectoryCursor {
+
+        private final ContentCreator creator;
+
+        private final List<String> folders = new ArrayList<>();
+
+        DirectoryCursor(ContentCreator creator) {
+            this.creator = creator;
+        }
+
+        /**
+         * Switches to the folder of the given entry name, an entry name without
+         * a folder finishes all folders.
+         */
+        void moveTo(String name) throws RepositoryException {
+            final int end = name.lastIndexOf('/');
+            int depth = 0;
+            int start = 0;
+            while (start < end) {
+                int pos = name.indexOf('/', start);
+                if (pos > start) {
+                    if (depth < folders.size()
+                            && folders.get(depth).regionMatches(0, name, start, pos - start)
+                            && folders.get(depth).length() == pos - start) {
+                        depth++;
+                    } else {
+                        finishFolders(depth);
+                        final String folder = name.substring(start, pos);
+                        creator.switchCurrentNode(folder, NT_FOLDER);
+                        folders.add(folder);
+                        depth++;
+                    }
+                }
+                start = pos + 1;
+            }
+            finishFolders(depth);
+        }
+
+        private void finishFolders(int depth) throws RepositoryException {
+            while (folders.size() > depth) {
+                folders.remove(folders.size() - 1);
+                creator.finishNode();
+            }
+        }
+    }
+
+    private void checkThresholds(long totalSizeArchive, long totalEntryArchive) throws IOException {
+        if (totalSizeArchive > thresholdSize) {
+            // the uncompressed data size is too much for the application resource capacity
+            throw new IOException("The total size of the archive exceeded the allowed threshold");
+        }
+
+        if (totalEntryArchive > thresholdEntries) {
+            // too many entries in this archive, can lead to inodes exhaustion of the system
+            throw new IOException("The total entries count of the archive exceeded the allowed threshold");
+        }
+    }
+
+    /**
+     * Holds the uncompressed contents of a zip entry. Entries up to the memory
+     * threshold are kept in a byte array which is reused for the following
+     * entries, larger entries are spooled to a temp file which is created on
+     * first use and reused as well.
+     */
+    private final class EntryBuffer implements Closeable {
+
+        private final boolean spoolingAllowed;
+
+        private byte[] data = new byte[BUFFER_SIZE];
+
+        private int length;
+
+        private File tempFile;
+
+        private boolean spooled;
+
+        private long size;
+
+        /**
+         * @param spoolingAllowed whether entries larger than the memory threshold
+         *            may be spooled to a temp file or are rejected
+         */
+        EntryBuffer(boolean spoolingAllowed) {
+            this.spoolingAllowed = spoolingAllowed;
+        }
+
+        /**
+         * Uncompress a zip entry and check the entry contents against the
+         * configured compression ratio for violations
+         *
+         * @param in the input stream of the entry data
+         * @param entry the zip entry
+         * @return the uncompressed size of the entry
+         * @throws IOException
+         */
+        long read(InputStream in, ZipEntry entry) throws IOException {
+            length = 0;
+            spooled = false;
+            OutputStream out = null;
+            try {
+                long totalSizeEntry = 0;
+                int nBytes;
+                while (true) {
+                    if (out == null && length == Math.min(data.length, memoryThreshold)) {
+                        if (length < memoryThreshold) {
+                            data = Arrays.copyOf(data, Math.min(memoryThreshold, Math.max(2 * length, BUFFER_SIZE)));
+                        } else {
+                            // an entry of exactly the memory threshold is kept in memory
+                            final int next = in.read();
+                            if (next < 0) {
+                                break;
+                            }
+                            out = spool();
+                            out.write(next);
+                            totalSizeEntry++;
+                        }
+                    }
+                    nBytes = out == null
+                            ? in.read(data, length, Math.min(data.length, memoryThreshold) - length)
+                            : in.read(data, 0, data.length);
+                    if (nBytes <= 0) {
+                        break;
+                    }
+                    if (out == null) {
+                        length += nBytes;
+                    } else {
+                        out.write(data, 0, nBytes);
+                    }
+                    totalSizeEntry += nBytes;
+                    checkCompressionRatio(entry, totalSizeEntry);
+                }
+                // the compressed size of entries with a data descriptor is only known at their end
+                checkCompressionRatio(entry, totalSizeEntry);
+                size = totalSizeEntry;
+                return size;
+            } finally {
+                if (out != null) {
+                    out.close();
                 }
             }
+        }
+
+        long size() {
+            return size;
+        }
 
-            if (totalSizeArchive > thresholdSize) {
-                // the uncompressed data size is too much for the application resource capacity
-                throw new IOException("The total size of the archive exceeded the allowed threshold");
+        private void checkCompressionRatio(ZipEntry entry, long totalSizeEntry) throws IOException {
+            double compressionRatio = (double) totalSizeEntry / entry.getCompressedSize();
+            if (compressionRatio > thresholdRatio) {
+                // ratio between compressed and uncompressed data is highly suspicious, looks like a Zip Bomb Attack
+                throw new IOException("The compression ratio exceeded the allowed threshold");
             }
+        }
 
-            if (totalEntryArchive > thresholdEntries) {
-                // too many entries in this archive, can lead to inodes exhaustion of the system
-                throw new IOException("The total entries count of the archive exceeded the allowed threshold");
+        /**
+         * Moves the data read so far to the temp file and returns the stream to
+         * write the rest of the entry to.
+         */
+        private OutputStream spool() throws IOException {
+            if (!spoolingAllowed) {
+                throw new IOException("The zip entry exceeds its declared size");
+            }
+            if (tempFile == null) {
+                tempFile = createTempFile();
             }
+            final OutputStream out = new BufferedOutputStream(new FileOutputStream(tempFile));
+            out.write(data, 0, length);
+            spooled = true;
+            if (data.length < BUFFER_SIZE) {
+                data = new byte[BUFFER_SIZE];
+            }
+            return out;
+        }
+
+        InputStream openStream() throws IOException {
+            return spooled ? new FileInputStream(tempFile) : new ByteArrayInputStream(data, 0, length);
+        }
+
+        @Override
+        public void close() {
+            removeTempFile(tempFile);
         }
-        return totalSizeArchive;
     }
 }
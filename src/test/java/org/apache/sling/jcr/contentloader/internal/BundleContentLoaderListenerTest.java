@@ -24,7 +24,7 @@ import javax.jcr.Session;
 import javax.jcr.lock.LockManager;
 
 import java.util.Calendar;
-import java.util.List;
+import java.util.Collections;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
@@ -33,6 +33,7 @@ import org.apache.sling.jcr.contentloader.internal.readers.JsonReader;
 import org.apache.sling.jcr.contentloader.internal.readers.OrderedJsonReader;
 import org.apache.sling.jcr.contentloader.internal.readers.XmlReader;
 import org.apache.sling.jcr.contentloader.internal.readers.ZipReader;
+import org.apache.sling.settings.SlingSettingsService;
 import org.apache.sling.testing.mock.osgi.MockBundle;
 import org.apache.sling.testing.mock.sling.ResourceResolverType;
 import org.apache.sling.testing.mock.sling.junit5.SlingContext;
@@ -40,12 +41,16 @@ import org.apache.sling.testing.mock.sling.junit5.SlingContextExtension;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mockito;
 import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
 import org.osgi.framework.BundleEvent;
 
 import static org.apache.sling.jcr.contentloader.internal.BundleContentLoaderListener.BUNDLE_CONTENT_NODE;
+import static org.apache.sling.jcr.contentloader.internal.BundleContentLoaderListener.PROPERTY_CONTENT_DIGEST;
 import static org.apache.sling.jcr.contentloader.internal.BundleContentLoaderListener.PROPERTY_CONTENT_LOADED;
 import static org.apache.sling.jcr.contentloader.internal.BundleContentLoaderListener.PROPERTY_CONTENT_LOADED_AT;
+import static org.apache.sling.jcr.contentloader.internal.BundleContentLoaderListener.PROPERTY_ENTRY_DIGESTS;
 import static org.apache.sling.jcr.contentloader.internal.BundleContentLoaderListener.PROPERTY_UNINSTALL_PATHS;
 import static org.hamcrest.CoreMatchers.notNullValue;
 import static org.hamcrest.MatcherAssert.assertThat;
@@ -90,9 +95,8 @@ class BundleContentLoaderListenerTest {
     @Test
     void testBundleResolvedBundleChanged() {
         final Bundle bundle = createNewBundle();
-        @SuppressWarnings("unchecked")
-        final List<Bundle> delayedBundles =
-                (List<Bundle>) ReflectionTools.getFieldWithReflection(contentLoader, "delayedBundles", List.class);
+        final DelayedBundles delayedBundles =
+                ReflectionTools.getFieldWithReflection(contentLoader, "delayedBundles", DelayedBundles.class);
         @SuppressWarnings("unchecked")
         final Set<String> updatedBundles =
                 (Set<String>) ReflectionTools.getFieldWithReflection(underTest, "updatedBundles", Set.class);
@@ -111,6 +115,158 @@ class BundleContentLoaderListenerTest {
         underTest.bundleChanged(new BundleEvent(BundleEvent.UNINSTALLED, bundle));
     }
 
+    // -------BundleContentLoaderListener#activate(BundleContext, BundleContentLoaderConfiguration)-------//
+
+    @Test
+    void testActivateWithStartupThreads() throws RepositoryException {
+        final Bundle[] bundles = new Bundle[6];
+        for (int i = 0; i < bundles.length; i++) {
+            MockBundle bundle = (MockBundle) createNewBundle();
+            bundle.setHeaders(
+                    Collections.singletonMap("Sling-Initial-Content", "SLING-INF/libs/app;path:=/libs/app" + i));
+            bundles[i] = bundle;
+        }
+        final BundleContext bundleContext = Mockito.mock(BundleContext.class);
+        Mockito.doReturn(bundles).when(bundleContext).getBundles();
+
+        underTest.activate(bundleContext, new TestBundleContentLoaderConfiguration() {
+            @Override
+            public int startupThreads() {
+                return 4;
+            }
+        });
+
+        session.refresh(false);
+        for (int i = 0; i < bundles.length; i++) {
+            assertTrue(session.nodeExists("/libs/app" + i), "Content of bundle " + i + " not loaded");
+            final Map<String, Object> info = underTest.getBundleContentInfo(session, bundles[i], false);
+            assertNotNull(info);
+            assertEquals(Boolean.TRUE, info.get(PROPERTY_CONTENT_LOADED));
+            underTest.unlockBundleContentInfo(session, bundles[i], false, null);
+        }
+        contentLoader =
+                ReflectionTools.getFieldWithReflection(underTest, "bundleContentLoader", BundleContentLoader.class);
+        final DelayedBundles delayedBundles =
+                ReflectionTools.getFieldWithReflection(contentLoader, "delayedBundles", DelayedBundles.class);
+        assertTrue(delayedBundles.isEmpty());
+    }
+
+    @Test
+    void testActivateWithStartupBatch() throws RepositoryException {
+        final Bundle[] bundles = new Bundle[6];
+        for (int i = 0; i < bundles.length; i++) {
+            MockBundle bundle = (MockBundle) createNewBundle();
+            bundle.setHeaders(Collections.singletonMap(
+                    "Sling-Initial-Content", "SLING-INF/libs;path:=/libs/batch" + i + ";uninstall:=true"));
+            bundles[i] = bundle;
+        }
+        final BundleContext bundleContext = Mockito.mock(BundleContext.class);
+        Mockito.doReturn(bundles).when(bundleContext).getBundles();
+
+        underTest.activate(bundleContext, new TestBundleContentLoaderConfiguration() {
+            @Override
+            public int startupBatchSize() {
+                return 10;
+            }
+        });
+
+        session.refresh(false);
+        for (int i = 0; i < bundles.length; i++) {
+            assertTrue(session.nodeExists("/libs/batch" + i + "/app"), "Content of bundle " + i + " not loaded");
+            // the bundle content info has been unlocked after the batch has been saved
+            final Map<String, Object> info = underTest.getBundleContentInfo(session, bundles[i], false);
+            assertNotNull(info);
+            assertEquals(Boolean.TRUE, info.get(PROPERTY_CONTENT_LOADED));
+            assertNotNull(info.get(PROPERTY_UNINSTALL_PATHS));
+            underTest.unlockBundleContentInfo(session, bundles[i], false, null);
+        }
+    }
+
+    @Test
+    void testActivateWithLoadedContent() throws RepositoryException {
+        final MockBundle loaded = (MockBundle) createNewBundle();
+        loaded.setHeaders(Collections.singletonMap("Sling-Initial-Content", "SLING-INF/libs/app;path:=/libs/loaded"));
+        loaded.setLastModified(1000);
+        final MockBundle notLoaded = (MockBundle) createNewBundle();
+        notLoaded.setHeaders(
+                Collections.singletonMap("Sling-Initial-Content", "SLING-INF/libs/app;path:=/libs/notloaded"));
+
+        final Calendar loadedAt = Calendar.getInstance();
+        loadedAt.setTimeInMillis(2000);
+        final Node bcNode = session.getNode(BUNDLE_CONTENT_NODE).addNode(loaded.getSymbolicName());
+        bcNode.addMixin("mix:lockable");
+        bcNode.setProperty(PROPERTY_CONTENT_LOADED, true);
+        bcNode.setProperty(PROPERTY_CONTENT_LOADED_AT, loadedAt);
+        session.save();
+
+        final BundleContext bundleContext = Mockito.mock(BundleContext.class);
+        Mockito.doReturn(new Bundle[] {loaded, notLoaded}).when(bundleContext).getBundles();
+        underTest.activate(bundleContext, new TestBundleContentLoaderConfiguration() {});
+
+        session.refresh(false);
+        // the loaded bundle is skipped without touching its bundle content info
+        assertFalse(session.nodeExists("/libs/loaded"));
+        assertEquals(
+                2000, bcNode.getProperty(PROPERTY_CONTENT_LOADED_AT).getDate().getTimeInMillis());
+        assertTrue(session.nodeExists("/libs/notloaded"));
+    }
+
+    @Test
+    void testAsyncBundleEvents() throws RepositoryException, InterruptedException {
+        final BundleContext bundleContext = Mockito.mock(BundleContext.class);
+        Mockito.doReturn(new Bundle[0]).when(bundleContext).getBundles();
+        underTest.activate(bundleContext, new TestBundleContentLoaderConfiguration() {
+            @Override
+            public boolean asyncBundleEvents() {
+                return true;
+            }
+        });
+
+        final MockBundle bundle = (MockBundle) createNewBundle();
+        bundle.setHeaders(Collections.singletonMap("Sling-Initial-Content", "SLING-INF/libs/app;path:=/libs/async"));
+        underTest.bundleChanged(new BundleEvent(BundleEvent.RESOLVED, bundle));
+        for (int i = 0; i < 100 && underTest.getPendingBundleEvents() > 0; i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(0, underTest.getPendingBundleEvents());
+
+        session.refresh(false);
+        assertTrue(session.nodeExists("/libs/async"));
+        underTest.deactivate(bundleContext);
+    }
+
+    @Test
+    void testPendingUninstallOnDeactivate() throws RepositoryException, InterruptedException {
+        final BundleContext bundleContext = Mockito.mock(BundleContext.class);
+        Mockito.doReturn(new Bundle[0]).when(bundleContext).getBundles();
+        underTest.activate(bundleContext, new TestBundleContentLoaderConfiguration() {
+            @Override
+            public boolean asyncBundleEvents() {
+                return true;
+            }
+        });
+
+        final MockBundle bundle = (MockBundle) createNewBundle();
+        bundle.setHeaders(Collections.singletonMap(
+                "Sling-Initial-Content", "SLING-INF/libs;path:=/libs/pending;uninstall:=true"));
+        underTest.bundleChanged(new BundleEvent(BundleEvent.RESOLVED, bundle));
+        for (int i = 0; i < 100 && underTest.getPendingBundleEvents() > 0; i++) {
+            Thread.sleep(100);
+        }
+        session.refresh(false);
+        assertTrue(session.nodeExists("/libs/pending/app"));
+
+        // the worker cannot process events while the listener is locked
+        synchronized (underTest) {
+            underTest.bundleChanged(new BundleEvent(BundleEvent.RESOLVED, createNewBundle()));
+            underTest.bundleChanged(new BundleEvent(BundleEvent.UNINSTALLED, bundle));
+            underTest.deactivate(bundleContext);
+        }
+
+        session.refresh(false);
+        assertFalse(session.nodeExists("/libs/pending/app"));
+    }
+
     // -------BundleContentLoaderListener#bundleChanged(BundleEvent)-------//
 
     @Test
@@ -130,6 +286,139 @@ class BundleContentLoaderListenerTest {
         assertNull(underTest.getBundleContentInfo(session, bundle, false));
     }
 
+    @Test
+    void getContentInfoWithLease() throws RepositoryException {
+        activateWithLeases();
+        final Bundle bundle = createNewBundle();
+
+        assertNotNull(underTest.getBundleContentInfo(session, bundle, true));
+        session.refresh(false);
+        final Node bcNode = session.getNode(BUNDLE_CONTENT_NODE + "/" + bundle.getSymbolicName());
+        assertTrue(bcNode.isNodeType("mix:lockable"));
+        assertTrue(bcNode.hasProperty("lease-owner"));
+        assertTrue(bcNode.hasProperty("lease-expires"));
+
+        // another session cannot acquire the lease
+        final Session otherSession = underTest.getSession();
+        try {
+            assertNull(underTest.getBundleContentInfo(otherSession, bundle, false));
+        } finally {
+            otherSession.logout();
+        }
+
+        underTest.unlockBundleContentInfo(session, bundle, true, null);
+        assertFalse(bcNode.hasProperty("lease-owner"));
+        assertFalse(bcNode.hasProperty("lease-expires"));
+        assertTrue(bcNode.getProperty(PROPERTY_CONTENT_LOADED).getBoolean());
+    }
+
+    @Test
+    void getContentInfoWithExpiredLease() throws RepositoryException {
+        final Bundle bundle = createNewBundle();
+        final Node bcNode = session.getNode(BUNDLE_CONTENT_NODE).addNode(bundle.getSymbolicName());
+        bcNode.setProperty("lease-owner", "crashed");
+        bcNode.setProperty("lease-token", "token");
+        final Calendar expired = Calendar.getInstance();
+        expired.add(Calendar.MINUTE, -1);
+        bcNode.setProperty("lease-expires", expired);
+        session.save();
+
+        // the expired lease is reaped on activation
+        activateWithLeases();
+        session.refresh(false);
+        assertFalse(bcNode.hasProperty("lease-owner"));
+
+        // and taken over if it is left behind later on
+        bcNode.setProperty("lease-owner", "crashed");
+        bcNode.setProperty("lease-token", "token");
+        bcNode.setProperty("lease-expires", expired);
+        session.save();
+        assertNotNull(underTest.getBundleContentInfo(session, bundle, false));
+        assertEquals(
+                context.getService(SlingSettingsService.class).getSlingId(),
+                bcNode.getProperty("lease-owner").getString());
+        underTest.unlockBundleContentInfo(session, bundle, false, null);
+        assertFalse(bcNode.hasProperty("lease-owner"));
+    }
+
+    @Test
+    void renewLeaseWhileLoadingContent() throws RepositoryException {
+        activateWithLeases();
+        final Bundle bundle = createNewBundle();
+
+        assertNotNull(underTest.getBundleContentInfo(session, bundle, true));
+        final Node bcNode = session.getNode(BUNDLE_CONTENT_NODE + "/" + bundle.getSymbolicName());
+        final Calendar expired = Calendar.getInstance();
+        expired.add(Calendar.MINUTE, -1);
+        bcNode.setProperty("lease-expires", expired);
+        session.save();
+
+        underTest.renewLeases();
+        session.refresh(false);
+        assertTrue(bcNode.getProperty("lease-expires").getDate().after(Calendar.getInstance()));
+
+        underTest.unlockBundleContentInfo(session, bundle, true, null);
+        assertFalse(bcNode.hasProperty("lease-expires"));
+        assertTrue(bcNode.getProperty(PROPERTY_CONTENT_LOADED).getBoolean());
+    }
+
+    @Test
+    void releaseLeaseTakenOver() throws RepositoryException {
+        activateWithLeases();
+        final Bundle bundle = createNewBundle();
+
+        assertNotNull(underTest.getBundleContentInfo(session, bundle, true));
+
+        // another instance takes over the lease, saved by another session
+        final Session otherSession = underTest.getSession();
+        try {
+            final Node otherNode = otherSession.getNode(BUNDLE_CONTENT_NODE + "/" + bundle.getSymbolicName());
+            otherNode.setProperty("lease-owner", "other");
+            otherNode.setProperty("lease-token", "other-token");
+            otherSession.save();
+        } finally {
+            otherSession.logout();
+        }
+
+        // the lease of the other instance is neither renewed nor released
+        underTest.renewLeases();
+        underTest.unlockBundleContentInfo(session, bundle, true, null);
+        session.refresh(false);
+        final Node bcNode = session.getNode(BUNDLE_CONTENT_NODE + "/" + bundle.getSymbolicName());
+        assertEquals("other", bcNode.getProperty("lease-owner").getString());
+        assertEquals("other-token", bcNode.getProperty("lease-token").getString());
+        assertFalse(bcNode.hasProperty(PROPERTY_CONTENT_LOADED));
+    }
+
+    @Test
+    void switchFromLeasesToLocks() throws RepositoryException {
+        activateWithLeases();
+        final Bundle bundle = createNewBundle();
+        assertNotNull(underTest.getBundleContentInfo(session, bundle, true));
+        underTest.unlockBundleContentInfo(session, bundle, true, null);
+
+        underTest.deactivate(Mockito.mock(BundleContext.class));
+        final BundleContext bundleContext = Mockito.mock(BundleContext.class);
+        Mockito.doReturn(new Bundle[0]).when(bundleContext).getBundles();
+        underTest.activate(bundleContext, new TestBundleContentLoaderConfiguration() {});
+
+        assertNotNull(underTest.getBundleContentInfo(session, bundle, false));
+        final Node bcNode = session.getNode(BUNDLE_CONTENT_NODE + "/" + bundle.getSymbolicName());
+        assertTrue(bcNode.isLocked());
+        underTest.unlockBundleContentInfo(session, bundle, false, null);
+    }
+
+    private void activateWithLeases() {
+        final BundleContext bundleContext = Mockito.mock(BundleContext.class);
+        Mockito.doReturn(new Bundle[0]).when(bundleContext).getBundles();
+        underTest.activate(bundleContext, new TestBundleContentLoaderConfiguration() {
+            @Override
+            public boolean useLeases() {
+                return true;
+            }
+        });
+    }
+
     @Test
     void getContentInfoFromNotLockableNode() throws RepositoryException {
         final Bundle bundle = createNewBundle();
@@ -170,12 +459,16 @@ class BundleContentLoaderListenerTest {
     void testContentIsUninstalled() throws RepositoryException {
         final Bundle bundle = createNewBundle();
         final Node bcNode = session.getNode(BUNDLE_CONTENT_NODE).addNode(bundle.getSymbolicName());
+        bcNode.setProperty(PROPERTY_CONTENT_DIGEST, "digest");
+        bcNode.setProperty(PROPERTY_ENTRY_DIGESTS, new String[] {"entry-digest"});
 
         underTest.contentIsUninstalled(session, bundle);
 
         assertTrue(bcNode.hasProperty("content-unloaded-by"));
         assertTrue(bcNode.hasProperty("content-unload-time"));
         assertFalse(bcNode.hasProperty(PROPERTY_UNINSTALL_PATHS));
+        assertFalse(bcNode.hasProperty(PROPERTY_CONTENT_DIGEST));
+        assertFalse(bcNode.hasProperty(PROPERTY_ENTRY_DIGESTS));
         assertFalse(bcNode.getProperty(PROPERTY_CONTENT_LOADED).getBoolean());
     }
 
@@ -18,8 +18,10 @@
  */
 package org.apache.sling.jcr.contentloader.internal;
 
+import javax.jcr.Node;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
+import javax.jcr.Value;
 import javax.jcr.Workspace;
 import javax.jcr.nodetype.NodeType;
 import javax.jcr.security.AccessControlEntry;
@@ -28,9 +30,9 @@ import javax.jcr.security.AccessControlList;
 import javax.jcr.security.AccessControlManager;
 import javax.jcr.security.Privilege;
 
-import java.lang.annotation.Annotation;
 import java.net.URL;
 import java.security.Principal;
+import java.util.Map;
 
 import org.apache.jackrabbit.JcrConstants;
 import org.apache.jackrabbit.api.JackrabbitWorkspace;
@@ -52,6 +54,7 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Disabled;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.MockedStatic;
 import org.mockito.Mockito;
 import org.osgi.framework.Bundle;
 
@@ -61,6 +64,8 @@ import static org.hamcrest.CoreMatchers.notNullValue;
 import static org.hamcrest.CoreMatchers.nullValue;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
@@ -209,12 +214,7 @@ public class BundleContentLoaderTest {
     void loadContentWithExcludes() {
 
         BundleContentLoader contentLoader =
-                new BundleContentLoader(bundleHelper, whiteboard, new BundleContentLoaderConfiguration() {
-                    @Override
-                    public Class<? extends Annotation> annotationType() {
-                        return null;
-                    }
-
+                new BundleContentLoader(bundleHelper, whiteboard, new TestBundleContentLoaderConfiguration() {
                     @Override
                     public String[] includedTargets() {
                         return new String[] {"^/.*$"};
@@ -238,12 +238,7 @@ public class BundleContentLoaderTest {
     void loadContentWithNullValue() {
 
         BundleContentLoader contentLoader =
-                new BundleContentLoader(bundleHelper, whiteboard, new BundleContentLoaderConfiguration() {
-                    @Override
-                    public Class<? extends Annotation> annotationType() {
-                        return null;
-                    }
-
+                new BundleContentLoader(bundleHelper, whiteboard, new TestBundleContentLoaderConfiguration() {
                     @Override
                     public String[] includedTargets() {
                         return new String[] {"^/.*$"};
@@ -264,15 +259,276 @@ public class BundleContentLoaderTest {
     }
 
     @Test
-    void loadContentWithIncludes() {
+    void loadContentWithIntermediateSaves() throws RepositoryException {
 
         BundleContentLoader contentLoader =
-                new BundleContentLoader(bundleHelper, whiteboard, new BundleContentLoaderConfiguration() {
+                new BundleContentLoader(bundleHelper, whiteboard, new TestBundleContentLoaderConfiguration() {
                     @Override
-                    public Class<? extends Annotation> annotationType() {
-                        return null;
+                    public int saveThreshold() {
+                        return 1;
+                    }
+                });
+
+        Bundle mockBundle = newBundleWithInitialContent(
+                context,
+                "initial-content/simple-folder;path:=/apps/chunked/simple-folder;uninstall:=true,"
+                        + "initial-content/i18n;path:=/apps/chunked/i18n;uninstall:=true");
+        Session session = context.resourceResolver().adaptTo(Session.class);
+        contentLoader.registerBundle(session, mockBundle, false);
+
+        session.refresh(false);
+        assertTrue(session.nodeExists("/apps/chunked/simple-folder/test1.txt"));
+        assertTrue(session.nodeExists("/apps/chunked/i18n/en"));
+
+        // the uninstall paths only contain the top nodes although the content has been saved in parts
+        String bcPath = BundleContentLoaderListener.BUNDLE_CONTENT_NODE + "/" + mockBundle.getSymbolicName();
+        Value[] uninstallPaths = session.getNode(bcPath)
+                .getProperty(BundleContentLoaderListener.PROPERTY_UNINSTALL_PATHS)
+                .getValues();
+        for (Value path : uninstallPaths) {
+            assertFalse(path.getString().startsWith("default:/apps/chunked/i18n/en/"), path.getString());
+        }
+
+        contentLoader.unregisterBundle(session, mockBundle);
+        session.refresh(false);
+        assertFalse(session.nodeExists("/apps/chunked/simple-folder/test1.txt"));
+        assertFalse(session.nodeExists("/apps/chunked/i18n/en"));
+    }
+
+    @Test
+    void removeSavedContentOnFailure() throws RepositoryException {
+
+        BundleContentLoader contentLoader =
+                new BundleContentLoader(bundleHelper, whiteboard, new TestBundleContentLoaderConfiguration() {
+                    @Override
+                    public int saveThreshold() {
+                        return 1;
+                    }
+                });
+
+        // the second entry cannot be parsed after the first one has been saved
+        Bundle mockBundle = newBundleWithInitialContent(context, "initial-content/partial;path:=/apps/partial");
+        Session session = context.resourceResolver().adaptTo(Session.class);
+        contentLoader.registerBundle(session, mockBundle, false);
+
+        // the saved content is removed although it is not uninstalled
+        session.refresh(false);
+        assertFalse(session.nodeExists("/apps/partial/a"));
+    }
+
+    @Test
+    void keepReusedContentOnFailedUpdate() throws RepositoryException {
+
+        BundleContentLoader contentLoader =
+                new BundleContentLoader(bundleHelper, whiteboard, new TestBundleContentLoaderConfiguration() {
+                    @Override
+                    public int saveThreshold() {
+                        return 1;
+                    }
+
+                    @Override
+                    public boolean incrementalApply() {
+                        return true;
+                    }
+                });
+
+        MockBundle mockBundle = newBundleWithInitialContent(
+                context, "initial-content/update-v1;path:=/apps/upd;overwrite:=true;uninstall:=true");
+        Session session = context.resourceResolver().adaptTo(Session.class);
+        contentLoader.registerBundle(session, mockBundle, false);
+        assertTrue(session.nodeExists("/apps/upd/a"));
+
+        // the updated bundle adds a node and has an entry which cannot be parsed
+        mockBundle.setHeaders(singletonMap(
+                "Sling-Initial-Content", "initial-content/update-v2;path:=/apps/upd;overwrite:=true;uninstall:=true"));
+        mockBundle.setLastModified(System.currentTimeMillis() + 60000);
+        contentLoader.registerBundle(session, mockBundle, true);
+
+        // only the added node is removed, the reused node of the previous content is kept
+        session.refresh(false);
+        assertTrue(session.nodeExists("/apps/upd/a"));
+        assertFalse(session.nodeExists("/apps/upd/a1"));
+    }
+
+    @Test
+    void noIntermediateSavesInBatch() throws RepositoryException {
+
+        BundleContentLoader contentLoader =
+                new BundleContentLoader(bundleHelper, whiteboard, new TestBundleContentLoaderConfiguration() {
+                    @Override
+                    public int saveThreshold() {
+                        return 1;
+                    }
+                });
+
+        Bundle mockBundle = newBundleWithInitialContent(
+                context, "initial-content/simple-folder;path:=/apps/batched/simple-folder;uninstall:=true");
+        Session session = context.resourceResolver().adaptTo(Session.class);
+        contentLoader.startBatch(session, 1000);
+        contentLoader.registerBundle(session, mockBundle, false);
+
+        // the content is saved with the batch only
+        session.refresh(false);
+        assertFalse(session.nodeExists("/apps/batched/simple-folder/test1.txt"));
+        contentLoader.finishBatch();
+        session.refresh(false);
+        assertTrue(session.nodeExists("/apps/batched/simple-folder/test1.txt"));
+    }
+
+    @Test
+    void overwriteContentIncrementally() throws RepositoryException {
+
+        BundleContentLoader contentLoader =
+                new BundleContentLoader(bundleHelper, whiteboard, new TestBundleContentLoaderConfiguration() {
+                    @Override
+                    public boolean incrementalApply() {
+                        return true;
+                    }
+                });
+
+        MockBundle mockBundle =
+                newBundleWithInitialContent(context, "initial-content/i18n;path:=/apps/incremental;overwrite:=true");
+        Session session = context.resourceResolver().adaptTo(Session.class);
+        contentLoader.registerBundle(session, mockBundle, false);
+
+        // modify the loaded content
+        Node en = session.getNode("/apps/incremental/en");
+        en.addMixin("mix:referenceable");
+        en.setProperty("marker", "added");
+        en.addNode("extra");
+        session.getNode("/apps/incremental").addNode("extra");
+        session.save();
+        String identifier = en.getIdentifier();
+
+        mockBundle.setLastModified(System.currentTimeMillis() + 60000);
+        contentLoader.registerBundle(session, mockBundle, true);
+
+        // the existing node has been kept, the items which are not part of the content have been removed
+        session.refresh(false);
+        en = session.getNode("/apps/incremental/en");
+        assertEquals(identifier, en.getIdentifier());
+        assertEquals("i18n-message", en.getProperty("i18n-key").getString());
+        assertFalse(en.hasProperty("marker"));
+        assertFalse(en.hasNode("extra"));
+        assertFalse(session.nodeExists("/apps/incremental/extra"));
+    }
+
+    @Test
+    void skipUnchangedEntries() throws RepositoryException {
+
+        BundleContentLoader contentLoader =
+                new BundleContentLoader(bundleHelper, whiteboard, new TestBundleContentLoaderConfiguration() {
+                    @Override
+                    public boolean incrementalApply() {
+                        return true;
+                    }
+
+                    @Override
+                    public boolean skipUnchangedEntries() {
+                        return true;
+                    }
+                });
+
+        MockBundle mockBundle =
+                newBundleWithInitialContent(context, "initial-content/i18n;path:=/apps/entries;overwrite:=true");
+        Session session = context.resourceResolver().adaptTo(Session.class);
+        contentLoader.registerBundle(session, mockBundle, false);
+
+        Map<String, Object> bundleContentInfo = bundleHelper.getBundleContentInfo(session, mockBundle, false);
+        String[] entryDigests = (String[]) bundleContentInfo.get(BundleContentLoaderListener.PROPERTY_ENTRY_DIGESTS);
+        bundleHelper.unlockBundleContentInfo(session, mockBundle, false, null);
+        assertNotNull(entryDigests);
+        assertTrue(entryDigests.length > 0);
+
+        // modify the loaded content
+        session.getNode("/apps/entries/en").setProperty("marker", "added");
+        session.getNode("/apps/entries").addNode("extra");
+        session.save();
+
+        mockBundle.setLastModified(System.currentTimeMillis() + 60000);
+        contentLoader.registerBundle(session, mockBundle, true);
+
+        // the unchanged entry has not been loaded again, the node which is not part of the content has been removed
+        session.refresh(false);
+        assertEquals(
+                "added",
+                session.getNode("/apps/entries/en").getProperty("marker").getString());
+        assertFalse(session.nodeExists("/apps/entries/extra"));
+    }
+
+    @Test
+    void updateBundleWithUnchangedContent() throws RepositoryException {
+        assertEquals("initial", updateBundleWithMarker(true));
+    }
+
+    @Test
+    void updateBundleWithUnchangedContentNotSkipped() throws RepositoryException {
+        assertNull(updateBundleWithMarker(false));
+    }
+
+    @Test
+    void updateBundleWithChangedContent() throws RepositoryException {
+        assertNull(updateBundleWithMarker(true, "SLING-INF/libs/app;path:=/libs/app;overwrite:=true;checkin:=false"));
+    }
+
+    private String updateBundleWithMarker(boolean skipUnchangedContent) throws RepositoryException {
+        return updateBundleWithMarker(skipUnchangedContent, null);
+    }
+
+    /**
+     * Loads a bundle, modifies the loaded content and updates the bundle, changing its content only if an updated
+     * initial content header is given.
+     *
+     * @return the value of the marker property after the update or <code>null</code> if it has been removed
+     */
+    private String updateBundleWithMarker(boolean skipUnchangedContent, String updatedHeader)
+            throws RepositoryException {
+        BundleContentLoader contentLoader =
+                new BundleContentLoader(bundleHelper, whiteboard, new TestBundleContentLoaderConfiguration() {
+                    @Override
+                    public boolean skipUnchangedContent() {
+                        return skipUnchangedContent;
                     }
+                });
 
+        MockBundle mockBundle =
+                newBundleWithInitialContent(context, "SLING-INF/libs/app;path:=/libs/app;overwrite:=true");
+        Session session = context.resourceResolver().adaptTo(Session.class);
+        contentLoader.registerBundle(session, mockBundle, false);
+
+        String bcPath = BundleContentLoaderListener.BUNDLE_CONTENT_NODE + "/" + mockBundle.getSymbolicName();
+        assertEquals(
+                skipUnchangedContent,
+                session.getNode(bcPath).hasProperty(BundleContentLoaderListener.PROPERTY_CONTENT_DIGEST));
+
+        session.getNode("/libs/app").setProperty("marker", "initial");
+        session.save();
+
+        if (updatedHeader != null) {
+            mockBundle.setHeaders(singletonMap("Sling-Initial-Content", updatedHeader));
+        }
+        mockBundle.setLastModified(System.currentTimeMillis() + 60000);
+        try (MockedStatic<BundleContentDigest> digest =
+                Mockito.mockStatic(BundleContentDigest.class, Mockito.CALLS_REAL_METHODS)) {
+            contentLoader.registerBundle(session, mockBundle, true);
+            // the digest of the updated bundle is only computed once
+            digest.verify(() -> BundleContentDigest.compute(mockBundle), Mockito.times(skipUnchangedContent ? 1 : 0));
+        }
+
+        session.refresh(false);
+        assertTrue(session.getNode(bcPath)
+                .getProperty(BundleContentLoaderListener.PROPERTY_CONTENT_LOADED)
+                .getBoolean());
+        return session.propertyExists("/libs/app/marker")
+                ? session.getProperty("/libs/app/marker").getString()
+                : null;
+    }
+
+    @Test
+    void loadContentWithIncludes() {
+
+        BundleContentLoader contentLoader =
+                new BundleContentLoader(bundleHelper, whiteboard, new TestBundleContentLoaderConfiguration() {
                     @Override
                     public String[] includedTargets() {
                         return new String[] {"^/.*$"};
@@ -0,0 +1,107 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.contentloader.internal;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mockito;
+import org.osgi.framework.Bundle;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class BundleEntryIndexTest {
+
+    private Bundle bundle;
+
+    @BeforeEach
+    void setup() throws MalformedURLException {
+        bundle = Mockito.mock(Bundle.class);
+        Mockito.when(bundle.getEntryPaths("content"))
+                .thenReturn(Collections.enumeration(Arrays.asList("content/a.json", "content/dir/")));
+        Mockito.when(bundle.getEntryPaths("content/dir/"))
+                .thenReturn(Collections.enumeration(Arrays.asList("content/dir/ROOT.json", "content/dir/b.txt")));
+        Mockito.when(bundle.getEntry("content/a.json")).thenReturn(new URL("file:/content/a.json"));
+        Mockito.when(bundle.getEntry("content/dir/ROOT.json")).thenReturn(new URL("file:/content/dir/ROOT.json"));
+        Mockito.when(bundle.getEntry("content.json")).thenReturn(new URL("file:/content.json"));
+    }
+
+    @Test
+    void testGetChildren() {
+        BundleEntryIndex index = BundleEntryIndex.build(bundle, "content");
+        assertEquals(Arrays.asList("content/a.json", "content/dir/"), index.getChildren("content"));
+        assertEquals(Arrays.asList("content/dir/ROOT.json", "content/dir/b.txt"), index.getChildren("content/dir/"));
+        assertNull(index.getChildren("content/a.json"));
+        assertNull(index.getChildren("content/missing/"));
+    }
+
+    @Test
+    void testGetEntry() {
+        BundleEntryIndex index = BundleEntryIndex.build(bundle, "content");
+        assertNotNull(index.getEntry("content/a.json"));
+        assertNotNull(index.getEntry("content/dir/ROOT.json"));
+        assertNull(index.getEntry("content/dir/ROOT.xml"));
+        assertNull(index.getEntry("content/a.json.xml"));
+        // entries outside of the index are looked up in the bundle
+        assertNotNull(index.getEntry("content.json"));
+
+        // entries which are not part of the index are not looked up
+        Mockito.verify(bundle, Mockito.never()).getEntry("content/dir/ROOT.xml");
+        Mockito.verify(bundle, Mockito.never()).getEntry("content/a.json.xml");
+    }
+
+    @Test
+    void testSingleFile() {
+        BundleEntryIndex index = BundleEntryIndex.build(bundle, "content/a.json");
+        assertNull(index.getChildren("content/a.json"));
+        assertNotNull(index.getEntry("content/a.json"));
+
+        index = BundleEntryIndex.build(bundle, "missing");
+        assertNull(index.getChildren("missing"));
+        assertNull(index.getEntry("missing"));
+    }
+
+    @Test
+    void testToLocalUrl(@TempDir Path dir) throws IOException {
+        Files.createDirectories(dir.resolve("content"));
+        Files.write(dir.resolve("content/a.json"), "{}".getBytes(StandardCharsets.UTF_8));
+        final URL entry = new URL("file:/content/a.json");
+        final URL missing = new URL("file:/content/dir/ROOT.json");
+
+        BundleEntryIndex index = BundleEntryIndex.build(bundle, "content");
+        assertSame(entry, index.toLocalUrl(entry));
+
+        Mockito.when(bundle.getLocation()).thenReturn("reference:" + dir.toUri());
+        index = BundleEntryIndex.build(bundle, "content");
+        assertEquals(dir.resolve("content/a.json").toUri().toURL(), index.toLocalUrl(entry));
+        assertSame(missing, index.toLocalUrl(missing));
+    }
+}
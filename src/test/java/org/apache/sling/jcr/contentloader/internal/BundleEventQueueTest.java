@@ -0,0 +1,134 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.contentloader.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleEvent;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BundleEventQueueTest {
+
+    @Test
+    void testOrderingAndCoalescing() throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(4);
+        final List<BundleEventQueue.Event> processed = new ArrayList<>();
+        final BundleEventQueue queue = new BundleEventQueue(event -> {
+            started.countDown();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            synchronized (processed) {
+                processed.add(event);
+            }
+            done.countDown();
+        });
+        try {
+            final Bundle a = mockBundle("a");
+            final Bundle b = mockBundle("b");
+            final Bundle a2 = mockBundle("a");
+
+            // blocks the worker while the remaining events are queued
+            queue.add(b, BundleEvent.RESOLVED, false);
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+
+            queue.add(a, BundleEvent.RESOLVED, false);
+            queue.add(a2, BundleEvent.RESOLVED, true);
+            queue.add(b, BundleEvent.UNINSTALLED, false);
+            queue.add(a, BundleEvent.UNINSTALLED, false);
+            queue.add(a, BundleEvent.UNINSTALLED, false);
+            assertEquals(4, queue.size());
+
+            release.countDown();
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+
+            synchronized (processed) {
+                assertEquals(4, processed.size());
+                assertSame(b, processed.get(0).getBundle());
+                assertEquals(BundleEvent.RESOLVED, processed.get(0).getType());
+                assertFalse(processed.get(0).isUpdate());
+                // both resolved events of a are merged into one, keeping the latest bundle
+                assertSame(a2, processed.get(1).getBundle());
+                assertEquals(BundleEvent.RESOLVED, processed.get(1).getType());
+                assertTrue(processed.get(1).isUpdate());
+                assertSame(b, processed.get(2).getBundle());
+                assertEquals(BundleEvent.UNINSTALLED, processed.get(2).getType());
+                assertSame(a, processed.get(3).getBundle());
+                assertEquals(BundleEvent.UNINSTALLED, processed.get(3).getType());
+            }
+        } finally {
+            assertTrue(queue.close().isEmpty());
+        }
+    }
+
+    @Test
+    void testCloseReturnsPendingEvents() throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final BundleEventQueue queue = new BundleEventQueue(event -> {
+            started.countDown();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        try {
+            final Bundle a = mockBundle("a");
+            final Bundle b = mockBundle("b");
+
+            // blocks the worker while the remaining events are queued
+            queue.add(a, BundleEvent.RESOLVED, false);
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+
+            queue.add(b, BundleEvent.RESOLVED, false);
+            queue.add(a, BundleEvent.UNINSTALLED, false);
+
+            final List<BundleEventQueue.Event> pending = queue.close();
+            assertEquals(2, pending.size());
+            assertSame(b, pending.get(0).getBundle());
+            assertEquals(BundleEvent.RESOLVED, pending.get(0).getType());
+            assertSame(a, pending.get(1).getBundle());
+            assertEquals(BundleEvent.UNINSTALLED, pending.get(1).getType());
+            assertEquals(1, queue.size());
+        } finally {
+            release.countDown();
+        }
+    }
+
+    private Bundle mockBundle(String symbolicName) {
+        Bundle bundle = Mockito.mock(Bundle.class);
+        Mockito.doReturn(symbolicName).when(bundle).getSymbolicName();
+        return bundle;
+    }
+}
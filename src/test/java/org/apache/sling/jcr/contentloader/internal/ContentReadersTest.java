@@ -0,0 +1,84 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.contentloader.internal;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.sling.commons.osgi.ManifestHeader;
+import org.apache.sling.jcr.contentloader.ContentReader;
+import org.apache.sling.jcr.contentloader.PathEntry;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class ContentReadersTest {
+
+    private final ContentReader xmlReader = Mockito.mock(ContentReader.class);
+
+    private final ContentReader jsonReader = Mockito.mock(ContentReader.class);
+
+    private final ContentReader orderedJsonReader = Mockito.mock(ContentReader.class);
+
+    private ContentReaders newContentReaders() {
+        Map<String, ContentReader> readers = new LinkedHashMap<>();
+        readers.put("xml", xmlReader);
+        readers.put("json", jsonReader);
+        readers.put("ordered.json", orderedJsonReader);
+        return new ContentReaders(readers);
+    }
+
+    private static PathEntry newPathEntry(String header) {
+        return new PathEntry(ManifestHeader.parse(header).getEntries()[0], 0);
+    }
+
+    @Test
+    void testGetReaders() {
+        assertEquals(
+                Arrays.asList(".jcr.xml", ".xml", ".json", ".ordered.json"),
+                Arrays.asList(newContentReaders().getReaders().keySet().toArray()));
+    }
+
+    @Test
+    void testGetExtension() {
+        ContentReaders contentReaders = newContentReaders();
+        assertEquals(".jcr.xml", contentReaders.getExtension("node.jcr.xml", null));
+        assertEquals(".xml", contentReaders.getExtension("node.xml", null));
+        assertEquals(".ordered.json", contentReaders.getExtension("node.ordered.json", null));
+        assertEquals(".json", contentReaders.getExtension("node.json", null));
+        assertEquals(".json", contentReaders.getExtension(".json", null));
+        assertNull(contentReaders.getExtension("node.txt", null));
+        assertNull(contentReaders.getExtension("json", null));
+    }
+
+    @Test
+    void testGetReader() {
+        ContentReaders contentReaders = newContentReaders();
+        PathEntry pathEntry = newPathEntry("path;ignoreImportProviders:=\"ordered.json,xml\"");
+        assertNull(contentReaders.getReader("node.jcr.xml", pathEntry));
+        assertNull(contentReaders.getReader("node.xml", pathEntry));
+        assertSame(jsonReader, contentReaders.getReader("node.ordered.json", pathEntry));
+        assertSame(orderedJsonReader, contentReaders.getReader("node.ordered.json", newPathEntry("path")));
+        assertSame(xmlReader, contentReaders.getReader("node.xml", newPathEntry("path")));
+    }
+}
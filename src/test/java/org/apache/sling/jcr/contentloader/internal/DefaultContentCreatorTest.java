@@ -61,12 +61,15 @@ import static org.apache.sling.jcr.contentloader.ImportOptionsFactory.CHECK_IN;
 import static org.apache.sling.jcr.contentloader.ImportOptionsFactory.NO_OPTIONS;
 import static org.apache.sling.jcr.contentloader.ImportOptionsFactory.OVERWRITE_NODE;
 import static org.apache.sling.jcr.contentloader.ImportOptionsFactory.OVERWRITE_PROPERTIES;
+import static org.apache.sling.jcr.contentloader.ImportOptionsFactory.SYNCH_NODES;
+import static org.apache.sling.jcr.contentloader.ImportOptionsFactory.SYNCH_PROPERTIES;
 import static org.apache.sling.jcr.contentloader.ImportOptionsFactory.createImportOptions;
 import static org.apache.sling.jcr.contentloader.LocalRestrictionTest.val;
 import static org.apache.sling.jcr.contentloader.LocalRestrictionTest.vals;
 import static org.apache.sling.jcr.contentloader.it.SLING11713InitialContentIT.assertAce;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
@@ -422,6 +425,150 @@ class DefaultContentCreatorTest {
         mockery.assertIsSatisfied();
     }
 
+    @Test
+    void createNodesInNewSubtree() throws RepositoryException {
+        final List<String> createdNodes = new ArrayList<String>();
+        contentCreator.init(
+                createImportOptions(OVERWRITE_NODE | AUTO_CHECKOUT),
+                new HashMap<String, ContentReader>(),
+                createdNodes,
+                null);
+        contentCreator.prepareParsing(parentNode, DEFAULT_NAME);
+
+        contentCreator.createNode("a", NodeType.NT_UNSTRUCTURED, null);
+        contentCreator.createNode("b", null, null);
+        contentCreator.createProperty("p", PropertyType.STRING, "v");
+        contentCreator.finishNode();
+        // the node created before is overwritten
+        contentCreator.createNode("b", null, null);
+        contentCreator.finishNode();
+        assertTrue(contentCreator.switchCurrentNode("c/d", NodeType.NT_UNSTRUCTURED));
+        contentCreator.finishNode();
+        // as well as the nodes created when switching to a sub path
+        contentCreator.createNode("c", null, null);
+        contentCreator.createNode("d", null, null);
+        contentCreator.createProperty("p", PropertyType.STRING, "v");
+        contentCreator.finishNode();
+        contentCreator.finishNode();
+        contentCreator.finishNode();
+
+        final Node node = parentNode.getNode("a");
+        assertFalse(node.getNode("b").hasProperty("p"));
+        assertEquals("v", node.getProperty("c/d/p").getString());
+        final String workspace = session.getWorkspace().getName();
+        assertEquals(
+                Arrays.asList(
+                        workspace + ":" + node.getPath(),
+                        workspace + ":" + node.getPath() + "/b",
+                        workspace + ":" + node.getPath() + "/b",
+                        workspace + ":" + node.getPath() + "/c",
+                        workspace + ":" + node.getPath() + "/c/d",
+                        workspace + ":" + node.getPath() + "/c",
+                        workspace + ":" + node.getPath() + "/c/d"),
+                createdNodes);
+    }
+
+    @Test
+    void propertyOfSavedNewNodeNotOverwritten() throws RepositoryException {
+        contentCreator.init(createImportOptions(NO_OPTIONS), new HashMap<String, ContentReader>(), null, null);
+        contentCreator.prepareParsing(parentNode, DEFAULT_NAME);
+
+        contentCreator.createNode("a", NodeType.NT_UNSTRUCTURED, null);
+        contentCreator.createProperty("p", PropertyType.STRING, "v1");
+        session.save();
+        contentCreator.contentSaved();
+        contentCreator.createProperty("p", PropertyType.STRING, "v2");
+        contentCreator.finishNode();
+        assertEquals("v1", parentNode.getNode("a").getProperty("p").getString());
+    }
+
+    @Test
+    void checkoutVersionableAncestorOnce() throws RepositoryException {
+        final ContentImportListener listener = mockery.mock(ContentImportListener.class);
+        this.mockery.checking(new Expectations() {
+            {
+                oneOf(listener).onCheckout(parentNode.getPath());
+                allowing(listener).onCreate(with(any(String.class)));
+            }
+        });
+        parentNode.addMixin("mix:versionable");
+        session.save();
+        session.getWorkspace().getVersionManager().checkin(parentNode.getPath());
+
+        contentCreator.init(createImportOptions(AUTO_CHECKOUT), new HashMap<String, ContentReader>(), null, listener);
+        contentCreator.prepareParsing(parentNode, null);
+        contentCreator.createProperty("p", PropertyType.STRING, "v");
+        contentCreator.createNode("a", null, null);
+        contentCreator.createNode("b", null, null);
+        contentCreator.createProperty("p", PropertyType.STRING, "v");
+        contentCreator.finishNode();
+        contentCreator.createProperty("p", PropertyType.STRING, "v");
+        contentCreator.finishNode();
+        assertTrue(contentCreator.switchCurrentNode("c/d", NodeType.NT_UNSTRUCTURED));
+        contentCreator.createProperty("p", PropertyType.STRING, "v");
+        contentCreator.finishNode();
+
+        assertTrue(parentNode.isCheckedOut());
+        assertEquals("v", parentNode.getProperty("a/b/p").getString());
+        assertEquals("v", parentNode.getProperty("c/d/p").getString());
+        mockery.assertIsSatisfied();
+    }
+
+    @Test
+    void mergeRemovesUnimportedNodes() throws RepositoryException {
+        final ContentImportListener listener = mockery.mock(ContentImportListener.class);
+        parentNode.addNode("a").addNode("old");
+        parentNode.addNode("z");
+        session.save();
+        this.mockery.checking(new Expectations() {
+            {
+                oneOf(listener).onDelete(parentNode.getPath() + "/a/old");
+                oneOf(listener).onDelete(parentNode.getPath() + "/z");
+                allowing(listener).onCreate(with(any(String.class)));
+            }
+        });
+
+        contentCreator.init(createImportOptions(SYNCH_NODES), new HashMap<String, ContentReader>(), null, listener);
+        contentCreator.prepareParsing(parentNode, DEFAULT_NAME);
+        contentCreator.createNode("a", null, null);
+        contentCreator.createNode("b", null, null);
+        contentCreator.finishNode();
+        contentCreator.finishNode();
+        contentCreator.finish();
+
+        assertTrue(parentNode.hasNode("a/b"));
+        assertFalse(parentNode.hasNode("a/old"));
+        assertFalse(parentNode.hasNode("z"));
+        // the removals are saved together with the imported content
+        assertTrue(session.hasPendingChanges());
+        mockery.assertIsSatisfied();
+    }
+
+    @Test
+    void mergePropertiesPerNode() throws RepositoryException {
+        final Node a = parentNode.addNode("a");
+        a.setProperty("x", "a");
+        a.setProperty("y", "a");
+        final Node b = parentNode.addNode("b");
+        b.setProperty("x", "b");
+        session.save();
+
+        contentCreator.init(createImportOptions(SYNCH_PROPERTIES), new HashMap<String, ContentReader>(), null, null);
+        contentCreator.prepareParsing(parentNode, null);
+        contentCreator.createNode("a", null, null);
+        contentCreator.createProperty("x", PropertyType.STRING, "a");
+        contentCreator.finishNode();
+        contentCreator.createNode("b", null, null);
+        contentCreator.createProperty("y", PropertyType.STRING, "b");
+        contentCreator.finishNode();
+
+        assertTrue(a.hasProperty("x"));
+        assertFalse(a.hasProperty("y"));
+        // a property applied to another node is not kept
+        assertFalse(b.hasProperty("x"));
+        assertEquals("b", b.getProperty("y").getString());
+    }
+
     // ----- DefaultContentCreator#createProperty(String name, int propertyType, String[] values)-------//
 
     @Test
@@ -554,6 +701,7 @@ class DefaultContentCreatorTest {
         underTest.addMixin("mix:referenceable");
 
         contentCreator.finishNode();
+        contentCreator.resolveReferences();
         assertEquals(0, delayedMultipleReferences.size());
         mockery.assertIsSatisfied();
     }
@@ -580,10 +728,69 @@ class DefaultContentCreatorTest {
         underTest.addMixin("mix:referenceable");
 
         contentCreator.finishNode();
+        contentCreator.resolveReferences();
         assertEquals(underTest.getIdentifier(), parentNode.getProperty(propName).getString());
         mockery.assertIsSatisfied();
     }
 
+    @Test
+    void resolveReferencesToNodesOfLaterContent() throws RepositoryException {
+        final String[] referenceable = {"mix:referenceable"};
+        contentCreator.init(createImportOptions(NO_OPTIONS), new HashMap<String, ContentReader>(), null, null);
+        contentCreator.prepareParsing(parentNode, "first");
+        contentCreator.createNode(null, null, null);
+        contentCreator.createProperty("single", PropertyType.REFERENCE, "../second/target");
+        contentCreator.createProperty("multiple", PropertyType.REFERENCE, new String[] {"../second/target", "."});
+        contentCreator.createNode("self", null, referenceable);
+        contentCreator.finishNode();
+        contentCreator.createProperty("earlier", PropertyType.REFERENCE, "self");
+        contentCreator.finishNode();
+
+        contentCreator.prepareParsing(parentNode, "second");
+        contentCreator.createNode(null, null, null);
+        contentCreator.createNode("target", null, referenceable);
+        contentCreator.finishNode();
+        contentCreator.finishNode();
+
+        final Node first = parentNode.getNode("first");
+        assertFalse(first.hasProperty("single"));
+        contentCreator.resolveReferences();
+        final String target = parentNode.getNode("second/target").getIdentifier();
+        assertEquals(target, first.getProperty("single").getString());
+        assertEquals(1, first.getProperty("multiple").getValues().length);
+        assertEquals(target, first.getProperty("multiple").getValues()[0].getString());
+        assertEquals(
+                first.getNode("self").getIdentifier(),
+                first.getProperty("earlier").getString());
+    }
+
+    @Test
+    void resolveReferencesToOverwrittenNodes() throws RepositoryException {
+        final String[] referenceable = {"mix:referenceable"};
+        contentCreator.init(createImportOptions(OVERWRITE_NODE), new HashMap<String, ContentReader>(), null, null);
+        contentCreator.prepareParsing(parentNode, "first");
+        contentCreator.createNode(null, null, null);
+        contentCreator.createNode("target", null, referenceable);
+        contentCreator.finishNode();
+        contentCreator.createProperty("earlier", PropertyType.REFERENCE, "target");
+        contentCreator.finishNode();
+        final String removed = parentNode.getNode("first/target").getIdentifier();
+
+        contentCreator.prepareParsing(parentNode, "first");
+        contentCreator.createNode(null, null, null);
+        contentCreator.createProperty("later", PropertyType.REFERENCE, "target");
+        contentCreator.createNode("target", null, referenceable);
+        contentCreator.finishNode();
+        contentCreator.finishNode();
+        contentCreator.resolveReferences();
+
+        final Node first = parentNode.getNode("first");
+        final String target = first.getNode("target").getIdentifier();
+        assertNotEquals(removed, target);
+        assertEquals(target, first.getProperty("later").getString());
+        parentNode.getSession().save();
+    }
+
     @Test
     void finishNodeWithoutProperties() throws RepositoryException {
         final String propName = uniqueId();
@@ -0,0 +1,90 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.contentloader.internal;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.osgi.framework.Bundle;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DelayedBundlesTest {
+
+    private final DelayedBundles delayedBundles = new DelayedBundles();
+
+    @Test
+    void testGetExtensions() {
+        assertEquals(Arrays.asList("b.json", "json"), DelayedBundles.getExtensions("/path.x/a.b.json"));
+        assertEquals(Collections.emptyList(), DelayedBundles.getExtensions("/path.x/a"));
+    }
+
+    @Test
+    void testWaitingForReader() {
+        final Bundle json = Mockito.mock(Bundle.class);
+        final Bundle xml = Mockito.mock(Bundle.class);
+        delayedBundles.delayForReader(json, "/SLING-INF/a.json");
+        delayedBundles.delayForReader(xml, "/SLING-INF/a.xml");
+        assertEquals(2, delayedBundles.size());
+
+        assertEquals(Collections.emptyList(), delayedBundles.takeWaitingForReader(Set.of("zip")::contains));
+        assertEquals(Collections.singletonList(json), delayedBundles.takeWaitingForReader(Set.of("json")::contains));
+        assertFalse(delayedBundles.contains(json));
+        assertTrue(delayedBundles.contains(xml));
+        // retrying does not touch bundles waiting for a reader
+        assertEquals(Collections.emptyList(), delayedBundles.takeFailed());
+        assertEquals(-1, delayedBundles.getNextRetryTime());
+    }
+
+    @Test
+    void testContentionBackoff() {
+        final Bundle bundle = Mockito.mock(Bundle.class);
+        delayedBundles.delayForContention(bundle, 0);
+        assertEquals(DelayedBundles.INITIAL_BACKOFF, delayedBundles.getNextRetryTime());
+        assertEquals(Collections.emptyList(), delayedBundles.getDueContended(DelayedBundles.INITIAL_BACKOFF - 1));
+        assertEquals(Collections.singletonList(bundle), delayedBundles.getDueContended(DelayedBundles.INITIAL_BACKOFF));
+
+        // the backoff doubles with every attempt up to the maximum
+        long now = DelayedBundles.INITIAL_BACKOFF;
+        delayedBundles.delayForContention(bundle, now);
+        assertEquals(now + 2 * DelayedBundles.INITIAL_BACKOFF, delayedBundles.getNextRetryTime());
+        for (int i = 0; i < 20; i++) {
+            delayedBundles.delayForContention(bundle, now);
+        }
+        assertEquals(now + DelayedBundles.MAX_BACKOFF, delayedBundles.getNextRetryTime());
+
+        assertTrue(delayedBundles.remove(bundle));
+        assertTrue(delayedBundles.isEmpty());
+        assertEquals(-1, delayedBundles.getNextRetryTime());
+    }
+
+    @Test
+    void testFailed() {
+        final Bundle bundle = Mockito.mock(Bundle.class);
+        delayedBundles.delayForFailure(bundle);
+        assertTrue(delayedBundles.contains(bundle));
+        assertEquals(Collections.singletonList(bundle), delayedBundles.takeFailed());
+        assertTrue(delayedBundles.isEmpty());
+    }
+}
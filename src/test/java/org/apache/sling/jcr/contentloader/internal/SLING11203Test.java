@@ -174,7 +174,6 @@ class SLING11203Test {
 
         private SLING11203XmlReader() {
             super();
-            activate();
         }
     }
 
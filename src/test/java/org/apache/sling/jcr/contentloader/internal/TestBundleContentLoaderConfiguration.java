@@ -0,0 +1,93 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.contentloader.internal;
+
+import java.lang.annotation.Annotation;
+
+/**
+ * {@link BundleContentLoaderConfiguration} returning the default values, to be
+ * extended by tests which only need to override some of them.
+ */
+public abstract class TestBundleContentLoaderConfiguration implements BundleContentLoaderConfiguration {
+
+    @Override
+    public Class<? extends Annotation> annotationType() {
+        return BundleContentLoaderConfiguration.class;
+    }
+
+    @Override
+    public String[] includedTargets() {
+        return new String[] {"^\\/.*$"};
+    }
+
+    @Override
+    public String[] excludedTargets() {
+        return new String[0];
+    }
+
+    @Override
+    public int startupThreads() {
+        return 1;
+    }
+
+    @Override
+    public boolean asyncBundleEvents() {
+        return false;
+    }
+
+    @Override
+    public boolean skipUnchangedContent() {
+        return false;
+    }
+
+    @Override
+    public boolean useLeases() {
+        return false;
+    }
+
+    @Override
+    public long leaseTimeout() {
+        return 1800;
+    }
+
+    @Override
+    public int startupBatchSize() {
+        return 0;
+    }
+
+    @Override
+    public int saveThreshold() {
+        return 0;
+    }
+
+    @Override
+    public int saveHeapThreshold() {
+        return 0;
+    }
+
+    @Override
+    public boolean incrementalApply() {
+        return false;
+    }
+
+    @Override
+    public boolean skipUnchangedEntries() {
+        return false;
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.contentloader.internal.readers;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+
+import jakarta.json.Json;
+import jakarta.json.JsonException;
+import jakarta.json.JsonObject;
+import org.apache.sling.jcr.contentloader.internal.readers.JsonTokenizer.Token;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class JsonTokenizerTest {
+
+    private static JsonObject read(String json) throws IOException {
+        try (JsonTokenizer tokenizer = new JsonTokenizer(new StringReader(json))) {
+            assertEquals(Token.START_OBJECT, tokenizer.next());
+            JsonObject object = tokenizer.readObject(Json.createBuilderFactory(null));
+            assertEquals(Token.END, tokenizer.next());
+            return object;
+        }
+    }
+
+    @Test
+    void testTicksAndComments() throws IOException {
+        JsonObject object = read("/* header */ { 'a': 'it\\'s \"quoted\"', // line comment\n"
+                + " \"b\": [1, 2.5, true, null], 'c': { } }");
+        assertEquals("it's \"quoted\"", object.getString("a"));
+        assertEquals(4, object.getJsonArray("b").size());
+        assertEquals(1, object.getJsonArray("b").getInt(0));
+        assertEquals(0, object.getJsonObject("c").size());
+    }
+
+    @Test
+    void testWithoutBraces() throws IOException {
+        JsonObject object = read("  'a': 1, 'b': { 'c': '\\u00e4\\n' }  ");
+        assertEquals(1, object.getInt("a"));
+        assertEquals("ä\n", object.getJsonObject("b").getString("c"));
+        assertEquals(0, read("   ").size());
+    }
+
+    @Test
+    void testScalars() throws IOException {
+        try (JsonTokenizer tokenizer =
+                new JsonTokenizer(new StringReader("{'n': 'v', 'l': -3, 'd': 1.5e1, 'f': 1.5}"))) {
+            assertEquals(Token.START_OBJECT, tokenizer.next());
+            assertEquals(Token.NAME, tokenizer.next());
+            assertEquals("n", tokenizer.getString());
+            assertEquals(Token.STRING, tokenizer.next());
+            assertEquals("v", tokenizer.getScalar());
+            tokenizer.next();
+            assertEquals(Token.NUMBER, tokenizer.next());
+            assertEquals(-3L, tokenizer.getScalar());
+            tokenizer.next();
+            tokenizer.next();
+            assertEquals(15L, tokenizer.getScalar());
+            tokenizer.next();
+            tokenizer.next();
+            assertEquals(1.5d, tokenizer.getScalar());
+            assertEquals(Token.END_OBJECT, tokenizer.next());
+            assertEquals(Token.END, tokenizer.next());
+        }
+    }
+
+    @Test
+    void testEncodingHeader() throws IOException {
+        byte[] bytes = "#ISO-8859-1\n{'a': 'ä'}".getBytes(StandardCharsets.ISO_8859_1);
+        try (JsonTokenizer tokenizer = JsonTokenizer.create(new ByteArrayInputStream(bytes))) {
+            tokenizer.next();
+            assertEquals(
+                    "ä", tokenizer.readObject(Json.createBuilderFactory(null)).getString("a"));
+        }
+    }
+
+    @Test
+    void testInvalid() {
+        assertThrows(JsonException.class, () -> read("{ 'a': 1 "));
+        assertThrows(JsonException.class, () -> read("{ 'a' 1 }"));
+        assertThrows(JsonException.class, () -> read("{ 'a': 1, }"));
+        assertThrows(JsonException.class, () -> read("{ 'a': tru }"));
+        assertThrows(JsonException.class, () -> read("'a': 1 }"));
+    }
+}
@@ -18,6 +18,8 @@
  */
 package org.apache.sling.jcr.contentloader.internal.readers;
 
+import javax.jcr.PropertyType;
+
 import org.jmock.Expectations;
 import org.junit.jupiter.api.Test;
 
@@ -60,4 +62,42 @@ class OrderedJsonReaderTest extends JsonReaderTest {
         });
         this.parse(json);
     }
+
+    @Test
+    void testNestedOrderedChildrenWithProperties() throws Exception {
+        String json = "{ \"p1\": \"v1\", \"SLING:ordered\" : ["
+                + "{ \"SLING:name\": \"c1\", \"jcr:primaryType\": \"nt:unstructured\", \"SLING:ordered\" : ["
+                + "{ \"SLING:name\": \"c11\", \"p2\": 2 }"
+                + "]},"
+                + "{ \"SLING:name\": \"c2\"}"
+                + "]"
+                + "}";
+        this.mockery.checking(new Expectations() {
+            {
+                allowing(creator).createNode(null, null, null);
+                inSequence(mySequence);
+                allowing(creator).createProperty("p1", PropertyType.UNDEFINED, "v1");
+                inSequence(mySequence);
+                allowing(creator).createNode("c1", "nt:unstructured", null);
+                inSequence(mySequence);
+                allowing(creator).createNode("c11", null, null);
+                inSequence(mySequence);
+                allowing(creator).createProperty("p2", PropertyType.LONG, "2");
+                inSequence(mySequence);
+                allowing(creator).finishNode();
+                inSequence(mySequence);
+                allowing(creator).finishNode();
+                inSequence(mySequence);
+                allowing(creator).createNode("c2", null, null);
+                inSequence(mySequence);
+                allowing(creator).finishNode();
+                inSequence(mySequence);
+                allowing(creator).finishNode();
+                inSequence(mySequence);
+                allowing(creator).finish();
+                inSequence(mySequence);
+            }
+        });
+        this.parse(json);
+    }
 }
@@ -0,0 +1,91 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.contentloader.internal.readers;
+
+import javax.jcr.PropertyType;
+
+import java.io.IOException;
+import java.lang.annotation.Annotation;
+
+import org.jmock.Expectations;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Runs the tests of the <code>JsonReader</code> with streaming enabled.
+ */
+class StreamingJsonReaderTest extends JsonReaderTest {
+
+    @Override
+    protected void setReader() {
+        this.jsonReader = new JsonReader();
+        this.jsonReader.activate(new JsonReader.Config() {
+
+            @Override
+            public Class<? extends Annotation> annotationType() {
+                return null;
+            }
+
+            @Override
+            public boolean streaming() {
+                return true;
+            }
+        });
+    }
+
+    @Test
+    void testPropertiesAfterChildNode() throws Exception {
+        String json = "{ \"jcr:primaryType\": \"nt:unstructured\", 'p1': 'v1', \"c1\": { \"p2\": 2 }, \"p3\": true }";
+        this.mockery.checking(new Expectations() {
+            {
+                allowing(creator).createNode(null, "nt:unstructured", null);
+                inSequence(mySequence);
+                allowing(creator).createProperty("p1", PropertyType.UNDEFINED, "v1");
+                inSequence(mySequence);
+                allowing(creator).createNode("c1", null, null);
+                inSequence(mySequence);
+                allowing(creator).createProperty("p2", PropertyType.LONG, "2");
+                inSequence(mySequence);
+                allowing(creator).finishNode();
+                inSequence(mySequence);
+                allowing(creator).createProperty("p3", PropertyType.BOOLEAN, "true");
+                inSequence(mySequence);
+                allowing(creator).finishNode();
+                inSequence(mySequence);
+                allowing(creator).finish();
+                inSequence(mySequence);
+            }
+        });
+        this.parse(json);
+    }
+
+    @Test
+    void testPrimaryTypeAfterChildNode() throws Exception {
+        String json = "{ \"c1\": {}, \"jcr:primaryType\": \"nt:unstructured\" }";
+        this.mockery.checking(new Expectations() {
+            {
+                allowing(creator).createNode(null, null, null);
+                allowing(creator).createNode("c1", null, null);
+                allowing(creator).finishNode();
+            }
+        });
+        assertThrows(IOException.class, () -> this.parse(json));
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.jcr.contentloader.internal.readers;
+
+import javax.jcr.PropertyType;
+
+import java.lang.annotation.Annotation;
+
+import org.jmock.Expectations;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Runs the tests of the <code>OrderedJsonReader</code> with streaming enabled.
+ */
+class StreamingOrderedJsonReaderTest extends OrderedJsonReaderTest {
+
+    @Override
+    protected void setReader() {
+        final OrderedJsonReader reader = new OrderedJsonReader();
+        reader.activate(new OrderedJsonReader.Config() {
+
+            @Override
+            public Class<? extends Annotation> annotationType() {
+                return null;
+            }
+
+            @Override
+            public boolean streaming() {
+                return true;
+            }
+        });
+        this.jsonReader = reader;
+    }
+
+    @Test
+    void testPropertiesAfterOrderedChildren() throws Exception {
+        String json = "{ \"p1\": \"v1\", \"SLING:ordered\" : [{ \"SLING:name\": \"c1\"}], \"p2\": \"v2\" }";
+        this.mockery.checking(new Expectations() {
+            {
+                allowing(creator).createNode(null, null, null);
+                inSequence(mySequence);
+                allowing(creator).createProperty("p1", PropertyType.UNDEFINED, "v1");
+                inSequence(mySequence);
+                allowing(creator).createNode("c1", null, null);
+                inSequence(mySequence);
+                allowing(creator).finishNode();
+                inSequence(mySequence);
+                allowing(creator).createProperty("p2", PropertyType.UNDEFINED, "v2");
+                inSequence(mySequence);
+                allowing(creator).finishNode();
+                inSequence(mySequence);
+                allowing(creator).finish();
+                inSequence(mySequence);
+            }
+        });
+        this.parse(json);
+    }
+}
@@ -19,24 +19,45 @@
 package org.apache.sling.jcr.contentloader.internal.readers;
 
 import javax.jcr.RepositoryException;
+import javax.xml.transform.Templates;
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
 
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
 
 class XmlReaderTest {
 
@@ -123,10 +144,148 @@ class XmlReaderTest {
                 originalLastModified, fileDescription.lastModified, "Did not pick up last modified date from file");
     }
 
+    /**
+     * Test that compiled stylesheets are reused until they are modified.
+     */
+    @Test
+    void testTemplatesCache(@TempDir Path tempDir) throws Exception {
+        Path xsl = tempDir.resolve("sample.xsl");
+        Files.copy(Paths.get("src/test/resources/reader/sample.xsl"), xsl);
+        final URL xslResource = xsl.toUri().toURL();
+        Templates templates = reader.getTemplates(xslResource);
+        assertSame(templates, reader.getTemplates(xslResource));
+
+        Files.setLastModifiedTime(
+                xsl, FileTime.fromMillis(Files.getLastModifiedTime(xsl).toMillis() - 60000));
+        assertNotSame(templates, reader.getTemplates(xslResource));
+    }
+
+    /**
+     * Test that a cached stylesheet is not compiled again and that the
+     * stylesheet streams opened for the lookups are closed.
+     */
+    @Test
+    void testTemplatesCacheClosesStylesheet() throws Exception {
+        final URL xsl = new File("src/test/resources/reader/sample.xsl").toURI().toURL();
+        final AtomicInteger opened = new AtomicInteger();
+        final AtomicInteger unclosed = new AtomicInteger();
+        final URL xslResource = new URL(null, "test:sample.xsl", new URLStreamHandler() {
+            @Override
+            protected URLConnection openConnection(final URL url) throws IOException {
+                final URLConnection connection = xsl.openConnection();
+                return new URLConnection(url) {
+                    @Override
+                    public void connect() {
+                        // nothing to connect
+                    }
+
+                    @Override
+                    public long getLastModified() {
+                        return connection.getLastModified();
+                    }
+
+                    @Override
+                    public InputStream getInputStream() throws IOException {
+                        opened.incrementAndGet();
+                        unclosed.incrementAndGet();
+                        return new FilterInputStream(connection.getInputStream()) {
+                            private boolean closed;
+
+                            @Override
+                            public void close() throws IOException {
+                                if (!closed) {
+                                    closed = true;
+                                    unclosed.decrementAndGet();
+                                }
+                                super.close();
+                            }
+                        };
+                    }
+                };
+            }
+        });
+        Templates templates = reader.getTemplates(xslResource);
+        assertSame(templates, reader.getTemplates(xslResource));
+        assertSame(templates, reader.getTemplates(xslResource));
+        assertTrue(opened.get() > 0);
+        assertEquals(0, unclosed.get());
+    }
+
+    /**
+     * Test that a cached file stylesheet hit repeatedly does not leak file
+     * handles.
+     */
+    @Test
+    void testTemplatesCacheFileStylesheet() throws Exception {
+        final Path fds = Paths.get("/proc/self/fd");
+        assumeTrue(Files.isDirectory(fds));
+        final URL xslResource =
+                new File("src/test/resources/reader/sample.xsl").toURI().toURL();
+        final Templates templates = reader.getTemplates(xslResource);
+        final long before = countFiles(fds);
+        for (int i = 0; i < 200; i++) {
+            assertSame(templates, reader.getTemplates(xslResource));
+        }
+        assertTrue(countFiles(fds) < before + 10);
+    }
+
+    private static long countFiles(final Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.count();
+        }
+    }
+
+    /**
+     * Test that a failing transformation is reported by the parser.
+     */
+    @Test
+    void testTransformationError(@TempDir Path tempDir) throws Exception {
+        Files.writeString(
+                tempDir.resolve("failing.xsl"),
+                "<xsl:stylesheet version=\"1.0\" xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\">"
+                        + "<xsl:template match=\"/\"><node><name>partial</name>"
+                        + "<xsl:message terminate=\"yes\">failed</xsl:message></node></xsl:template>"
+                        + "</xsl:stylesheet>");
+        final Path xml = tempDir.resolve("failing.xml");
+        Files.writeString(xml, "<?xml-stylesheet href=\"failing.xsl\" type=\"text/xsl\"?><doc/>");
+        final URL xmlLocation = xml.toUri().toURL();
+
+        IOException ioe = assertThrows(IOException.class, () -> reader.parse(xmlLocation, creator));
+        assertTrue(ioe.getMessage()
+                .contains("Error transforming " + xmlLocation + " with " + new URL(xmlLocation, "failing.xsl")));
+    }
+
+    /**
+     * Test that documents are parsed concurrently without sharing state.
+     */
+    @Test
+    void testConcurrentParse() throws Exception {
+        final URL testdata =
+                new File("src/test/resources/reader/filesample.xml").toURI().toURL();
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final List<Future<MockContentCreator>> results = new ArrayList<>();
+            for (int i = 0; i < 16; i++) {
+                results.add(executor.submit(() -> {
+                    MockContentCreator mockCreator = new MockContentCreator();
+                    reader.parse(testdata, mockCreator);
+                    return mockCreator;
+                }));
+            }
+            for (Future<MockContentCreator> result : results) {
+                MockContentCreator mockCreator = result.get();
+                assertEquals(1, mockCreator.size());
+                assertEquals("nodeName", mockCreator.get(0).get("name"));
+                assertEquals(2, mockCreator.filesCreated.size());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
     @BeforeEach
     void setUp() {
         reader = new XmlReader();
-        reader.activate();
         creator = new MockContentCreator();
     }
 
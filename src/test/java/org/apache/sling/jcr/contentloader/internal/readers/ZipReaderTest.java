@@ -28,12 +28,16 @@ import java.lang.annotation.Annotation;
 import java.lang.reflect.Proxy;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
+import org.apache.sling.jcr.contentloader.ContentCreator;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.mockito.InOrder;
 import org.mockito.MockedStatic;
 import org.mockito.Mockito;
 
@@ -41,9 +45,15 @@ import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.CALLS_REAL_METHODS;
+import static org.mockito.Mockito.times;
 
 class ZipReaderTest {
 
@@ -52,7 +62,16 @@ class ZipReaderTest {
 
     @BeforeEach
     void setUp() {
-        reader = new ZipReader();
+        reader = newZipReader(1);
+        creator = new MockContentCreator();
+    }
+
+    private static ZipReader newZipReader(int inflaterThreads) {
+        return newZipReader(inflaterThreads, 16);
+    }
+
+    private static ZipReader newZipReader(int inflaterThreads, int memoryThreshold) {
+        ZipReader zipReader = new ZipReader();
         ZipReader.Config config = new ZipReader.Config() {
 
             @Override
@@ -74,9 +93,32 @@ class ZipReaderTest {
             public double thresholdRatio() {
                 return 3.0;
             }
+
+            @Override
+            public int memoryThreshold() {
+                return memoryThreshold;
+            }
+
+            @Override
+            public int inflaterThreads() {
+                return inflaterThreads;
+            }
         };
-        reader.activate(config);
-        creator = new MockContentCreator();
+        zipReader.activate(config);
+        return zipReader;
+    }
+
+    private void parseFromFile(byte[] zipBytes) throws Exception {
+        File tmpFile = null;
+        try {
+            tmpFile = ZipReader.createTempFile();
+            try (FileOutputStream outStream = new FileOutputStream(tmpFile)) {
+                outStream.write(zipBytes);
+            }
+            reader.parse(tmpFile.toURI().toURL(), creator);
+        } finally {
+            ZipReader.removeTempFile(tmpFile);
+        }
     }
 
     private interface ZipPopulate {
@@ -96,6 +138,7 @@ class ZipReaderTest {
             zipOut.closeEntry();
 
             populateFn.populate(zipOut);
+            zipOut.finish();
             return out.toByteArray();
         }
     }
@@ -155,6 +198,176 @@ class ZipReaderTest {
         assertEquals("Hello From File", creator.filesCreated.get(1).content);
     }
 
+    @Test
+    void largeEntriesSpooled() throws Exception {
+        final byte[] large = randomAlphanumericString(1000);
+        final byte[] limit = randomAlphanumericString(16);
+        byte[] zipBytes = generateZip(zipOut -> {
+            zipOut.putNextEntry(new ZipEntry("large"));
+            zipOut.write(large);
+            zipOut.closeEntry();
+            zipOut.putNextEntry(new ZipEntry("limit"));
+            zipOut.write(limit);
+            zipOut.closeEntry();
+            zipOut.putNextEntry(new ZipEntry("empty"));
+            zipOut.closeEntry();
+        });
+        try (ByteArrayInputStream in = new ByteArrayInputStream(zipBytes)) {
+            reader.parse(in, creator);
+        }
+        assertEquals(4, creator.filesCreated.size());
+        assertEquals("Hello subfolder", creator.filesCreated.get(0).content);
+        assertEquals(new String(large), creator.filesCreated.get(1).content);
+        assertEquals(new String(limit), creator.filesCreated.get(2).content);
+        assertNull(creator.filesCreated.get(3).content);
+    }
+
+    @Test
+    void fromFileInflatedInParallel() throws Exception {
+        reader = newZipReader(2);
+        final byte[] large = randomAlphanumericString(1000);
+        byte[] zipBytes = generateZip(zipOut -> {
+            zipOut.putNextEntry(new ZipEntry("a/b/small"));
+            zipOut.write("Hello small".getBytes());
+            zipOut.closeEntry();
+            zipOut.putNextEntry(new ZipEntry("large"));
+            zipOut.write(large);
+            zipOut.closeEntry();
+            zipOut.putNextEntry(new ZipEntry("last"));
+            zipOut.write("Hello last".getBytes());
+            zipOut.closeEntry();
+        });
+        parseFromFile(zipBytes);
+        assertEquals(4, creator.filesCreated.size());
+        assertEquals("Hello subfolder", creator.filesCreated.get(0).content);
+        assertEquals("Hello small", creator.filesCreated.get(1).content);
+        assertEquals(new String(large), creator.filesCreated.get(2).content);
+        assertEquals("Hello last", creator.filesCreated.get(3).content);
+    }
+
+    @Test
+    void inflaterThreadsSharedUntilDeactivated() throws Exception {
+        reader = newZipReader(2);
+        byte[] zipBytes = generateZip(zipOut -> {
+            for (int i = 0; i < 3; i++) {
+                zipOut.putNextEntry(new ZipEntry(String.format("entry%d", i)));
+                zipOut.write(String.format("Hello %d", i).getBytes());
+                zipOut.closeEntry();
+            }
+        });
+        // the threads of the readers of other tests
+        final List<Thread> others = getInflaterThreads();
+        parseFromFile(zipBytes);
+        creator = new MockContentCreator();
+        parseFromFile(zipBytes);
+        assertEquals("Hello 2", creator.filesCreated.get(3).content);
+        final List<Thread> inflaters = getInflaterThreads();
+        inflaters.removeAll(others);
+        assertFalse(inflaters.isEmpty());
+        assertTrue(inflaters.size() <= 2);
+
+        reader.deactivate();
+        for (Thread inflater : inflaters) {
+            inflater.join(10000);
+            assertFalse(inflater.isAlive());
+        }
+    }
+
+    private static List<Thread> getInflaterThreads() {
+        final List<Thread> inflaters = new ArrayList<>();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("Sling ContentLoader Zip Inflater") && thread.isAlive()) {
+                inflaters.add(thread);
+            }
+        }
+        return inflaters;
+    }
+
+    @Test
+    void entriesOfMemoryThresholdNotSpooled() throws Exception {
+        final byte[] limit = randomAlphanumericString(16);
+        byte[] zipBytes = generateZip(zipOut -> {
+            zipOut.putNextEntry(new ZipEntry("limit"));
+            zipOut.write(limit);
+            zipOut.closeEntry();
+        });
+        try (MockedStatic<ZipReader> zipReader = Mockito.mockStatic(ZipReader.class, CALLS_REAL_METHODS)) {
+            try (ByteArrayInputStream in = new ByteArrayInputStream(zipBytes)) {
+                reader.parse(in, creator);
+            }
+            zipReader.verify(ZipReader::createTempFile, Mockito.never());
+        }
+        assertEquals(new String(limit), creator.filesCreated.get(1).content);
+
+        creator = new MockContentCreator();
+        reader = newZipReader(4);
+        parseFromFile(zipBytes);
+        assertEquals(2, creator.filesCreated.size());
+        assertEquals(new String(limit), creator.filesCreated.get(1).content);
+    }
+
+    @Test
+    void emptyEntriesWithoutMemoryThreshold() throws Exception {
+        byte[] zipBytes = generateZip(zipOut -> {
+            zipOut.putNextEntry(new ZipEntry("empty"));
+            zipOut.closeEntry();
+        });
+        reader = newZipReader(4, 0);
+        parseFromFile(zipBytes);
+        assertEquals(2, creator.filesCreated.size());
+        assertEquals("Hello subfolder", creator.filesCreated.get(0).content);
+        assertNull(creator.filesCreated.get(1).content);
+    }
+
+    @Test
+    void fromFileInflatedInParallelViolations() throws Exception {
+        reader = newZipReader(2);
+        byte[] tooManyEntries = generateZip(zipOut -> {
+            for (int i = 0; i < 6; i++) {
+                zipOut.putNextEntry(new ZipEntry(String.format("entry%d", i)));
+                zipOut.write(String.format("Hello %d", i).getBytes());
+                zipOut.closeEntry();
+            }
+        });
+        IOException threw = assertThrows(IOException.class, () -> parseFromFile(tooManyEntries));
+        assertEquals("The total entries count of the archive exceeded the allowed threshold", threw.getMessage());
+
+        byte[] highRatio = generateZip(zipOut -> {
+            zipOut.putNextEntry(new ZipEntry("entry"));
+            for (int i = 0; i < 1000; i++) {
+                zipOut.write('a');
+            }
+            zipOut.closeEntry();
+        });
+        threw = assertThrows(IOException.class, () -> parseFromFile(highRatio));
+        assertEquals("The compression ratio exceeded the allowed threshold", threw.getMessage());
+    }
+
+    @Test
+    void foldersSwitchedOnce() throws Exception {
+        byte[] zipBytes = generateZip(zipOut -> {
+            for (String name : new String[] {"folder/sub/x", "folder//sub/y", "other/z"}) {
+                zipOut.putNextEntry(new ZipEntry(name));
+                zipOut.write("Hi".getBytes());
+                zipOut.closeEntry();
+            }
+        });
+        ContentCreator contentCreator = Mockito.mock(ContentCreator.class);
+        try (ByteArrayInputStream in = new ByteArrayInputStream(zipBytes)) {
+            reader.parse(in, contentCreator);
+        }
+        InOrder inOrder = Mockito.inOrder(contentCreator);
+        inOrder.verify(contentCreator).switchCurrentNode("folder", "nt:folder");
+        inOrder.verify(contentCreator).createFileAndResourceNode(eq("folder/entry"), any(), any(), anyLong());
+        inOrder.verify(contentCreator).switchCurrentNode("sub", "nt:folder");
+        inOrder.verify(contentCreator).createFileAndResourceNode(eq("folder/sub/x"), any(), any(), anyLong());
+        inOrder.verify(contentCreator).createFileAndResourceNode(eq("folder//sub/y"), any(), any(), anyLong());
+        inOrder.verify(contentCreator).switchCurrentNode("other", "nt:folder");
+        inOrder.verify(contentCreator).createFileAndResourceNode(eq("other/z"), any(), any(), anyLong());
+        Mockito.verify(contentCreator, times(3)).switchCurrentNode(anyString(), anyString());
+        Mockito.verify(contentCreator, times(12)).finishNode();
+    }
+
     @Test
     void totalEntryCountExceeded() throws Exception {
         // generate a zip with too many entries